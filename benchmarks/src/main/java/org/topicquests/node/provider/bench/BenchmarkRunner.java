@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author park
+ * <p>Runs the benchmarks and writes JMH's JSON results, by default to
+ * <code>jmh-result-&lt;timestamp&gt;.json</code>, for comparison across
+ * releases. Any JMH command line option may be given, e.g. a benchmark
+ * regex, <code>-f 1</code> or <code>-rff results.json</code>.</p>
+ */
+public class BenchmarkRunner {
+
+	public static void main(String [] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		String file = "jmh-result-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+		Options opts = new OptionsBuilder()
+				.parent(cmd)
+				.resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+				.result(cmd.getResult().orElse(file))
+				.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.util.*;
+
+import org.topicquests.node.provider.ProviderEnvironment;
+
+/**
+ * @author park
+ * <p>Builds a {@link ProviderEnvironment} aimed at a loopback server</p>
+ */
+public class BenchmarkSupport {
+	public static final String INDEX = "topics";
+
+	/**
+	 * @param port
+	 * @param cacheBytes <code>0</code> to disable the node cache
+	 * @return config properties in the shape the config parser makes them
+	 */
+	public static Map<String,Object> properties(int port, long cacheBytes) {
+		Map<String,Object> result = new HashMap<String,Object>();
+		result.put("Clusters", list(pair("127.0.0.1", Integer.toString(port))));
+		result.put("IndexNames", list(pair(INDEX, "mappings.json")));
+		result.put("NumShards", "1");
+		result.put("NumDuplicates", "0");
+		result.put("CacheMaxBytes", Long.toString(cacheBytes));
+		result.put("ConsistencyMode", "INTERVAL");
+		result.put("RefreshOnRead", "false");
+		result.put("MetricsJmxEnabled", "false");
+		return result;
+	}
+
+	/**
+	 * @param port
+	 * @param cacheBytes
+	 * @return
+	 */
+	public static ProviderEnvironment environment(int port, long cacheBytes) {
+		return new ProviderEnvironment(properties(port, cacheBytes));
+	}
+
+	private static List<String> pair(String a, String b) {
+		List<String> result = new ArrayList<String>(2);
+		result.add(a);
+		result.add(b);
+		return result;
+	}
+
+	private static List<List<String>> list(List<String> entry) {
+		List<List<String>> result = new ArrayList<List<String>>(1);
+		result.add(entry);
+		return result;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.topicquests.es.util.ElasticQueryUtility;
+import org.topicquests.node.provider.Client;
+import org.topicquests.node.provider.FakeElasticServer;
+import org.topicquests.node.provider.ProviderEnvironment;
+import org.topicquests.node.provider.SourceFilter;
+import org.topicquests.support.api.IResult;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>{@link Client} read and write paths against a {@link FakeElasticServer}
+ * on loopback: what the client itself costs per call, including HTTP</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+	private static final String INDEX = BenchmarkSupport.INDEX;
+	private FakeElasticServer server;
+	private ProviderEnvironment environment;
+	private Client client;
+	private List<String> ids;
+	private String query;
+	private JSONObject node;
+	private SourceFilter listView;
+	private long counter = 0;
+
+	/** bytes of <code>details</code> in each node */
+	@Param({"256", "8192"})
+	public int detailsChars;
+
+	/** whether reads may be answered from the node cache */
+	@Param({"true", "false"})
+	public boolean cached;
+
+	/** whether bodies are gzipped both ways */
+	@Param({"false"})
+	public boolean gzip;
+
+	/** milliseconds the server waits before answering */
+	@Param({"0"})
+	public long serverLatency;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new FakeElasticServer();
+		server.populate(INDEX, 20, detailsChars);
+		server.setLatency(serverLatency, 0);
+		server.setCompression(gzip);
+		Map<String,Object> props = BenchmarkSupport.properties(server.getPort(), cached ? 64L * 1024 * 1024 : 0);
+		if (gzip) {
+			props.put("GzipRequestThreshold", "1024");
+			props.put("GzipResponses", "true");
+		}
+		environment = new ProviderEnvironment(props);
+		client = environment.getClient();
+		ids = new ArrayList<String>();
+		for (int i=0; i<20; i++)
+			ids.add("node"+i);
+		query = new ElasticQueryUtility().getMatchQuery("label", "Class type", 0, 20);
+		node = FakeElasticServer.node("written", detailsChars);
+		listView = SourceFilter.include("lox", "label", "_ver");
+		client.getNodeAsJSONObject("node0", INDEX);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.shutdown();
+		server.stop();
+	}
+
+	@Benchmark
+	public IResult getNode() {
+		return client.getNodeAsJSONObject("node0", INDEX);
+	}
+
+	@Benchmark
+	public IResult getNodeFiltered() {
+		return client.getNodeAsJSONObject("node0", INDEX, listView);
+	}
+
+	@Benchmark
+	public IResult existsNode() {
+		return client.existsNode("node0", INDEX);
+	}
+
+	@Benchmark
+	public IResult multiGetNodes() {
+		return client.multiGetNodes(ids, INDEX);
+	}
+
+	@Benchmark
+	public IResult listObjectsByQuery() {
+		return client.listObjectsByQuery(query, INDEX);
+	}
+
+	@Benchmark
+	public IResult count() {
+		return client.count(query, INDEX);
+	}
+
+	@Benchmark
+	public IResult indexNode() {
+		return client.indexNode("w"+(counter++ & 1023), INDEX, node);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void getNodeContended(Blackhole bh) {
+		bh.consume(client.getNodeAsJSONObject("node0", INDEX));
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.es.util.ElasticQueryUtility;
+import org.topicquests.node.provider.Client;
+import org.topicquests.node.provider.FakeElasticServer;
+import org.topicquests.node.provider.ProviderEnvironment;
+import org.topicquests.support.api.IResult;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Drives a mixed get, search and index load at a {@link Client} over a
+ * {@link FakeElasticServer} with injected latency, errors and 429
+ * rejections, then prints throughput and the client's metrics snapshot:
+ * how tail latency and error handling behave when the cluster does not</p>
+ * <p>Arguments, all optional, in order: threads (16), seconds (30),
+ * latency ms (2), jitter ms (5), error rate (0.001), rejection rate
+ * (0.01), nodes (10000), details chars (1024).</p>
+ */
+public class LoadGenerator {
+	private static final String INDEX = BenchmarkSupport.INDEX;
+
+	public static void main(String [] args) throws Exception {
+		int threads = Integer.parseInt(arg(args, 0, "16"));
+		long seconds = Long.parseLong(arg(args, 1, "30"));
+		long latency = Long.parseLong(arg(args, 2, "2"));
+		long jitter = Long.parseLong(arg(args, 3, "5"));
+		double errorRate = Double.parseDouble(arg(args, 4, "0.001"));
+		double rejectionRate = Double.parseDouble(arg(args, 5, "0.01"));
+		int nodes = Integer.parseInt(arg(args, 6, "10000"));
+		int detailsChars = Integer.parseInt(arg(args, 7, "1024"));
+
+		FakeElasticServer server = new FakeElasticServer(0, threads * 2);
+		server.populate(INDEX, nodes, detailsChars);
+		ProviderEnvironment environment = BenchmarkSupport.environment(server.getPort(), 64L * 1024 * 1024);
+		Client client = environment.getClient();
+		server.setLatency(latency, jitter);
+		server.setErrorRate(errorRate);
+		server.setRejectionRate(rejectionRate);
+
+		String query = new ElasticQueryUtility().getMatchQuery("label", "Class type", 0, 20);
+		JSONObject node = FakeElasticServer.node("written", detailsChars);
+		LongAdder ops = new LongAdder();
+		LongAdder failures = new LongAdder();
+		long deadline = System.currentTimeMillis() + seconds * 1000;
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t=0; t<threads; t++) {
+			new Thread(() -> {
+				ThreadLocalRandom r = ThreadLocalRandom.current();
+				IResult x;
+				int p;
+				while (System.currentTimeMillis() < deadline) {
+					p = r.nextInt(100);
+					if (p < 70)
+						x = client.getNodeAsJSONObject("node"+r.nextInt(nodes), INDEX);
+					else if (p < 90)
+						x = client.listObjectsByQuery(query, INDEX);
+					else
+						x = client.indexNode("w"+r.nextInt(nodes), INDEX, node);
+					ops.increment();
+					if (x.hasError())
+						failures.increment();
+				}
+				done.countDown();
+			}, "load-"+t).start();
+		}
+		done.await();
+
+		System.out.println("operations "+ops.sum()+" failed "+failures.sum()
+				+" ops/sec "+(ops.sum() / Math.max(1, seconds)));
+		System.out.println("server requests "+server.getRequestCount()
+				+" injected errors "+server.getInjectedErrorCount()
+				+" rejections "+server.getInjectedRejectionCount());
+		System.out.println(environment.getMetricsSnapshot().toJSONString());
+		client.shutdown();
+		server.stop();
+	}
+
+	private static String arg(String [] args, int i, String defaultValue) {
+		return (args.length > i) ? args[i] : defaultValue;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.topicquests.es.util.ElasticQueryUtility;
+import org.topicquests.es.util.JSONQueryUtil;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Query construction with {@link ElasticQueryUtility} and {@link JSONQueryUtil}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuilderBenchmark {
+	private ElasticQueryUtility queries;
+	private JSONQueryUtil json;
+	private JSONObject mustTerms;
+	private JSONObject mustMatches;
+	private JSONArray after;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		queries = new ElasticQueryUtility();
+		json = new JSONQueryUtil();
+		mustTerms = new JSONObject();
+		mustTerms.put("crtr", "SystemUser");
+		mustMatches = new JSONObject();
+		mustMatches.put("label", "Class type");
+		after = new JSONArray();
+		after.add("SomeLocator");
+	}
+
+	@Benchmark
+	public String matchQuery() {
+		return queries.getMatchQuery("label", "Class type", 0, 20);
+	}
+
+	@Benchmark
+	public String matchSortQuery() {
+		return queries.getMatchSortQuery("label", "Class type", "crDt", false, 0, 20);
+	}
+
+	@Benchmark
+	public String matchSortAfterQuery() {
+		return queries.getMatchSortAfterQuery("label", "Class type", "lox", true, after, 20);
+	}
+
+	@Benchmark
+	public String andStuffQuery() {
+		QueryBuilder qb = queries.andStuffQuery(null, mustTerms, mustMatches);
+		return queries.createQueryFromQuery(qb, 0, 20);
+	}
+
+	@Benchmark
+	public String jsonMatch() {
+		JSONObject q = json.core("query", json.match("label", "Class type"));
+		return q.toJSONString();
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.topicquests.node.provider.FakeElasticServer;
+import org.topicquests.node.provider.JsonSmartCodec;
+import org.topicquests.node.provider.api.IJsonCodec;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author park
+ * <p>Turning <code>_mget</code> and <code>_search</code> responses into
+ * node sources, as <code>multiGetNodes</code> and
+ * <code>listObjectsByQuery</code> do: from bytes with the client's
+ * {@link IJsonCodec}, and from a String as the Jest path did</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParseBenchmark {
+	private IJsonCodec codec;
+	private byte [] mgetBytes;
+	private String mgetString;
+	private byte [] searchBytes;
+	private String searchString;
+
+	@Param({"10", "100"})
+	public int docs;
+
+	@Param({"256", "8192"})
+	public int detailsChars;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		codec = new JsonSmartCodec();
+		FakeElasticServer server = new FakeElasticServer();
+		server.stop();
+		server.populate(BenchmarkSupport.INDEX, docs, detailsChars);
+		JSONArray ids = new JSONArray();
+		for (int i=0; i<docs; i++)
+			ids.add("node"+i);
+		JSONObject req = new JSONObject();
+		req.put("ids", ids);
+		String path = "/"+BenchmarkSupport.INDEX+"/core/";
+		mgetString = server.call("POST", path+"_mget", req.toJSONString()).toJSONString();
+		mgetBytes = mgetString.getBytes(StandardCharsets.UTF_8);
+		searchString = server.call("POST", path+"_search?size="+docs, "{\"query\":{\"match_all\":{}}}").toJSONString();
+		searchBytes = searchString.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public List<JSONObject> multiGetFromBytes() throws Exception {
+		return sources((JSONArray)codec.decode(mgetBytes).get("docs"));
+	}
+
+	@Benchmark
+	public List<JSONObject> multiGetFromString() throws Exception {
+		JSONObject jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(mgetString);
+		return sources((JSONArray)jo.get("docs"));
+	}
+
+	@Benchmark
+	public List<JSONObject> searchFromBytes() throws Exception {
+		JSONObject hits = (JSONObject)codec.decode(searchBytes).get("hits");
+		return sources((JSONArray)hits.get("hits"));
+	}
+
+	@Benchmark
+	public List<JSONObject> searchFromString() throws Exception {
+		JSONObject jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(searchString);
+		return sources((JSONArray)((JSONObject)jo.get("hits")).get("hits"));
+	}
+
+	private static List<JSONObject> sources(JSONArray ja) {
+		int len = ja.size();
+		List<JSONObject> result = new ArrayList<JSONObject>(len);
+		for (int i=0; i<len; i++)
+			result.add((JSONObject)((JSONObject)ja.get(i)).get("_source"));
+		return result;
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.topicquests.es.util.UniversalTimeStamp;
+
+/**
+ * @author park
+ * <p>{@link UniversalTimeStamp} conversions</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeStampBenchmark {
+	private long stamp;
+	private String formatted;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		stamp = UniversalTimeStamp.getTimeStamp(false, 2015, 12, 7, 21, 39, 55);
+		formatted = UniversalTimeStamp.timeStampToString(stamp);
+	}
+
+	@Benchmark
+	public long fromFields() throws Exception {
+		return UniversalTimeStamp.getTimeStamp(false, 2015, 12, 7, 21, 39, 55);
+	}
+
+	@Benchmark
+	public long fromString() throws Exception {
+		return UniversalTimeStamp.getTimeStamp(formatted);
+	}
+
+	@Benchmark
+	public String toFormattedString() {
+		return UniversalTimeStamp.timeStampToString(stamp);
+	}
+}
@@ -6,14 +6,9 @@ package org.topicquests.es.util;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.builder.SearchSourceBuilder;
-import org.elasticsearch.search.sort.FieldSortBuilder;
-import org.elasticsearch.search.sort.SortBuilders;
-import org.elasticsearch.search.sort.SortOrder;
 
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
-import net.minidev.json.parser.JSONParser;
 
 import static org.elasticsearch.index.query.QueryBuilders.*;
 
@@ -26,6 +21,21 @@ import java.util.Map;
  *
  */
 public class ElasticQueryUtility {
+	// The shapes SearchSourceBuilder makes for the String queries below,
+	// compiled once; see QueryTemplate
+	private static final String
+		MATCH = "\"query\":{\"match\":{\"{{key}}\":{\"query\":\"{{value}}\",\"type\":\"boolean\"}}}",
+		SORT = "\"sort\":[{\"{{sortField}}\":{\"order\":\"{{order}}\"}}]";
+	private static final QueryTemplate
+		MATCH_QUERY = QueryTemplate.compile("{"+MATCH+"}"),
+		MATCH_FROM = QueryTemplate.compile("{\"from\":{{from}},"+MATCH+"}"),
+		MATCH_PAGE = QueryTemplate.compile("{\"from\":{{from}},\"size\":{{size}},"+MATCH+"}"),
+		MATCH_SORT_FROM = QueryTemplate.compile("{\"from\":{{from}},"+MATCH+","+SORT+"}"),
+		MATCH_SORT_PAGE = QueryTemplate.compile("{\"from\":{{from}},\"size\":{{size}},"+MATCH+","+SORT+"}"),
+		MATCH_SORT_AFTER = QueryTemplate.compile("{"+MATCH+","+SORT+",\"search_after\":{{after}}}"),
+		MATCH_SORT_AFTER_PAGE = QueryTemplate.compile("{\"size\":{{size}},"+MATCH+","+SORT+",\"search_after\":{{after}}}"),
+		QUERY_FROM = QueryTemplate.compile("{\"from\":{{from}},\"query\":{{query}}}"),
+		QUERY_PAGE = QueryTemplate.compile("{\"from\":{{from}},\"size\":{{size}},\"query\":{{query}}}");
 
 	/**
 	 * 
@@ -33,22 +43,23 @@ public class ElasticQueryUtility {
 	public ElasticQueryUtility() {
 	}
 	
+	/**
+	 * @param source JSON with <code>{{name}}</code> placeholders
+	 * @return <code>source</code> compiled, for queries of a shape this
+	 *  class does not make
+	 */
+	public QueryTemplate compileTemplate(String source) {
+		return QueryTemplate.compile(source);
+	}
+
 	public String getMatchQuery(String key, String value) {
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-		searchSourceBuilder.query(QueryBuilders.matchQuery(key, value));
-		String q = searchSourceBuilder.toString();
-		return q;
+		return MATCH_QUERY.render(key, value);
 	}
 	
 	public String getMatchQuery(String key, String value, int start, int count) {
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-		searchSourceBuilder.query(QueryBuilders.matchQuery(key, value));
-		searchSourceBuilder.from(start);
 		if (count > -1)
-			searchSourceBuilder.size(count);
-		String q = searchSourceBuilder.toString();
-//		System.out.println("GETMATCHQUERY "+q);
-		return q;
+			return MATCH_PAGE.render(start, count, key, value);
+		return MATCH_FROM.render(start, key, value);
 	}
 
 	public QueryBuilder startKeywordQuery(String key, String value) {
@@ -155,35 +166,41 @@ public class ElasticQueryUtility {
 	 * @return
 	 */
 	public String getMatchSortQuery(String key, String value, String sortField, boolean increasing, int start, int count) {
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-		searchSourceBuilder.query(QueryBuilders.matchQuery(key, value));
-		if (increasing)
-			searchSourceBuilder.sort(SortBuilders.fieldSort(sortField).order(SortOrder.ASC));
-		else
-			searchSourceBuilder.sort(SortBuilders.fieldSort(sortField).order(SortOrder.DESC));
-		searchSourceBuilder.from(start);
+		String order = increasing ? "asc" : "desc";
 		if (count > -1)
-			searchSourceBuilder.size(count);
-		String q = searchSourceBuilder.toString();
-//		System.out.println("GETMATCHQUERY "+q);
-		return q;
+			return MATCH_SORT_PAGE.render(start, count, key, value, sortField, order);
+		return MATCH_SORT_FROM.render(start, key, value, sortField, order);
 	}
 
-	public String createQueryFromQuery(QueryBuilder qb, int start, int count) {
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-		searchSourceBuilder.query(qb);
-		searchSourceBuilder.from(start);
+	/**
+	 * Like {@link #getMatchSortQuery(String, String, String, boolean, int, int)}
+	 * but pages with <code>search_after</code> rather than <code>from</code>,
+	 * so deep pages cost no more than the first (ElasticSearch 5.0 and later).
+	 * <code>sortField</code> should be unique per node, e.g. the locator.
+	 * @param key
+	 * @param value
+	 * @param sortField
+	 * @param increasing
+	 * @param after sort values of the last hit of the previous page; <code>null</code> for the first page
+	 * @param count
+	 * @return
+	 */
+	public String getMatchSortAfterQuery(String key, String value, String sortField, boolean increasing, JSONArray after, int count) {
+		if (after == null)
+			return getMatchSortQuery(key, value, sortField, increasing, 0, count);
+		String order = increasing ? "asc" : "desc";
 		if (count > -1)
-			searchSourceBuilder.size(count);
-		return searchSourceBuilder.toString();
+			return MATCH_SORT_AFTER_PAGE.render(count, key, value, sortField, order, after);
+		return MATCH_SORT_AFTER.render(key, value, sortField, order, after);
+	}
+
+	public String createQueryFromQuery(QueryBuilder qb, int start, int count) {
+		return createQueryFromStringQuery(qb.toString(), start, count);
 	}
 	public String createQueryFromStringQuery(String qb, int start, int count) {
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-		searchSourceBuilder.query(qb);
-		searchSourceBuilder.from(start);
 		if (count > -1)
-			searchSourceBuilder.size(count);
-		return searchSourceBuilder.toString();
+			return QUERY_PAGE.render(start, count, QueryTemplate.json(qb));
+		return QUERY_FROM.render(start, QueryTemplate.json(qb));
 	}
 
 }
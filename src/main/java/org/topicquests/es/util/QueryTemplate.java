@@ -0,0 +1,295 @@
+/**
+ *
+ */
+package org.topicquests.es.util;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author jackpark
+ * <p>A query shape compiled once into its literal text and typed
+ * parameter slots, so that a query is made by writing only its values
+ * into one <code>StringBuilder</code>, with no builder objects and no
+ * intermediate JSON tree</p>
+ * <p>A source is JSON with mustache placeholders, <code>{{name}}</code>,
+ * the subset which ElasticSearch search templates understand, so the same
+ * source may also be stored on the server; see
+ * {@link #toInlineSearchTemplate(Map)}. A placeholder inside a JSON
+ * string, e.g. <code>"{{value}}"</code>, is a string slot: its value is
+ * escaped into the string. A placeholder outside a string, e.g.
+ * <code>"size":{{size}}</code>, is a value slot: numbers and booleans are
+ * written as they are, strings quoted and escaped, maps and lists as JSON,
+ * and {@link #json(String)} fragments verbatim. Mustache sections are not
+ * supported.</p>
+ * <p>Templates are immutable and thread safe.</p>
+ */
+public final class QueryTemplate {
+	private static final Map<String, QueryTemplate> CACHE = new ConcurrentHashMap<String, QueryTemplate>();
+	private static final int MAX_CACHED = 1024;
+	private final String source;
+	/** text before each slot, and after the last */
+	private final String [] literals;
+	/** per slot, the index of its parameter */
+	private final int [] slots;
+	/** per slot, whether it is inside a JSON string */
+	private final boolean [] quoted;
+	/** distinct names, in order of first appearance */
+	private final String [] names;
+	private final int literalLength;
+	/** length of the last query rendered, to size the next */
+	private volatile int lastLength;
+
+	/**
+	 * A JSON fragment written as it is into a value slot
+	 */
+	public static final class Json {
+		private final String fragment;
+
+		Json(String fragment) {
+			this.fragment = fragment;
+		}
+
+		@Override
+		public String toString() {
+			return fragment;
+		}
+	}
+
+	private QueryTemplate(String source, String [] literals, int [] slots, boolean [] quoted, String [] names) {
+		this.source = source;
+		this.literals = literals;
+		this.slots = slots;
+		this.quoted = quoted;
+		this.names = names;
+		int n = 0;
+		for (String s : literals)
+			n += s.length();
+		literalLength = n;
+		lastLength = n + 16 * slots.length;
+	}
+
+	/**
+	 * Compile <code>source</code>, or return it compiled already
+	 * @param source
+	 * @return
+	 * @throws IllegalArgumentException if <code>source</code> is not a JSON
+	 *  object once its placeholders are filled
+	 */
+	public static QueryTemplate compile(String source) {
+		QueryTemplate result = CACHE.get(source);
+		if (result == null) {
+			result = parse(source);
+			if (CACHE.size() < MAX_CACHED)
+				CACHE.put(source, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param fragment JSON, e.g. a query from <code>QueryBuilder.toString()</code>
+	 * @return <code>fragment</code> to be written verbatim into a value slot
+	 */
+	public static Json json(String fragment) {
+		return new Json(fragment);
+	}
+
+	/**
+	 * @param values one per parameter, in the order of
+	 *  {@link #getParameterNames()}
+	 * @return the query
+	 */
+	public String render(Object... values) {
+		if (values.length != names.length)
+			throw new IllegalArgumentException("QueryTemplate expects "+names.length+" values, not "+values.length);
+		StringBuilder buf = new StringBuilder(lastLength + 16);
+		for (int i=0; i<slots.length; i++) {
+			buf.append(literals[i]);
+			write(buf, names[slots[i]], values[slots[i]], quoted[i]);
+		}
+		buf.append(literals[slots.length]);
+		lastLength = buf.length();
+		return buf.toString();
+	}
+
+	/**
+	 * @param params a value for each parameter
+	 * @return the query
+	 */
+	public String render(Map<String, ?> params) {
+		Object [] values = new Object[names.length];
+		for (int i=0; i<names.length; i++) {
+			if (!params.containsKey(names[i]))
+				throw new IllegalArgumentException("QueryTemplate missing "+names[i]);
+			values[i] = params.get(names[i]);
+		}
+		return render(values);
+	}
+
+	/**
+	 * A body for <code>_search/template</code>, which has ElasticSearch
+	 * render this template; <code>inline</code> is its key from 2.0
+	 * through 6.x
+	 * @param params
+	 * @return
+	 */
+	public String toInlineSearchTemplate(Map<String, ?> params) {
+		JSONObject result = new JSONObject();
+		result.put("inline", source);
+		result.put("params", params);
+		return result.toJSONString();
+	}
+
+	/**
+	 * @return the mustache source, to be stored on the server
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	public List<String> getParameterNames() {
+		return Collections.unmodifiableList(Arrays.asList(names));
+	}
+
+	/**
+	 * @return the length of the source less its placeholders
+	 */
+	public int getLiteralLength() {
+		return literalLength;
+	}
+
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	private static QueryTemplate parse(String source) {
+		List<String> literals = new ArrayList<String>();
+		List<Integer> slots = new ArrayList<Integer>();
+		List<Boolean> quoted = new ArrayList<Boolean>();
+		List<String> names = new ArrayList<String>();
+		// the source with every placeholder filled, to check it
+		StringBuilder sample = new StringBuilder(source.length());
+		boolean inString = false;
+		int from = 0, i = 0, end;
+		char c;
+		String name;
+		while (i < source.length()) {
+			c = source.charAt(i);
+			if (c == '{' && source.startsWith("{{", i)) {
+				end = source.indexOf("}}", i + 2);
+				if (end < 0)
+					throw new IllegalArgumentException("QueryTemplate unclosed {{ at "+i);
+				name = source.substring(i + 2, end).trim();
+				if (name.isEmpty() || "#^/!>{&=".indexOf(name.charAt(0)) >= 0)
+					throw new IllegalArgumentException("QueryTemplate unsupported tag {{"+name+"}}");
+				literals.add(source.substring(from, i));
+				sample.append(source, from, i).append(inString ? "" : "0");
+				if (!names.contains(name))
+					names.add(name);
+				slots.add(names.indexOf(name));
+				quoted.add(inString);
+				i = end + 2;
+				from = i;
+				continue;
+			}
+			if (c == '"')
+				inString = !inString;
+			else if (c == '\\' && inString)
+				i++;
+			i++;
+		}
+		literals.add(source.substring(from));
+		sample.append(source, from, source.length());
+		try {
+			Object o = new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(sample.toString());
+			if (!(o instanceof Map))
+				throw new IllegalArgumentException("QueryTemplate not a JSON object: "+source);
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException("QueryTemplate not JSON: "+e.getMessage()+" "+source, e);
+		}
+		int [] s = new int[slots.size()];
+		boolean [] q = new boolean[s.length];
+		for (int j=0; j<s.length; j++) {
+			s[j] = slots.get(j);
+			q[j] = quoted.get(j);
+		}
+		return new QueryTemplate(source, literals.toArray(new String[literals.size()]), s, q,
+				names.toArray(new String[names.size()]));
+	}
+
+	private static void write(StringBuilder buf, String name, Object v, boolean inString) {
+		if (inString) {
+			if (v == null || v instanceof Json || v instanceof Map || v instanceof Collection)
+				throw new IllegalArgumentException("QueryTemplate "+name+" must be a string, number or boolean");
+			escape(buf, v.toString());
+		} else if (v == null) {
+			buf.append("null");
+		} else if (v instanceof String) {
+			buf.append('"');
+			escape(buf, (String)v);
+			buf.append('"');
+		} else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+			buf.append(((Number)v).longValue());
+		} else if (v instanceof Number) {
+			double d = ((Number)v).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				throw new IllegalArgumentException("QueryTemplate "+name+" is not a JSON number: "+d);
+			buf.append(v.toString());
+		} else if (v instanceof Boolean) {
+			buf.append(((Boolean)v).booleanValue());
+		} else if (v instanceof Json) {
+			buf.append(((Json)v).fragment);
+		} else if (v instanceof Map || v instanceof Collection) {
+			try {
+				JSONValue.writeJSONString(v, buf);
+			} catch (IOException e) {
+				// a StringBuilder does not throw
+				throw new IllegalStateException(e);
+			}
+		} else {
+			buf.append('"');
+			escape(buf, v.toString());
+			buf.append('"');
+		}
+	}
+
+	/**
+	 * Append <code>s</code> as the contents of a JSON string
+	 */
+	static void escape(StringBuilder buf, String s) {
+		char c;
+		for (int i=0; i<s.length(); i++) {
+			c = s.charAt(i);
+			switch (c) {
+			case '"': buf.append("\\\""); break;
+			case '\\': buf.append("\\\\"); break;
+			case '\n': buf.append("\\n"); break;
+			case '\r': buf.append("\\r"); break;
+			case '\t': buf.append("\\t"); break;
+			case '\b': buf.append("\\b"); break;
+			case '\f': buf.append("\\f"); break;
+			default:
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					buf.append("\\u");
+					String h = Integer.toHexString(c);
+					for (int k=h.length(); k<4; k++)
+						buf.append('0');
+					buf.append(h);
+				} else
+					buf.append(c);
+			}
+		}
+	}
+}
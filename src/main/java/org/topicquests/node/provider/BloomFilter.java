@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author park
+ * <p>A thread safe Bloom filter of Strings: {@link #mightContain(String)}
+ * never answers <code>false</code> for a String which was put</p>
+ * @see https://en.wikipedia.org/wiki/Bloom_filter
+ */
+public class BloomFilter {
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int numHashes;
+
+	/**
+	 * @param expectedInsertions
+	 * @param fpp desired false positive probability, e.g. <code>0.01</code>
+	 */
+	public BloomFilter(long expectedInsertions, double fpp) {
+		long n = Math.max(1, expectedInsertions);
+		long m = (long)(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		int words = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (m + 63) >>> 6));
+		bits = new AtomicLongArray(words);
+		numBits = (long)words << 6;
+		numHashes = Math.max(1, (int)Math.round((double)numBits / n * Math.log(2)));
+	}
+
+	public void put(String key) {
+		long h = hash64(key);
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32);
+		long bit, word, mask, old;
+		for (int i=1; i<=numHashes; i++) {
+			bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			word = bit >>> 6;
+			mask = 1L << bit;
+			do {
+				old = bits.get((int)word);
+				if ((old & mask) != 0)
+					break;
+			} while (!bits.compareAndSet((int)word, old, old | mask));
+		}
+	}
+
+	public boolean mightContain(String key) {
+		long h = hash64(key);
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32);
+		long bit;
+		for (int i=1; i<=numHashes; i++) {
+			bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return size of the bit set in bytes
+	 */
+	public long getByteSize() {
+		return numBits >>> 3;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars, finished with a mix step
+	 * @param key
+	 * @return
+	 */
+	private static long hash64(String key) {
+		long h = 0xcbf29ce484222325L;
+		int len = key.length();
+		for (int i=0; i<len; i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,381 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.topicquests.node.provider.api.IBulkListener;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import io.searchbox.core.Update;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Queues index, update and delete actions and sends them to
+ * ElasticSearch as <code>_bulk</code> requests when a document count,
+ * byte size, or time threshold is reached</p>
+ * <p>A node is evicted from the {@link Client} cache as its action is
+ * queued. Once the bulk response is in, an indexed node whose item
+ * succeeded is cached, just as {@link Client#indexNode(String, String, JSONObject)}
+ * does, and every other node is evicted again.</p>
+ * <p>Bulk requests are sent one at a time, in the order their actions
+ * were queued, so that a later action on a node is never applied before
+ * an earlier one</p>
+ * <p><code>BulkMaxBytes</code> is compared with the UTF-8 size of the
+ * queued sources</p>
+ * @see https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-bulk.html
+ */
+public class BulkIndexer {
+	private ProviderEnvironment environment;
+	private Client client;
+	private IBulkListener listener;
+	private final int maxActions;
+	private final long maxBytes;
+	private final long flushIntervalMillis;
+	private final Object lock = new Object();
+	/** held from taking a batch until its cache is settled; taken before <code>lock</code> */
+	private final Object flushLock = new Object();
+	private List<BulkableAction> pending;
+	/** id, index and, for index and update actions, INDEXED; parallel to <code>pending</code> */
+	private List<String[]> pendingKeys;
+	/** the node of each index action, else <code>null</code>; parallel to <code>pending</code> */
+	private List<JSONObject> pendingNodes;
+	private long pendingBytes = 0;
+	private long lastFlush;
+	private ScheduledExecutorService scheduler = null;
+	private boolean isClosed = false;
+	//NOTE we support just one type
+	private final String _TYPE = "core";
+	/** rough size of an action's metadata line */
+	private static final int ACTION_OVERHEAD = 100;
+	private static final String INDEXED = "index";
+
+	/**
+	 * @param env
+	 * @param c
+	 * @param maxActions flush when this many actions are queued
+	 * @param maxBytes flush when queued sources reach this many bytes
+	 * @param flushIntervalMillis flush this long after the last flush; <code>0</code> disables
+	 * @param l can be <code>null</code>
+	 */
+	public BulkIndexer(ProviderEnvironment env, Client c, int maxActions, long maxBytes,
+			long flushIntervalMillis, IBulkListener l) {
+		environment = env;
+		client = c;
+		this.maxActions = maxActions;
+		this.maxBytes = maxBytes;
+		this.flushIntervalMillis = flushIntervalMillis;
+		listener = l;
+		pending = new ArrayList<BulkableAction>();
+		pendingKeys = new ArrayList<String[]>();
+		pendingNodes = new ArrayList<JSONObject>();
+		lastFlush = System.currentTimeMillis();
+		if (flushIntervalMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "BulkIndexer");
+				t.setDaemon(true);
+				return t;
+			});
+			long period = Math.max(1, flushIntervalMillis / 2);
+			scheduler.scheduleWithFixedDelay(() -> flushIfStale(), period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Queue <code>object</code> for indexing
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @return carries the outcome of a flush if this action triggered one
+	 */
+	public IResult indexNode(String id, String index, JSONObject object) {
+		String source = object.toJSONString();
+		Index _index = new Index.Builder(source)
+				.index(index)
+				.type(_TYPE)
+				.id(id)
+				.build();
+		client.evictNode(id, index);
+		return enqueue(_index, id, index, object, Client.utf8Length(source));
+	}
+
+	/**
+	 * Queue a partial update; <code>object</code> is a change script
+	 * as in {@link Client#partialUpdateNode(String, String, JSONObject)}
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @return carries the outcome of a flush if this action triggered one
+	 */
+	public IResult partialUpdateNode(String id, String index, JSONObject object) {
+		String script = object.toJSONString();
+		Update b = new Update.Builder(script)
+				.index(index)
+				.type(_TYPE)
+				.id(id)
+				.build();
+		client.evictNode(id, index);
+		return enqueue(b, id, index, null, Client.utf8Length(script));
+	}
+
+	/**
+	 * Queue a delete
+	 * @param id
+	 * @param index
+	 * @return carries the outcome of a flush if this action triggered one
+	 */
+	public IResult deleteNode(String id, String index) {
+		Delete d = new Delete.Builder(id)
+				.index(index)
+				.type(_TYPE)
+				.build();
+		client.evictNode(id, index);
+		return enqueue(d, id, index, null, 0);
+	}
+
+	/**
+	 * Send everything queued so far, after any bulk request already
+	 * being sent
+	 * @return one error string per failed item; result object is
+	 * a <code>List<String></code> of failed ids
+	 */
+	public IResult flush() {
+		List<BulkableAction> actions;
+		List<String[]> keys;
+		List<JSONObject> nodes;
+		synchronized (flushLock) {
+			synchronized (lock) {
+				actions = pending;
+				keys = pendingKeys;
+				nodes = pendingNodes;
+				pending = new ArrayList<BulkableAction>();
+				pendingKeys = new ArrayList<String[]>();
+				pendingNodes = new ArrayList<JSONObject>();
+				pendingBytes = 0;
+				lastFlush = System.currentTimeMillis();
+			}
+			return execute(actions, keys, nodes);
+		}
+	}
+
+	/**
+	 * Flush and stop the flush timer; further actions are rejected
+	 * @return
+	 */
+	public IResult close() {
+		synchronized (lock) {
+			isClosed = true;
+		}
+		if (scheduler != null)
+			scheduler.shutdown();
+		return flush();
+	}
+
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	/**
+	 * @param action
+	 * @param id
+	 * @param index
+	 * @param node to cache once indexed; <code>null</code> for updates and deletes
+	 * @param size source bytes
+	 * @return
+	 */
+	private IResult enqueue(BulkableAction action, String id, String index, JSONObject node, int size) {
+		boolean mustFlush;
+		synchronized (lock) {
+			if (isClosed) {
+				IResult result = new ResultPojo();
+				result.addErrorString("BulkIndexer closed: "+id);
+				return result;
+			}
+			pending.add(action);
+			pendingKeys.add(new String[] {id, index, action instanceof Delete ? null : INDEXED});
+			pendingNodes.add(node);
+			pendingBytes += size + ACTION_OVERHEAD;
+			mustFlush = pending.size() >= maxActions || pendingBytes >= maxBytes;
+		}
+		if (mustFlush)
+			return thresholdFlush();
+		return new ResultPojo();
+	}
+
+	private void flushIfStale() {
+		boolean mustFlush;
+		synchronized (lock) {
+			mustFlush = !pending.isEmpty() &&
+					(System.currentTimeMillis() - lastFlush) >= flushIntervalMillis;
+		}
+		if (mustFlush)
+			thresholdFlush();
+	}
+
+	/**
+	 * A flush a size or time threshold triggered, reported to the listener
+	 * @return
+	 */
+	private IResult thresholdFlush() {
+		IResult result = flush();
+		if (listener != null)
+			listener.afterFlush(result);
+		else if (result.hasError())
+			environment.logError("BulkIndexer "+result.getErrorString(), null);
+		return result;
+	}
+
+	/**
+	 * Tell the {@link Client} about what a bulk request wrote
+	 * @param keys
+	 */
+	private void markWritten(List<String[]> keys) {
+		Set<String> indices = new HashSet<String>();
+		Iterator<String[]> itr = keys.iterator();
+		String [] key;
+		while (itr.hasNext()) {
+			key = itr.next();
+			indices.add(key[1]);
+			// a failed item only costs a false positive; an update may be an upsert
+			if (key[2] != null)
+				client.noteIndexed(key[1], key[0]);
+		}
+		Iterator<String> itx = indices.iterator();
+		while (itx.hasNext())
+			client.markWritten(itx.next());
+	}
+
+	/**
+	 * Cache each indexed node whose item succeeded; evict every other
+	 * node, as a read during the request may have cached the old one
+	 * @param keys
+	 * @param nodes
+	 * @param failed ids of failed items
+	 */
+	private void settleCache(List<String[]> keys, List<JSONObject> nodes, List<String> failed) {
+		Set<String> bad = new HashSet<String>(failed);
+		String [] key;
+		JSONObject node;
+		for (int i=0; i<keys.size(); i++) {
+			key = keys.get(i);
+			node = nodes.get(i);
+			if (node != null && !bad.contains(key[0]))
+				client.cacheNode(key[0], key[1], node);
+			else
+				client.evictNode(key[0], key[1]);
+		}
+	}
+
+	private IResult execute(List<BulkableAction> actions, List<String[]> keys, List<JSONObject> nodes) {
+		IResult result = new ResultPojo();
+		List<String> failed = new ArrayList<String>();
+		result.setResultObject(failed);
+		if (actions.isEmpty())
+			return result;
+		Map<String, WriteJournal> journals = enterWrites(keys);
+		try {
+			Bulk bulk = new Bulk.Builder()
+					.defaultType(_TYPE)
+					.addAction(actions)
+					.build();
+			ClientMetrics metrics = client.getMetrics();
+			long t = metrics.begin();
+			BulkResult br = client.getJestClient().execute(bulk);
+			metrics.end(t, OperationTracer.BULK, "_all", null, -1, -1);
+			markWritten(keys);
+			List<BulkResult.BulkResultItem> items = br.getFailedItems();
+			if (items != null && !items.isEmpty()) {
+				Iterator<BulkResult.BulkResultItem> itr = items.iterator();
+				BulkResult.BulkResultItem item;
+				while (itr.hasNext()) {
+					item = itr.next();
+					failed.add(item.id);
+					result.addErrorString(item.operation+" "+item.id+": "+item.status+" "+item.error);
+				}
+			} else if (!br.isSucceeded()) {
+				// refused as a whole
+				Iterator<String[]> itr = keys.iterator();
+				while (itr.hasNext())
+					failed.add(itr.next()[0]);
+				result.addErrorString((br.getErrorMessage() != null) ? br.getErrorMessage()
+						: "Bulk request failed: "+br.getResponseCode());
+			}
+			settleCache(keys, nodes, failed);
+		} catch (Exception e) {
+			// the whole request failed
+			client.getMetrics().error(OperationTracer.BULK);
+			Iterator<String[]> itr = keys.iterator();
+			String [] key;
+			while (itr.hasNext()) {
+				key = itr.next();
+				failed.add(key[0]);
+				client.evictNode(key[0], key[1]);
+			}
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		} finally {
+			exitWrites(journals, keys);
+		}
+		return result;
+	}
+
+	/**
+	 * Begin one write per index, journaled if a {@link Reindexer} is
+	 * copying it
+	 * @param keys
+	 * @return can return <code>null</code>
+	 */
+	private Map<String, WriteJournal> enterWrites(List<String[]> keys) {
+		Map<String, WriteJournal> result = null;
+		Iterator<String[]> itr = keys.iterator();
+		String index;
+		WriteJournal j;
+		while (itr.hasNext()) {
+			index = itr.next()[1];
+			if (result != null && result.containsKey(index))
+				continue;
+			j = client.enterWrite(index);
+			if (j != null) {
+				if (result == null)
+					result = new HashMap<String, WriteJournal>();
+				result.put(index, j);
+			}
+		}
+		return result;
+	}
+
+	private void exitWrites(Map<String, WriteJournal> journals, List<String[]> keys) {
+		if (journals == null)
+			return;
+		Iterator<String[]> itr = keys.iterator();
+		String [] key;
+		WriteJournal j;
+		while (itr.hasNext()) {
+			key = itr.next();
+			j = journals.get(key[1]);
+			if (j != null)
+				j.add(key[0]);
+		}
+		Iterator<WriteJournal> itj = journals.values().iterator();
+		while (itj.hasNext())
+			client.exitWrite(itj.next(), null);
+	}
+}
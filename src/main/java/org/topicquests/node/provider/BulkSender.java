@@ -0,0 +1,271 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author park
+ * <p>Sends prebuilt <code>_bulk</code> bodies through the {@link Client}'s
+ * {@link JsonTransport} for {@link Reindexer} and {@link Importer},
+ * counting items into a {@link Progress}</p>
+ * <p>Unlike {@link BulkIndexer}, nothing is cached or journaled here;
+ * {@link Reindexer} copies to an index no reader is using yet, and
+ * {@link Importer} evicts and journals around each request itself</p>
+ * <p>A request, or the items in it, which ElasticSearch refused as
+ * overloaded or unavailable is sent again up to <code>BulkRetries</code>
+ * times, waiting <code>BulkRetryMillis</code> at first and twice as long
+ * each time after</p>
+ */
+class BulkSender {
+	private ProviderEnvironment environment;
+	private Client client;
+	private JsonTransport transport;
+	/** metrics name for requests to no one index */
+	private String label;
+	private final int retries;
+	private final long retryMillis;
+	//NOTE we support just one type
+	private static final String _TYPE = "core";
+
+	/**
+	 * @param env
+	 * @param c
+	 * @param label
+	 */
+	BulkSender(ProviderEnvironment env, Client c, String label) {
+		environment = env;
+		this.label = label;
+		client = c;
+		transport = c.getTransport();
+		retries = getIntProperty("BulkRetries", 3);
+		retryMillis = getIntProperty("BulkRetryMillis", 100);
+	}
+
+	/**
+	 * Append an <code>index</code> action and its source
+	 * @param buf
+	 * @param index <code>null</code> to use the request's index
+	 * @param id
+	 * @param source
+	 */
+	static void appendIndex(StringBuilder buf, String index, String id, JSONObject source) {
+		appendAction(buf, "index", index, id);
+		buf.append(source.toJSONString()).append('\n');
+	}
+
+	/**
+	 * @param buf
+	 * @param op
+	 * @param index <code>null</code> to use the request's index
+	 * @param id
+	 */
+	static void appendAction(StringBuilder buf, String op, String index, String id) {
+		JSONObject meta = new JSONObject();
+		if (index != null) {
+			meta.put("_index", index);
+			meta.put("_type", _TYPE);
+		}
+		meta.put("_id", id);
+		JSONObject action = new JSONObject();
+		action.put(op, meta);
+		buf.append(action.toJSONString()).append('\n');
+	}
+
+	/**
+	 * @param body
+	 * @param size actions in <code>body</code>
+	 * @param progress
+	 */
+	void send(String body, int size, Progress progress) {
+		send(null, body.getBytes(StandardCharsets.UTF_8), size, progress, null);
+	}
+
+	/**
+	 * Send one <code>_bulk</code> request, counting its failed items;
+	 * a delete of a node which is not there is not a failure
+	 * @param index for actions which name none, can be <code>null</code>
+	 * @param body
+	 * @param size actions in <code>body</code>
+	 * @param progress
+	 * @param refused if not <code>null</code>, receives each action which
+	 *  failed for good, as it was in <code>body</code>, so it can be sent again
+	 * @return <code>false</code> if the request as a whole failed
+	 */
+	boolean send(String index, byte [] body, int size, Progress progress, ByteArrayOutputStream refused) {
+		ClientMetrics metrics = client.getMetrics();
+		String path = (index == null) ? "/_bulk" : "/"+JsonTransport.encodeId(index)+"/"+_TYPE+"/_bulk";
+		for (int attempt=0; ; attempt++) {
+			boolean last = attempt >= retries;
+			long t = metrics.begin();
+			JsonTransport.Response rs;
+			try {
+				rs = transport.execute(JsonTransport.POST, path, body);
+				metrics.end(t, OperationTracer.BULK, (index == null) ? label : index, null, body.length, rs.length);
+			} catch (IOException e) {
+				metrics.error(OperationTracer.BULK);
+				if (!last && backOff(attempt))
+					continue;
+				progress.add(0, size, e.getMessage());
+				environment.logError("BulkSender "+e.getMessage(), e);
+				return false;
+			}
+			if (!rs.isSucceeded()) {
+				metrics.error(OperationTracer.BULK);
+				if (!last && isTransient(rs.status) && backOff(attempt))
+					continue;
+				progress.add(0, size, rs.getErrorMessage());
+				environment.logError("BulkSender "+rs.getErrorMessage(), null);
+				return false;
+			}
+			String error = null;
+			// actions refused for now, to send again
+			List<Integer> again = new ArrayList<Integer>();
+			List<Integer> bad = new ArrayList<Integer>();
+			if (rs.body != null && Boolean.TRUE.equals(rs.body.get("errors"))) {
+				JSONArray items = (JSONArray)rs.body.get("items");
+				JSONObject item;
+				int status;
+				for (int i=0; i<items.size(); i++) {
+					item = (JSONObject)((JSONObject)items.get(i)).values().iterator().next();
+					status = (item.get("status") instanceof Number) ? ((Number)item.get("status")).intValue() : 0;
+					if (item.get("error") == null || status == 404)
+						continue;
+					if (!last && isTransient(status))
+						again.add(i);
+					else {
+						bad.add(i);
+						if (error == null)
+							error = item.get("_id")+" "+item.get("error");
+					}
+				}
+			}
+			progress.add(size - bad.size() - again.size(), bad.size(), error);
+			if (refused != null && !bad.isEmpty())
+				keep(refused, body, bad);
+			if (again.isEmpty())
+				return true;
+			if (!backOff(attempt)) {
+				progress.add(0, again.size(), "interrupted before retry");
+				if (refused != null)
+					keep(refused, body, again);
+				return true;
+			}
+			body = select(body, again);
+			size = again.size();
+		}
+	}
+
+	/**
+	 * @param status
+	 * @return whether a request or item refused with <code>status</code>
+	 *  may succeed if sent again
+	 */
+	static boolean isTransient(int status) {
+		return status == 429 || status == 502 || status == 503 || status == 504;
+	}
+
+	/**
+	 * Wait before sending again
+	 * @param attempt
+	 * @return <code>false</code> if interrupted
+	 */
+	private boolean backOff(int attempt) {
+		try {
+			Thread.sleep(retryMillis << Math.min(attempt, 10));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @param body
+	 * @param actions indices, ascending, of the actions to keep
+	 * @return a body of just those actions; each is its action line,
+	 *  then a source line unless it is a <code>delete</code>
+	 */
+	static byte [] select(byte [] body, List<Integer> actions) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+		JSONParser parser = new JSONParser(JSONParser.MODE_JSON_SIMPLE);
+		int pos = 0, action = 0, next = 0, end, stop;
+		while (pos < body.length && next < actions.size()) {
+			end = lineEnd(body, pos);
+			stop = end;
+			try {
+				JSONObject meta = (JSONObject)parser.parse(new String(body, pos, end - pos, StandardCharsets.UTF_8));
+				if (!meta.containsKey("delete"))
+					stop = lineEnd(body, end);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Bad bulk action at byte "+pos, e);
+			}
+			if (actions.get(next) == action) {
+				out.write(body, pos, stop - pos);
+				next++;
+			}
+			pos = stop;
+			action++;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Append the actions numbered <code>actions</code> of <code>body</code>
+	 * to <code>out</code>
+	 */
+	private static void keep(ByteArrayOutputStream out, byte [] body, List<Integer> actions) {
+		byte [] b = select(body, actions);
+		out.write(b, 0, b.length);
+	}
+
+	/**
+	 * The <code>_id</code> of each action in <code>body</code>; only
+	 * action lines are parsed
+	 * @param body
+	 * @return
+	 */
+	static List<String> ids(byte [] body) {
+		List<String> result = new ArrayList<String>();
+		JSONParser parser = new JSONParser(JSONParser.MODE_JSON_SIMPLE);
+		int pos = 0, end;
+		JSONObject meta;
+		while (pos < body.length) {
+			end = lineEnd(body, pos);
+			try {
+				meta = (JSONObject)parser.parse(new String(body, pos, end - pos, StandardCharsets.UTF_8));
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Bad bulk action at byte "+pos, e);
+			}
+			result.add((String)((JSONObject)meta.values().iterator().next()).get("_id"));
+			pos = meta.containsKey("delete") ? end : lineEnd(body, end);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the index just past the newline which ends the line at <code>from</code>
+	 */
+	private static int lineEnd(byte [] body, int from) {
+		for (int i=from; i<body.length; i++) {
+			if (body[i] == '\n')
+				return i + 1;
+		}
+		return body.length;
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		String v = environment.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Integer.parseInt(v.trim());
+	}
+}
@@ -4,40 +4,45 @@
 package org.topicquests.node.provider;
 
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import io.searchbox.indices.Refresh;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.settings.Settings.Builder;
-import org.topicquests.support.util.LRUCache;
+import org.topicquests.es.util.QueryTemplate;
 import org.topicquests.support.ResultPojo;
 import org.topicquests.support.api.IResult;
+import org.topicquests.node.provider.api.IBulkListener;
+import org.topicquests.node.provider.api.IDocumentCache;
 import org.topicquests.node.provider.api.IErrorMessages;
+import org.topicquests.node.provider.api.IJsonCodec;
 import org.topicquests.node.provider.api.IVersionable;
 import org.topicquests.support.util.ConfigurationHelper;
 import org.topicquests.support.util.TextFileHandler;
+import io.searchbox.action.AbstractAction;
+import io.searchbox.action.Action;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
 import io.searchbox.client.config.HttpClientConfig;
-import io.searchbox.core.Count;
-import io.searchbox.core.CountResult;
 import io.searchbox.core.Delete;
-import io.searchbox.core.Doc;
-import io.searchbox.core.DocumentResult;
-import io.searchbox.core.Get;
-import io.searchbox.core.Index;
-import io.searchbox.core.MultiGet;
 import io.searchbox.core.MultiSearch;
 import io.searchbox.core.MultiSearchResult;
 //import io.searchbox.core.MultiSearch;
 import io.searchbox.core.Search;
 import io.searchbox.core.SearchResult;
-import io.searchbox.core.Update;
-import io.searchbox.indices.CreateIndex;
-import io.searchbox.indices.IndicesExists;
-import io.searchbox.indices.mapping.PutMapping;
 import io.searchbox.params.Parameters;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
@@ -54,41 +59,79 @@ import net.minidev.json.parser.JSONParser;
 public class Client {
 	private ProviderEnvironment environment;
 	private JestClient client;
+	// document reads and writes; Jest handles the rest
+	private JsonTransport transport;
+	private ClientMetrics metrics;
 	private TextFileHandler handler;
 	// cache for freshly indexed or updated (reindexed) nodes
-	private LRUCache objectCache;
+	private IDocumentCache objectCache;
+	private ConsistencyMode consistency;
+	// non-null only for ConsistencyMode.INTERVAL
+	private RefreshScheduler refresher = null;
+	private boolean refreshOnRead;
+	// non-null only if ExistenceFilterEnabled
+	private ExistenceIndex existence = null;
+	// concurrent lookups of one node share a single GET
+	private final RequestCoalescer<JSONObject> readCoalescer = new RequestCoalescer<JSONObject>();
+	// non-null only if GetBatchEnabled
+	private GetBatcher batcher = null;
+	// non-null only if HotKeysFile is set
+	private HotKeyTracker hotKeys = null;
+	private IndexBootstrap bootstrap = null;
+	/** writes being journaled for a reindex, by alias */
+	private final Map<String, WriteJournal> journals = new ConcurrentHashMap<String, WriteJournal>();
+	/** counts writes which no journal sees, until a journal opens */
+	private final AtomicReference<WriteJournal> unjournaled = new AtomicReference<WriteJournal>(new WriteJournal(false));
 	//NOTE we support just one type
 	private final String _TYPE = "core";
+	private static final String REALTIME = "realtime";
 	/**
 	 * 
 	 */
 	public Client(ProviderEnvironment env) {
+		long started = System.nanoTime();
 		environment = env;
-		objectCache = new LRUCache(1024); //That should be enough to buy time
+		objectCache = createCache();
+		metrics = new ClientMetrics(env, objectCache);
 		Collection<String> uris = getClusters();
 		JestClientFactory factory = new JestClientFactory();
         factory.setHttpClientConfig(new HttpClientConfig.Builder(uris)
                 .multiThreaded(true)
+                .requestCompressionEnabled(isBulkCompressed())
                 //.readTimeout(10000)
                 .defaultMaxTotalConnectionPerRoute(50)
                 .maxTotalConnection(80)
                 .build());
         client = factory.getObject();
+        transport = createTransport(uris);
         handler = new TextFileHandler();
-        validateIndex();
+        initConsistency();
+        String lazy = environment.getStringProperty("IndexBootstrapLazy");
+        bootstrapIndices(getIndexMappings(), lazy != null && Boolean.parseBoolean(lazy.trim()));
+        initExistence();
+        initBatcher();
+        initHotKeys();
+        metrics.recordStartup((System.nanoTime() - started) / 1000000);
         System.out.println("Client "+client);
 	}
 	
 	public Client(ProviderEnvironment env, String index, JSONObject mappings) {
+		long started = System.nanoTime();
 		environment = env;
+		objectCache = createCache();
+		metrics = new ClientMetrics(env, objectCache);
 		Collection<String> uris = getClusters();
 		JestClientFactory factory = new JestClientFactory();
         factory.setHttpClientConfig(new HttpClientConfig.Builder(uris)
                 .multiThreaded(true)
+                .requestCompressionEnabled(isBulkCompressed())
                 .build());
         client = factory.getObject();
+        transport = createTransport(uris);
         handler = new TextFileHandler();
-        createIndex(index, mappings);
+        initConsistency();
+        bootstrapIndices(Collections.singletonMap(index, mappings), false);
+        metrics.recordStartup((System.nanoTime() - started) / 1000000);
         System.out.println("Client "+client);
 	}
 	
@@ -101,55 +144,169 @@ public class Client {
 	 * @return
 	 */
 	public IResult indexNode(String id, String index, JSONObject object) {
-		environment.logDebug("Client.indexNode "+id+" | "+object);
-		System.out.println("Client.indexNode "+id+" | "+object.keySet());
+		return indexNode(id, index, object, null);
+	}
+
+	/**
+	 * Index <code>object</code>, recording it in <code>session</code>
+	 * so that the session's searches see it
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public IResult indexNode(String id, String index, JSONObject object, WriteSession session) {
+		return indexNode(id, index, object, session, null);
+	}
+
+	/**
+	 * Index <code>object</code>, under the conditions of <code>versioning</code>
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @param session can be <code>null</code>
+	 * @param versioning query parameters, e.g. <code>version=3</code>, which
+	 *  a version conflict refuses; <code>null</code> for none
+	 * @return
+	 */
+	private IResult indexNode(String id, String index, JSONObject object, WriteSession session, String versioning) {
 		IResult result = new ResultPojo();
+		WriteJournal journal = enterWrite(index);
+		long t = metrics.begin();
 		try {
-			Index _index = new Index.Builder(object)
-					.index(index)
-					.type(_TYPE)
-					.id(id)
-					.setParameter(Parameters.REFRESH, true)
-					.build();
-			
-			client.execute(_index);
+			byte [] body = transport.getCodec().encode(object);
+			String path = docPath(index, id)+refreshParam();
+			if (versioning != null)
+				path += (path.indexOf('?') < 0 ? "?" : "&") + versioning;
+			JsonTransport.Response rs = transport.execute(JsonTransport.PUT, path, body);
+			metrics.end(t, OperationTracer.INDEX, index, id, body.length, rs.length);
+			if (rs.status == 409 && versioning != null) {
+				//OptimisticLockException: the indexed node is newer
+				result.setResultObjectA(fetchNode(id, index));
+				result.addErrorString(IErrorMessages.OPTIMISTIC_LOCK_EXCEPTION);
+				return result;
+			}
+			if (!rs.isSucceeded())
+				throw new IOException(rs.getErrorMessage());
 			//add when we index a node
-			objectCache.add(id, object);
-			System.out.println("CLIENTCACHE "+object.keySet());
+			cacheNode(id, index, object, body);
+			noteIndexed(index, id);
+			recordWrite(index, session);
 		} catch (Exception e) {
+			metrics.error(OperationTracer.INDEX);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
+		} finally {
+			exitWrite(journal, id);
 		}
 		return result;
 	}
 
+	/**
+	 * <p>Replace a node: one index request, or two round trips if
+	 * <code>checkVersion</code></p>
+	 * <p>If <code>checkVersion</code>, the node is first read with a
+	 * realtime GET, and the write refused if the indexed node's
+	 * {@link IVersionable#VERSION_PROPERTY} is greater than
+	 * <code>object</code>'s; ElasticSearch cannot make that comparison for
+	 * nodes not written with external versions. The write itself is then
+	 * conditional, so a write which lands in between is not lost either:
+	 * a node whose ElasticSearch version is its <code>_ver</code>, as an
+	 * earlier versioned write leaves it, is written with <code>_ver</code>
+	 * as an external version; any other node, e.g. one indexed without
+	 * versions, only if its ElasticSearch version is still the one read;
+	 * a node not yet indexed only if it still is not. A refused write's
+	 * result carries {@link IErrorMessages#OPTIMISTIC_LOCK_EXCEPTION} and
+	 * the current node in <code>resultObjectA</code>.</p>
+	 * @param id
+	 * @param index
+	 * @param object must carry a numeric <code>_ver</code> if <code>checkVersion</code>
+	 * @param checkVersion
+	 * @return
+	 */
 	public IResult updateFullNode(String id, String index, JSONObject object, boolean checkVersion) {
-		System.out.println("Client.updateFull "+id+" "+object.keySet());
-		IResult result = null;
-		objectCache.remove(id);
-		if (checkVersion) {
-			result = this.compareVersions(id, index, object);
-			if (result.getResultObjectA() != null)
-				return result; // we had an OptimisticLockException
-			//Returns the current version in resultObjectA
-			//Otherwise, continue using result, including any error messages
-		}
-		//otherwise, just go ahead and update
-		result = new ResultPojo();
-		IResult r = this.deleteNode(id, index);
-		if (r.hasError())
-			result.addErrorString(r.getErrorString());
-		r = this.indexNode(id, index, object);
-		if (r.hasError())
-			result.addErrorString(r.getErrorString());
+		return updateFullNode(id, index, object, checkVersion, null);
+	}
+
+	/**
+	 * {@link #updateFullNode(String, String, JSONObject, boolean)} recording
+	 * the write in <code>session</code>
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @param checkVersion
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public IResult updateFullNode(String id, String index, JSONObject object, boolean checkVersion, WriteSession session) {
+		evictNode(id, index);
+		if (!checkVersion)
+			return indexNode(id, index, object, session, null);
+		IResult result = new ResultPojo();
+		Object nv = object.get(IVersionable.VERSION_PROPERTY);
+		if (nv == null) {
+			result.addErrorString(IErrorMessages.MISSING_VERSION_PROPERTY+": "+id);
+			return result;
+		}
+		Long version = parseVersion(nv);
+		if (version == null) {
+			result.addErrorString(IErrorMessages.BAD_VERSION_PROPERTY+": "+id+" "+nv);
+			return result;
+		}
+		try {
+			long t = metrics.begin();
+			JsonTransport.Response rs = transport.execute(JsonTransport.GET,
+					docPath(index, id)+"?"+REALTIME+"=true", null);
+			metrics.end(t, OperationTracer.GET, index, id, -1, rs.length);
+			if (!rs.isSucceeded() && rs.status != 404)
+				throw new IOException(rs.getErrorMessage());
+			JSONObject current = sourceFromGet(rs.body);
+			if (current == null)
+				return indexNode(id, index, object, session, "op_type=create");
+			Long old = parseVersion(current.get(IVersionable.VERSION_PROPERTY));
+			if (old != null && version.longValue() < old.longValue()) {
+				//OptimisticLockException: new is less than old
+				result.setResultObjectA(current);
+				result.addErrorString(IErrorMessages.OPTIMISTIC_LOCK_EXCEPTION);
+				return result;
+			}
+			long esVersion = ((Number)rs.body.get("_version")).longValue();
+			if (old != null && old.longValue() == esVersion)
+				return indexNode(id, index, object, session, "version="+version+"&version_type=external_gte");
+			return indexNode(id, index, object, session, "version="+esVersion);
+		} catch (Exception e) {
+			metrics.error(OperationTracer.GET);
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		}
 		return result;
 	}
 
+	/**
+	 * @param v a <code>_ver</code> value, String or number
+	 * @return <code>null</code> if missing or not a whole number
+	 */
+	private static Long parseVersion(Object v) {
+		if (v == null)
+			return null;
+		try {
+			return Long.valueOf(v.toString().trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * <p>Update an already-indexed node</p>
 	 * <p>NOTE: <code>object</code> is <em>not</em> a full document.
 	 * Rather, it is a change script.</p>
+	 * <p>The updated node is asked for in the response and cached, so
+	 * reading it back is served from memory. Should ElasticSearch not
+	 * return it, a partial <code>doc</code> is merged into the cached node
+	 * instead.</p>
 	 * <p> IF <code>checkVersion</code> is <code>true</code>, <code>object</code>
 	 * <em>must include</code> the new version value</p>
 	 * @see https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-update.html
@@ -159,21 +316,60 @@ public class Client {
 	 * @return
 	 */
 	public IResult partialUpdateNode(String id, String index, JSONObject object) {
-		objectCache.remove(id);
+		return partialUpdateNode(id, index, object, null);
+	}
+
+	/**
+	 * {@link #partialUpdateNode(String, String, JSONObject)} recording
+	 * the write in <code>session</code>
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public IResult partialUpdateNode(String id, String index, JSONObject object, WriteSession session) {
+		JSONObject old = objectCache.get(index, id);
+		evictNode(id, index);
 		IResult result = new ResultPojo();
+		WriteJournal journal = enterWrite(index);
+		long t = metrics.begin();
+		JSONObject node = null;
 		try {
-			
-			Update b = new Update.Builder(object.toJSONString())
-				.index(index)
-				.type(_TYPE)
-				.id(id)
-				.build();
-			DocumentResult dr = client.execute(b);
-			System.out.println("CLIENT_UPDATE "+id+" "+dr.getErrorMessage());
+			byte [] body = transport.getCodec().encode(object);
+			String path = docPath(index, id)+"/_update"+refreshParam();
+			// fields=_source works only up to ElasticSearch 5.x, where it is
+			// deprecated; 6.0 and later reject it and need _source=true
+			path += (path.indexOf('?') < 0 ? "?" : "&") + "fields=_source";
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST, path, body);
+			metrics.end(t, OperationTracer.UPDATE, index, id, body.length, rs.length);
+			if (!rs.isSucceeded()) {
+				metrics.error(OperationTracer.UPDATE);
+				result.addErrorString(rs.getErrorMessage());
+				environment.logError("Client.partialUpdateNode "+id+" "+rs.getErrorMessage(), null);
+			} else {
+				Object get = (rs.body == null) ? null : rs.body.get("get");
+				if (get instanceof JSONObject)
+					node = sourceFromGet((JSONObject)get);
+				if (node == null)
+					node = mergeLocally(old, object);
+				if (node != null)
+					cacheNode(id, index, node);
+				// an upsert may have created it
+				noteIndexed(index, id);
+				recordWrite(index, session);
+			}
 		} catch (Exception e) {
+			metrics.error(OperationTracer.UPDATE);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
+		} finally {
+			// a read between the first eviction and the update may have
+			// cached the node as it was
+			if (node == null)
+				evictNode(id, index);
+			exitWrite(journal, id);
 		}
 		return result;
 	}
@@ -185,18 +381,42 @@ public class Client {
 	 * @return
 	 */
 	public IResult deleteNode(String id, String index) {
-		objectCache.remove(id);
+		return deleteNode(id, index, null);
+	}
+
+	/**
+	 * {@link #deleteNode(String, String)} recording the delete in <code>session</code>
+	 * @param id
+	 * @param index
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public IResult deleteNode(String id, String index, WriteSession session) {
+		evictNode(id, index);
 		IResult result = new ResultPojo();
+		WriteJournal journal = enterWrite(index);
+		long t = metrics.begin();
 		try {
-			Delete d = new Delete.Builder(id)
+			Delete.Builder d = new Delete.Builder(id)
             	.index(index)
-            	.type(_TYPE)
-            	.build();
-			client.execute(d);
+            	.type(_TYPE);
+			applyRefreshPolicy(d);
+			JestResult rs = client.execute(d.build());
+			metrics.end(t, OperationTracer.DELETE, index, id, -1, -1);
+			// a node already gone is deleted all the same
+			if (!rs.isSucceeded() && rs.getResponseCode() != 404)
+				throw new IOException(rs.getErrorMessage());
+			recordWrite(index, session);
 		} catch (Exception e) {
+			metrics.error(OperationTracer.DELETE);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
+		} finally {
+			// a read between the first eviction and the delete may have
+			// cached the node as it was
+			evictNode(id, index);
+			exitWrite(journal, id);
 		}
 		return result;
 	}
@@ -210,29 +430,18 @@ public class Client {
 	public IResult existsNode(String id, String index) {
 		IResult result = new ResultPojo();
 		//first, see if it's cached locally
-		if (objectCache.get(id) != null) {
+		if (objectCache.get(index, id) != null) {
 			result.setResultObject(new Boolean(true));
 			return result;
 		}
+		if (existence != null && existence.isDefinitelyAbsent(index, id)) {
+			result.setResultObject(new Boolean(false));
+			return result;
+		}
 		try {
-			Get get = new Get.Builder(index, id)
-				.type(_TYPE)
-				.build();
-
-			JestResult rs = client.execute(get);
-			String n = rs.getJsonString();
-			environment.logDebug("Client.getNodeAsJSONObject "+n);
-			JSONObject jo = null;
-			if (n != null) {
-				jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(n);
-			}
-			System.out.println("Client.getNodeAsJSONObject "+n);
-			Boolean t = (Boolean)jo.get("found");
-			if (t) {
-				result.setResultObject(new Boolean(true));
-			} else 
-				result.setResultObject(new Boolean(false));
+			result.setResultObject(new Boolean(fetchNode(id, index) != null));
 		} catch (Exception e) {
+			metrics.error(OperationTracer.GET);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();
@@ -241,6 +450,62 @@ public class Client {
 		return result;		
 	}
 	
+	/**
+	 * Batch {@link #existsNode(String, String)}: ids which are neither cached
+	 * nor ruled out by the {@link ExistenceIndex} are checked with one
+	 * source-less MultiGet
+	 * @param locators
+	 * @param index
+	 * @return <code>Map<String,Boolean></code> in the order of <code>locators</code>
+	 */
+	public IResult existsNodes(List<String> locators, String index) {
+		IResult result = new ResultPojo();
+		Map<String, Boolean> found = new LinkedHashMap<String, Boolean>();
+		result.setResultObject(found);
+		List<String> unknown = new ArrayList<String>();
+		Iterator<String>itr = locators.iterator();
+		String id;
+		while (itr.hasNext()) {
+			id = itr.next();
+			if (objectCache.get(index, id) != null)
+				found.put(id, Boolean.TRUE);
+			else if (existence != null && existence.isDefinitelyAbsent(index, id))
+				found.put(id, Boolean.FALSE);
+			else {
+				found.put(id, Boolean.FALSE);
+				unknown.add(id);
+			}
+		}
+		if (unknown.isEmpty())
+			return result;
+		long start = metrics.begin();
+		try {
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST,
+					typePath(index)+"/_mget?_source=false&realtime=true", idsBody(unknown));
+			metrics.end(start, OperationTracer.EXISTS, index, null, -1, rs.length);
+			JSONObject jo = rs.body;
+			if (jo != null) {
+				List<JSONObject>dx = (List<JSONObject>)jo.get("docs");
+				if (dx != null) {
+					Iterator<JSONObject>itx = dx.iterator();
+					Boolean t;
+					while (itx.hasNext()) {
+						jo = itx.next();
+						t = (Boolean)jo.get("found");
+						if (t != null && t.booleanValue())
+							found.put((String)jo.get("_id"), Boolean.TRUE);
+					}
+				}
+			}
+		} catch (Exception e) {
+			metrics.error(OperationTracer.EXISTS);
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		}
+		return result;
+	}
+
 	/**
 	 * Fetch a node identified by <code>id</code> and return it
 	 * as a {@link JSONObject}
@@ -249,41 +514,67 @@ public class Client {
 	 * @return can return a <code>null</code>result
 	 */
 	public IResult getNodeAsJSONObject(String id, String index) {
-		System.out.println("Client.getNodeAsJSONObject- "+id+" "+index);
 		IResult result = new ResultPojo();
+		recordRead(index, id);
 		//first, see if it's cached locally
-		JSONObject jo = (JSONObject)objectCache.get(id);
+		JSONObject jo = objectCache.get(index, id);
+		if (jo == null && existence != null && existence.isDefinitelyAbsent(index, id))
+			return result;
 		if (jo == null) {
 			try {
-				Get get = new Get.Builder(index, id)
-					.type(_TYPE)
-					.build();
-	
-				JestResult rs = client.execute(get);
-				String n = rs.getJsonString();
-				environment.logDebug("Client.getNodeAsJSONObject "+n);
-				if (n != null) {
-					jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(n);
-				}
-				System.out.println("Client.getNodeAsJSONObject "+n);
-				Boolean t = (Boolean)jo.get("found");
-				if (t) {
-					jo = (JSONObject)jo.get("_source");
-					environment.logDebug("Client.getNodeAsJSONObject-1 "+jo.toJSONString());
+				jo = fetchNode(id, index);
+				if (jo != null)
 					result.setResultObject(jo);
-				} 
 			} catch (Exception e) {
+				metrics.error(OperationTracer.GET);
 				result.addErrorString(e.getMessage());
 				environment.logError(e.getMessage(), e);
 				e.printStackTrace();			
 			}
-		} else {
-			System.out.println("Client.getNodeAsJSONObject2 "+id+" "+jo.keySet());
-		}
+		} else
+			result.setResultObject(jo);
 		
 		return result;
 	}
 
+	/**
+	 * {@link #getNodeAsJSONObject(String, String)} returning only the fields
+	 * named by <code>filter</code>; a node cached in full is projected locally
+	 * @param id
+	 * @param index
+	 * @param filter
+	 * @return a partial node, which is not cached
+	 */
+	public IResult getNodeAsJSONObject(String id, String index, SourceFilter filter) {
+		IResult result = new ResultPojo();
+		recordRead(index, id);
+		JSONObject jo = objectCache.get(index, id);
+		if (jo != null) {
+			result.setResultObject(filter.project(jo));
+			return result;
+		}
+		if (existence != null && existence.isDefinitelyAbsent(index, id))
+			return result;
+		String params = filter.toQueryString();
+		try {
+			// a partial node is never published to the cache
+			jo = readCoalescer.execute(cacheKey(index, id)+"?"+params, () -> {
+				long t = metrics.begin();
+				JsonTransport.Response rs = transport.execute(JsonTransport.GET,
+						docPath(index, id)+"?"+REALTIME+"=true&"+params, null);
+				metrics.end(t, OperationTracer.GET, index, id, -1, rs.length);
+				return sourceFromGet(rs);
+			}, null);
+			result.setResultObject(jo);
+		} catch (Exception e) {
+			metrics.error(OperationTracer.GET);
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();			
+		}
+		return result;
+	}
+
 	/**
 	 * Fetch a collection of nodes as identified by <code>locators</code>
 	 * @param locators
@@ -291,38 +582,44 @@ public class Client {
 	 * @return List<JSONObject> or null;
 	 */
 	public IResult multiGetNodes(List<String>locators, String index) {
+		return multiGetNodes(locators, index, null);
+	}
+
+	/**
+	 * {@link #multiGetNodes(List, String)} returning only the fields named
+	 * by <code>filter</code>
+	 * @param locators
+	 * @param index
+	 * @param filter can be <code>null</code> for whole nodes
+	 * @return List<JSONObject> or null;
+	 */
+	public IResult multiGetNodes(List<String>locators, String index, SourceFilter filter) {
 		IResult result = new ResultPojo();
 		result.setResultObject(null);
-		Collection<Doc> docs = new ArrayList<Doc>();
-		Iterator<String>itr = locators.iterator();
-		while (itr.hasNext()) {
-			docs.add(new Doc(index, _TYPE, itr.next()));
+		if (hotKeys != null) {
+			for (String id : locators)
+				hotKeys.record(index, id);
 		}
+		String path = typePath(index)+"/_mget";
+		if (filter != null)
+			path += "?"+filter.toQueryString();
+		long t = metrics.begin();
 		try {
-			MultiGet get = new MultiGet.Builder.ByDoc(docs).build();
-			JestResult rs = client.execute(get);
-			String n = rs.getJsonString();
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST,
+					path, idsBody(locators));
+			metrics.end(t, OperationTracer.MULTI_GET, index, null, -1, rs.length);
+			if (!rs.isSucceeded()) {
+				metrics.error(OperationTracer.MULTI_GET);
+				result.addErrorString(rs.getErrorMessage());
+			} else
+				result.setResultObject(sourcesFromMultiGet(rs.body));
 			//System.out.println("MGA "+n);
 			//MGA {"docs":
 			//[{"_index":"topics","_type":"core","_id":"TypeType","_version":2,"found":true,
 			//"_source":{"crDt":"2015-12-07T21:39:55-08:00","crtr":"SystemUser","lox":"TypeType","sIco":"/images/cogwheel_sm.png","isPrv":false,"_ver":"1449553195215","lEdDt":"2015-12-07T21:39:55-08:00","details":"Topic Map root type","label":"Type type","lIco":"/images/cogwheel.png","isFdrtd":false}},{"_index":"topics","_type":"core","_id":"ClassType","_version":2,"found":true,"_source":{"crtr":"SystemUser","_ver":"1449553198216","lEdDt":"2015-12-07T21:39:58-08:00","label":"Class type","isFdrtd":false,"trCl":["TypeType"],"crDt":"2015-12-07T21:39:58-08:00","sbOf":"TypeType","lox":"ClassType","sIco":"/images/cogwheel_sm.png","isPrv":false,"details":"Topic Map upper Class type","lIco":"/images/cogwheel.png"}},{"_index":"topics","_type":"core","_id":"NodeType","_version":1,"found":true,"_source":{"crtr":"SystemUser","_ver":"1448384289926","lEdDt":"2015-11-24T08:58:09-08:00","label":"ClassType","isFdrtd":false,"trCl":["TypeType","ClassType"],"crDt":"2015-11-24T08:58:09-08:00","sbOf":"ClassType","lox":"NodeType","sIco":"/images/cogwheel_sm.png","isPrv":false,"details":"Topic Map upper Node type","lIco":"/images/cogwheel.png"}}]}
 
-			if (n != null) {
-				JSONParser p = new JSONParser(JSONParser.MODE_JSON_SIMPLE);
-				JSONObject ja, jo = (JSONObject)p.parse(n);
-				List<JSONObject>dx = (List<JSONObject>)jo.get("docs");
-				if (dx != null) {
-					List<JSONObject>rslt = new ArrayList<>();
-					Iterator<JSONObject>itx = dx.iterator();
-					while (itx.hasNext()) {
-						jo = itx.next();
-						ja = (JSONObject)jo.get("_source");
-						rslt.add(ja);
-					}
-					result.setResultObject(rslt);
-				}
-			}
 		} catch (Exception e) {
+			metrics.error(OperationTracer.MULTI_GET);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
@@ -340,12 +637,18 @@ public class Client {
 		IResult result = new ResultPojo();
 		Collection<Search> l = new ArrayList<>();
 		Iterator<String>sis = query.iterator();
+		long requestBytes = 0;
+		String q;
 		while (sis.hasNext()) {
-			l.add(new Search.Builder(sis.next()).build());
+			q = sis.next();
+			requestBytes += utf8Length(q);
+			l.add(new Search.Builder(q).build());
 		}
+		long t = metrics.begin();
 		try {
 			 MultiSearch get = new MultiSearch.Builder(l).build();
 			 MultiSearchResult rslt = client.execute(get);
+			 metrics.end(t, OperationTracer.MULTI_SEARCH, index, null, requestBytes, -1);
 			 List<MultiSearchResult.MultiSearchResponse> responses = rslt.getResponses();
 			 if (responses != null && responses.size() > 0) {
 				 List<JSONObject>hits = new ArrayList<JSONObject>();
@@ -379,6 +682,7 @@ public class Client {
 			     }
 			 }
 		} catch (Exception e) {
+			metrics.error(OperationTracer.MULTI_SEARCH);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();						
@@ -396,15 +700,15 @@ public class Client {
 	 */
 	public IResult count(String query, String index) {
 		IResult result = new ResultPojo();
+		long t = metrics.begin();
 		try {
-			Count count = new Count.Builder()
-				.query(query)
-				.addIndex(index)
-				.addType(_TYPE).build();
-			CountResult rslt = client.execute(count);
-			Double d = rslt.getCount();
-			result.setResultObject(d);
+			byte [] body = query.getBytes(StandardCharsets.UTF_8);
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST,
+					typePath(index)+"/_count", body);
+			metrics.end(t, OperationTracer.COUNT, index, null, body.length, rs.length);
+			result.setResultObject(countFromResponse(rs));
 		} catch (Exception e) {
+			metrics.error(OperationTracer.COUNT);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();
@@ -417,21 +721,14 @@ public class Client {
 	public IResult fetchNodeFromQuery(String query, String index) {
 		IResult result = new ResultPojo();
 		try {
-			Search search = new Search.Builder(query) 
-				.addIndex(index)
-				.addType(_TYPE)
-				.build();
-			JestResult rslt = client.execute(search);
-			String s = rslt.getJsonString();
-			System.out.println("Client.listObjectsByQuery "+s);
+			JsonTransport.Response rs = search(query, index);
 			//{"_index":"topics","_type":"core","_id":"MyFourthNode","_version":1,"found":true,"_source":{"locator":"MyFourthNode","type":"SomeType","label":"My second node","details":"In which we will see how this works","superClasses":["AnotherType","YetAnotherClass"]}}
-			if (s != null) {
-				JSONObject jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(s);
-				s = (String)jo.get("_source");
+			JSONObject jo = rs.body;
+			if (jo != null) {
 				JSONObject hits = (JSONObject)jo.get("hits");
 				if (hits != null) {
 					JSONArray l = (JSONArray)hits.get("hits");
-					if (l != null) {
+					if (l != null && !l.isEmpty()) {
 						jo = (JSONObject)l.get(0);
 						result.setResultObject(jo);
 					}
@@ -439,6 +736,7 @@ public class Client {
 					result.setResultObject(null);
 			}
 		} catch (Exception e) {
+			metrics.error(OperationTracer.SEARCH);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
@@ -452,36 +750,40 @@ public class Client {
 	 * @return can return either a <code>List<JSONObject></code> or <code>null</code>
 	 */
 	public IResult listObjectsByQuery(String  query, String index) {
+		return listObjectsByQuery(query, index, null);
+	}
+
+	/**
+	 * {@link #listObjectsByQuery(String, String)} which sees the writes
+	 * made through <code>session</code>
+	 * @param query
+	 * @param index
+	 * @param session can be <code>null</code>
+	 * @return can return either a <code>List<JSONObject></code> or <code>null</code>
+	 */
+	public IResult listObjectsByQuery(String  query, String index, WriteSession session) {
+		return listObjectsByQuery(query, index, session, null);
+	}
+
+	/**
+	 * {@link #listObjectsByQuery(String, String, WriteSession)} returning
+	 * only the fields named by <code>filter</code>
+	 * @param query
+	 * @param index
+	 * @param session can be <code>null</code>
+	 * @param filter can be <code>null</code> for whole nodes
+	 * @return can return either a <code>List<JSONObject></code> or <code>null</code>
+	 */
+	public IResult listObjectsByQuery(String  query, String index, WriteSession session, SourceFilter filter) {
 		IResult result = new ResultPojo();
+		awaitSession(session, index);
 		try {
-			Search search = new Search.Builder(query) 
-				.addIndex(index)
-				.addType(_TYPE)
-				.build();
-			JestResult rslt = client.execute(search);
-			String s = rslt.getJsonString();
-			System.out.println("Client.listObjectsByQuery "+s);
+			JsonTransport.Response rs = search(filterQuery(query, filter), index);
+			JSONObject s = rs.body;
 			//{"_index":"topics","_type":"core","_id":"MyFourthNode","_version":1,"found":true,"_source":{"locator":"MyFourthNode","type":"SomeType","label":"My second node","details":"In which we will see how this works","superClasses":["AnotherType","YetAnotherClass"]}}
-			if (s != null) {
-				JSONObject jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(s);
-				s = (String)jo.get("_source");
-				System.out.println("Client.listObjectsByQuery-1 "+s);
-				JSONObject hits = (JSONObject)jo.get("hits");
-				if (hits != null) {
-					JSONArray l = (JSONArray)hits.get("hits");
-					if (l != null) {
-						List<JSONObject>results = new ArrayList<JSONObject>();
-						result.setResultObject(results);
-						int len = l.size();
-						for (int i=0; i<len; i++) {
-							jo = (JSONObject)l.get(i);
-							results.add((JSONObject)jo.get("_source"));
-						}
-					}
-				} else 
-					result.setResultObject(null);
-			}
+			result.setResultObject(sourcesFromSearch(s));
 		} catch (Exception e) {
+			metrics.error(OperationTracer.SEARCH);
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
@@ -489,194 +791,1244 @@ public class Client {
 		return result;
 	}
 
-	public IResult refresh() {
+	/**
+	 * Store <code>template</code> on the server as the search template
+	 * <code>id</code>, for {@link #listObjectsByTemplate(String, Map, String)}.
+	 * A server without <code>/_search/template</code>, 6.0 and later, is
+	 * sent it as a mustache script instead; any other failure is reported
+	 * as it is.
+	 * @param id
+	 * @param template
+	 * @return
+	 */
+	public IResult putSearchTemplate(String id, QueryTemplate template) {
 		IResult result = new ResultPojo();
-		Refresh refresh = new Refresh.Builder().build();
 		try {
-			JestResult jestResult = client.execute(refresh);
-			if (!jestResult.isSucceeded()) {
-				result.addErrorString(jestResult.getErrorMessage());
-				environment.logError(jestResult.getErrorMessage(), new IOException());
+			String path = "/_search/template/"+JsonTransport.encodeId(id);
+			JSONObject body = new JSONObject();
+			body.put("template", template.getSource());
+			JsonTransport.Response rs = transport.execute(JsonTransport.PUT, path,
+					body.toJSONString().getBytes(StandardCharsets.UTF_8));
+			if (!rs.isSucceeded() && isMissingEndpoint(rs)) {
+				// 6.0 and later keep templates as mustache scripts
+				JSONObject script = new JSONObject();
+				script.put("lang", "mustache");
+				script.put("source", template.getSource());
+				body = new JSONObject();
+				body.put("script", script);
+				rs = transport.execute(JsonTransport.PUT, "/_scripts/"+JsonTransport.encodeId(id),
+						body.toJSONString().getBytes(StandardCharsets.UTF_8));
 			}
-		} catch (IOException e) {
+			if (!rs.isSucceeded())
+				throw new IOException(rs.getErrorMessage());
+		} catch (Exception e) {
 			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
-			e.printStackTrace();
+			e.printStackTrace();			
 		}
 		return result;
 	}
 
-	public void clearCache() {
-		this.objectCache.clear();
-	}
-
-	public JestClient getJestClient() {
-		return client;
+	/**
+	 * @param rs
+	 * @return <code>true</code> if the server has no such endpoint, as
+	 *  opposed to refusing the request made of it
+	 */
+	private static boolean isMissingEndpoint(JsonTransport.Response rs) {
+		if (rs.status == 404 || rs.status == 405)
+			return true;
+		String msg = rs.getErrorMessage().toLowerCase();
+		return msg.contains("no handler") || msg.contains("incorrect http method");
 	}
 
-	///////////////////////
-	// UTILITIES
-	// Dependency on values supplied by an XML config file
-	///////////////////////
-	private void validateIndex() {
-		createIndex();
-	}
-	
-	private Collection<String> getClusters() {
-		List<List<String>>clusters = (List<List<String>>)environment.getProperties().get("Clusters");
-		int len = clusters.size();
-		List<String>entry;
-		String name, port;
-		Collection<String>result = new ArrayList<String>();
-		for (int i=0; i<len; i++) {
-			entry = clusters.get(i);
-			name = entry.get(0);
-			port = entry.get(1);
-			result.add("http://"+name+":"+port);
-		}
-		return result;
-	}
-	private void createMapping(String mapping, String index) {
-		try {					
-			PutMapping putMapping = new PutMapping.Builder(index,_TYPE, mapping)
-			.build();
-			System.out.println("MAPPING "+putMapping.toString());
-			JestResult jr = client.execute(putMapping);
-			if (jr.getErrorMessage() != null)
-				environment.logError("JestError "+jr.getErrorMessage(), null);
+	/**
+	 * Search with the search template <code>id</code>, which ElasticSearch
+	 * renders, so only <code>params</code> are sent
+	 * @param id as given to {@link #putSearchTemplate(String, QueryTemplate)}
+	 * @param params
+	 * @param index
+	 * @return can return either a <code>List<JSONObject></code> or <code>null</code>
+	 */
+	public IResult listObjectsByTemplate(String id, Map<String, ?> params, String index) {
+		IResult result = new ResultPojo();
+		try {
+			JSONObject body = new JSONObject();
+			body.put("id", id);
+			body.put("params", params);
+			byte [] query = body.toJSONString().getBytes(StandardCharsets.UTF_8);
+			long t = metrics.begin();
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST, typePath(index)+"/_search/template", query);
+			metrics.end(t, OperationTracer.SEARCH, index, null, query.length, rs.length);
+			if (!rs.isSucceeded())
+				throw new IOException(rs.getErrorMessage());
+			result.setResultObject(sourcesFromSearch(rs.body));
 		} catch (Exception e) {
+			metrics.error(OperationTracer.SEARCH);
+			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();			
 		}
+		return result;
 	}
-	
-	private void createIndex(String index, JSONObject mappy) {
-
-		int foundCode = 0; //too == found, 404 == notfound
 
+	public IResult refresh() {
+		IResult result = new ResultPojo();
+		Refresh refresh = new Refresh.Builder().build();
 		try {
-			JestResult jr = client.execute(new IndicesExists.Builder(index).build());
-			foundCode = jr.getResponseCode();
-			if (foundCode == 404) {
-				jr = client.execute(new CreateIndex.Builder(index).build());
-				createMapping(mappy.toJSONString(), index);
-				createSettings(index);
-				if (jr.getErrorMessage() != null)
-					environment.logError("JestError "+jr.getErrorMessage(), null);
-			}
-		} catch (Exception e) {
-			environment.logError(e.getMessage(), e);
-			e.printStackTrace();			
-		}
-	
-	}
-	
-	private void createIndex() {
-		List<List<String>>indexes = (List<List<String>>)environment.getProperties().get("IndexNames");
-		int len = indexes.size();
-		System.out.println("JEST0 "+len);
-	//	List<String>indices = new ArrayList<String>();
-		JestResult jr;
-		String mappx;
-		int foundCode = 0; //too == found, 404 == notfound
-//		JSONObject mappy = null;
-		String _INDEX;
-		for (int i=0;i<len;i++) {
-			_INDEX = indexes.get(i).get(0);
-			mappx = indexes.get(i).get(1);
-			mappx = getMappings(mappx);
-			System.out.println("CreatingIndex "+_INDEX);
-			
-			try {
-				jr = client.execute(new IndicesExists.Builder(_INDEX).build());
-				foundCode = jr.getResponseCode();
-				if (foundCode == 404) {
-					jr = client.execute(new CreateIndex.Builder(_INDEX).build());
-					createMapping(mappx, _INDEX);
-					createSettings(_INDEX);
-					if (jr.getErrorMessage() != null)
-						environment.logError("JestError "+jr.getErrorMessage(), null);
-				}
-			} catch (Exception e) {
-				environment.logError(e.getMessage(), e);
-				e.printStackTrace();			
+			JestResult jestResult = client.execute(refresh);
+			if (!jestResult.isSucceeded()) {
+				result.addErrorString(jestResult.getErrorMessage());
+				environment.logError(jestResult.getErrorMessage(), new IOException());
 			}
-		}
-	}
-	
-	private void createSettings(String index) {
-		String ns = environment.getStringProperty("NumShards");
-		String nd = environment.getStringProperty("NumDuplicates");
-		int numShards = Integer.parseInt(ns);
-		int numReplicas = Integer.parseInt(nd);
-		String settings = 
-				"{\"settings\" : [ { \"number_of_shards\" :"+numShards+"}," +
-                "{\"number_of_replicas\" :"+numReplicas+"}]}";
-		System.out.println("CreatingSettings "+settings);
-		
-		
-		try {
-			Object settingsBuilder = Settings.builder()
-							.loadFromSource(settings).build()
-							.getAsMap();
-			
-			JestResult jr = client.execute(new CreateIndex.Builder(index)
-				.settings(settingsBuilder).build());
-			if (jr.getErrorMessage() != null)
-				environment.logError("JestError "+jr.getErrorMessage(), null);
-		} catch (Exception e) {
+		} catch (IOException e) {
+			result.addErrorString(e.getMessage());
 			environment.logError(e.getMessage(), e);
 			e.printStackTrace();
 		}
+		return result;
 	}
 
-	private String getMappings(String fileName) {
-		String mappings = handler.readFile(ConfigurationHelper.findPath(fileName));		
-		return mappings;
+	///////////////////////
+	// ASYNCHRONOUS API
+	// Each method mirrors its blocking counterpart, including
+	// objectCache behavior, but returns immediately; errors are
+	// reported in the IResult, not by completing exceptionally
+	///////////////////////
+
+	/**
+	 * Asynchronous {@link #indexNode(String, String, JSONObject)}
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @return
+	 */
+	public CompletableFuture<IResult> indexNodeAsync(String id, String index, JSONObject object) {
+		return indexNodeAsync(id, index, object, null);
 	}
-	
-	private IResult compareVersions(String id, String index, JSONObject newObject) {
-		IResult result = this.getNodeAsJSONObject(id, index);
-		System.out.println("Client.compareVersions "+id+" "+result.getResultObject()+" | "+result.getErrorString());
-		JSONObject jo = (JSONObject)result.getResultObject();
-		////////////////////////////////
-		// There may be a corner case where we are fetching an object which
-		// is still not in the index. This will return a null object.
-		// I suspect that calls for a cache here.
-		////////////////////////////////
-		if (jo == null) {
-			jo = (JSONObject)objectCache.get(id);
-			if (jo == null) {
-				result.addErrorString(IErrorMessages.NODE_MISSING+" "+id);
-				return result;
+
+	/**
+	 * Asynchronous {@link #indexNode(String, String, JSONObject, WriteSession)}
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public CompletableFuture<IResult> indexNodeAsync(String id, String index, JSONObject object, WriteSession session) {
+		byte [] body = transport.getCodec().encode(object);
+		WriteJournal journal = enterWrite(index);
+		long t = metrics.begin();
+		return transport.executeAsync(JsonTransport.PUT, docPath(index, id)+refreshParam(), body)
+				.whenComplete((rs, e) -> exitWrite(journal, id))
+				.whenComplete((rs, e) -> recordAsync(t, OperationTracer.INDEX, index, id, body.length, rs, e))
+				.handle((rs, e) -> {
+			IResult result = new ResultPojo();
+			if (e != null)
+				asyncError(result, e);
+			else if (!rs.isSucceeded()) {
+				metrics.error(OperationTracer.INDEX);
+				result.addErrorString(rs.getErrorMessage());
+			}
+			else {
+				cacheNode(id, index, object, body);
+				noteIndexed(index, id);
+				recordWrite(index, session);
 			}
+			return result;
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #deleteNode(String, String)}
+	 * @param id
+	 * @param index
+	 * @return
+	 */
+	public CompletableFuture<IResult> deleteNodeAsync(String id, String index) {
+		return deleteNodeAsync(id, index, null);
+	}
+
+	/**
+	 * Asynchronous {@link #deleteNode(String, String, WriteSession)}
+	 * @param id
+	 * @param index
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public CompletableFuture<IResult> deleteNodeAsync(String id, String index, WriteSession session) {
+		evictNode(id, index);
+		Delete.Builder d = new Delete.Builder(id)
+				.index(index)
+				.type(_TYPE);
+		applyRefreshPolicy(d);
+		WriteJournal journal = enterWrite(index);
+		long t = metrics.begin();
+		return executeAsync(d.build()).whenComplete((rs, e) -> {
+			evictNode(id, index);
+			exitWrite(journal, id);
+		}).handle((rs, e) -> {
+			IResult result = new ResultPojo();
+			if (e != null) {
+				metrics.error(OperationTracer.DELETE);
+				asyncError(result, e);
+			} else if (!rs.isSucceeded() && rs.getResponseCode() != 404) {
+				metrics.error(OperationTracer.DELETE);
+				result.addErrorString(rs.getErrorMessage());
+			} else {
+				metrics.end(t, OperationTracer.DELETE, index, id, -1, -1);
+				recordWrite(index, session);
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #existsNode(String, String)}
+	 * @param id
+	 * @param index
+	 * @return
+	 */
+	public CompletableFuture<IResult> existsNodeAsync(String id, String index) {
+		if (objectCache.get(index, id) != null)
+			return completedResult(new Boolean(true));
+		if (existence != null && existence.isDefinitelyAbsent(index, id))
+			return completedResult(new Boolean(false));
+		return fetchNodeAsync(id, index).handle((jo, e) -> {
+			IResult result = new ResultPojo();
+			result.setResultObject(new Boolean(jo != null));
+			if (e != null)
+				asyncError(result, e);
+			return result;
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #getNodeAsJSONObject(String, String)}
+	 * @param id
+	 * @param index
+	 * @return
+	 */
+	public CompletableFuture<IResult> getNodeAsync(String id, String index) {
+		recordRead(index, id);
+		JSONObject jo = objectCache.get(index, id);
+		if (jo != null)
+			return completedResult(jo);
+		if (existence != null && existence.isDefinitelyAbsent(index, id))
+			return completedResult(null);
+		return fetchNodeAsync(id, index).handle((n, e) -> {
+			IResult result = new ResultPojo();
+			if (e != null)
+				asyncError(result, e);
+			else
+				result.setResultObject(n);
+			return result;
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #multiGetNodes(List, String)}
+	 * @param locators
+	 * @param index
+	 * @return
+	 */
+	public CompletableFuture<IResult> multiGetNodesAsync(List<String> locators, String index) {
+		long t = metrics.begin();
+		return transport.executeAsync(JsonTransport.POST, typePath(index)+"/_mget", idsBody(locators))
+				.whenComplete((rs, e) -> recordAsync(t, OperationTracer.MULTI_GET, index, null, -1, rs, e))
+				.handle((rs, e) -> {
+			IResult result = new ResultPojo();
+			if (e != null)
+				asyncError(result, e);
+			else if (!rs.isSucceeded()) {
+				metrics.error(OperationTracer.MULTI_GET);
+				result.addErrorString(rs.getErrorMessage());
+			}
+			else
+				result.setResultObject(sourcesFromMultiGet(rs.body));
+			return result;
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #listObjectsByQuery(String, String)}
+	 * @param query
+	 * @param index
+	 * @return
+	 */
+	public CompletableFuture<IResult> listObjectsByQueryAsync(String query, String index) {
+		byte [] body = query.getBytes(StandardCharsets.UTF_8);
+		long t = metrics.begin();
+		return transport.executeAsync(JsonTransport.POST, typePath(index)+"/_search", body)
+				.whenComplete((rs, e) -> recordAsync(t, OperationTracer.SEARCH, index, null, body.length, rs, e))
+				.handle((rs, e) -> {
+			IResult result = new ResultPojo();
+			if (e != null)
+				asyncError(result, e);
+			else
+				result.setResultObject(sourcesFromSearch(rs.body));
+			return result;
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #listObjectsByQuery(String, String, WriteSession)};
+	 * should the session's writes need a refresh, it is awaited on another thread
+	 * @param query
+	 * @param index
+	 * @param session can be <code>null</code>
+	 * @return
+	 */
+	public CompletableFuture<IResult> listObjectsByQueryAsync(String query, String index, WriteSession session) {
+		if (session == null || refresher == null || !refreshOnRead || session.getGeneration(index) == 0)
+			return listObjectsByQueryAsync(query, index);
+		return CompletableFuture.runAsync(() -> awaitSession(session, index))
+				.thenCompose(v -> listObjectsByQueryAsync(query, index));
+	}
+
+	/**
+	 * Asynchronous {@link #count(String, String)}
+	 * @param query
+	 * @param index
+	 * @return
+	 */
+	public CompletableFuture<IResult> countAsync(String query, String index) {
+		byte [] body = query.getBytes(StandardCharsets.UTF_8);
+		long t = metrics.begin();
+		return transport.executeAsync(JsonTransport.POST, typePath(index)+"/_count", body)
+				.whenComplete((rs, e) -> recordAsync(t, OperationTracer.COUNT, index, null, body.length, rs, e))
+				.handle((rs, e) -> {
+			IResult result = new ResultPojo();
+			try {
+				if (e != null)
+					throw e;
+				result.setResultObject(countFromResponse(rs));
+			} catch (Throwable x) {
+				asyncError(result, x);
+				result.setResultObject(new Double(-1));
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Iterate every node matching <code>query</code>, a page of
+	 * <code>ScrollPageSize</code> at a time; close it if you stop early
+	 * @param query can be <code>null</code> for all nodes
+	 * @param index
+	 * @return
+	 */
+	public ScrollIterator scrollNodes(String query, String index) {
+		return scrollHits(query, index, -1, 0, true);
+	}
+
+	/**
+	 * {@link #scrollNodes(String, String)} as a sequential <code>Stream</code>,
+	 * which should be closed, e.g. with try-with-resources
+	 * @param query
+	 * @param index
+	 * @return
+	 */
+	public Stream<JSONObject> streamNodes(String query, String index) {
+		ScrollIterator itr = scrollNodes(query, index);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(itr,
+				Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> itr.close());
+	}
+
+	/**
+	 * Hand every node matching <code>query</code> to <code>consumer</code>,
+	 * scanning <code>slices</code> sliced scrolls in parallel; for export
+	 * and reindex jobs. <code>consumer</code> must be thread safe.
+	 * Slices need ElasticSearch 5.0 or later; with 1 slice this runs on
+	 * the calling thread. If a slice fails the others are stopped, and
+	 * <code>consumer</code> is not called once this has returned.
+	 * @param query can be <code>null</code> for all nodes
+	 * @param index
+	 * @param slices
+	 * @param consumer
+	 * @return the number of nodes scanned
+	 */
+	public IResult scanNodes(String query, String index, int slices, Consumer<JSONObject> consumer) {
+		IResult result = new ResultPojo();
+		int n = Math.max(1, slices);
+		List<CompletableFuture<Long>> parts = new ArrayList<CompletableFuture<Long>>(n);
+		SliceGroup group = (n > 1) ? new SliceGroup(n) : null;
+		try {
+			for (int i=0; i<n; i++) {
+				final int slice = (n > 1) ? i : -1;
+				Supplier<Long> task = () -> {
+					long count = 0;
+					ScrollIterator itr = scrollHits(query, index, slice, n, true);
+					try {
+						if (group != null)
+							group.open(itr);
+						while (itr.hasNext()) {
+							consumer.accept(itr.next());
+							count++;
+						}
+					} finally {
+						itr.close();
+					}
+					return count;
+				};
+				parts.add((group == null) ? CompletableFuture.completedFuture(task.get())
+						: group.submit(task));
+			}
+			long total = 0;
+			for (int i=0; i<n; i++)
+				total += parts.get(i).join();
+			result.setResultObject(new Long(total));
+		} catch (Exception e) {
+			if (group != null)
+				group.cancel(e);
+			asyncError(result, e);
+		} finally {
+			if (group != null)
+				group.await();
 		}
-		String ov = (String)jo.get(IVersionable.VERSION_PROPERTY);
-		if (ov != null) {
-			long olv = Long.parseLong(ov);
-			String nv = (String)newObject.get(IVersionable.VERSION_PROPERTY);
-			if (nv != null) {
-				long nlv = Long.parseLong(nv);
-				if (nlv < olv) {
-					//OptimisticLockException: new is less than old
-					result.setResultObjectA(jo);
-					result.setResultObject(null);
-					result.addErrorString(IErrorMessages.OPTIMISTIC_LOCK_EXCEPTION);
-				} else {
-					result.setResultObject(null);
-					result.setResultObjectA(null);
+		return result;
+	}
+
+	/**
+	 * @param query
+	 * @param index
+	 * @param slice <code>-1</code> for none
+	 * @param maxSlices
+	 * @param sourceOnly
+	 * @return
+	 */
+	ScrollIterator scrollHits(String query, String index, int slice, int maxSlices, boolean sourceOnly) {
+		String keepAlive = environment.getStringProperty("ScrollKeepAlive");
+		if (keepAlive == null)
+			keepAlive = "1m";
+		return new ScrollIterator(environment, transport, typePath(index), query,
+				getIntProperty("ScrollPageSize", 500), keepAlive.trim(), slice, maxSlices, sourceOnly);
+	}
+
+	/**
+	 * Create a {@link BulkIndexer} sized by the <code>Bulk*</code>
+	 * properties in the config file
+	 * @param listener can be <code>null</code>
+	 * @return
+	 */
+	public BulkIndexer createBulkIndexer(IBulkListener listener) {
+		int maxActions = getIntProperty("BulkMaxActions", 1000);
+		long maxBytes = getIntProperty("BulkMaxBytes", 5 * 1024 * 1024);
+		long interval = getIntProperty("BulkFlushIntervalMillis", 1000);
+		return new BulkIndexer(environment, this, maxActions, maxBytes, interval, listener);
+	}
+
+	/**
+	 * Create a {@link Reindexer} sized by the <code>Reindex*</code>
+	 * properties in the config file
+	 * @return
+	 */
+	public Reindexer createReindexer() {
+		return new Reindexer(environment, this);
+	}
+
+	/**
+	 * Create an {@link Exporter} sized by the <code>Export*</code>
+	 * properties in the config file
+	 * @return
+	 */
+	public Exporter createExporter() {
+		return new Exporter(environment, this);
+	}
+
+	/**
+	 * Create an {@link Importer} sized by the <code>Import*</code>
+	 * properties in the config file
+	 * @return
+	 */
+	public Importer createImporter() {
+		return new Importer(environment, this);
+	}
+
+	/**
+	 * Start a session whose searches see its own writes; only
+	 * meaningful with {@link ConsistencyMode#INTERVAL} and
+	 * <code>RefreshOnRead</code>, since the other modes make each write
+	 * visible before returning
+	 * @return
+	 */
+	public WriteSession createSession() {
+		return new WriteSession();
+	}
+
+	JsonTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @return latency, error, byte and cache counts
+	 */
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ConsistencyMode getConsistencyMode() {
+		return consistency;
+	}
+
+	/**
+	 * Stop background tasks and release the HTTP client
+	 */
+	public void shutdown() {
+		if (refresher != null)
+			refresher.shutdown();
+		if (existence != null)
+			existence.shutdown();
+		if (batcher != null)
+			batcher.shutdown();
+		if (hotKeys != null)
+			hotKeys.shutdown();
+		metrics.shutdown();
+		transport.shutdown();
+		client.shutdownClient();
+	}
+
+	/**
+	 * The node cache, for its statistics
+	 * @return
+	 */
+	public IDocumentCache getCache() {
+		return objectCache;
+	}
+
+	public void clearCache() {
+		this.objectCache.clear();
+	}
+
+	public JestClient getJestClient() {
+		return client;
+	}
+
+	/**
+	 * Record a write made outside the single-node methods, e.g. by
+	 * {@link BulkIndexer}, for {@link ConsistencyMode#INTERVAL}
+	 * @param index
+	 * @return the write generation, <code>0</code> in other modes
+	 */
+	long markWritten(String index) {
+		if (refresher != null)
+			return refresher.markDirty(index);
+		return 0;
+	}
+
+	/**
+	 * Start journaling writes to <code>index</code>, for a {@link Reindexer}
+	 * @param index as writers name it, i.e. the alias
+	 * @return
+	 */
+	WriteJournal openJournal(String index) {
+		WriteJournal result = new WriteJournal();
+		if (journals.putIfAbsent(index, result) != null)
+			throw new IllegalStateException("Already journaling "+index);
+		return result;
+	}
+
+	void closeJournal(String index) {
+		journals.remove(index);
+	}
+
+	/**
+	 * Wait for the writes which began before the last
+	 * {@link #openJournal(String)}: its journal does not see them
+	 * @throws InterruptedException
+	 */
+	void awaitUnjournaledWrites() throws InterruptedException {
+		unjournaled.getAndSet(new WriteJournal(false)).awaitWriters();
+	}
+
+	/**
+	 * Begin a write to <code>index</code>, once bootstrap has made sure
+	 * it exists
+	 * @param index
+	 * @return the journal of <code>index</code> if it is being journaled,
+	 *  else one which only counts the write
+	 */
+	WriteJournal enterWrite(String index) {
+		if (bootstrap != null)
+			bootstrap.awaitIndex(index);
+		// counted before looking for a journal: a write which finds none is
+		// waited for by awaitUnjournaledWrites
+		WriteJournal result = unjournaled.get();
+		result.enter();
+		if (journals.isEmpty())
+			return result;
+		WriteJournal journal = journals.get(index);
+		if (journal == null)
+			return result;
+		result.exit(null);
+		journal.enter();
+		return journal;
+	}
+
+	/**
+	 * End a write begun with {@link #enterWrite(String)}
+	 * @param journal
+	 * @param id
+	 */
+	void exitWrite(WriteJournal journal, String id) {
+		if (journal != null)
+			journal.exit(id);
+	}
+
+	/**
+	 * Record that <code>id</code> has been written to <code>index</code>
+	 * @param index
+	 * @param id
+	 */
+	void noteIndexed(String index, String id) {
+		if (existence != null)
+			existence.add(index, id);
+	}
+
+	/**
+	 * @return can return <code>null</code> if <code>GetBatchEnabled</code> is not set
+	 */
+	public GetBatcher getGetBatcher() {
+		return batcher;
+	}
+
+	/**
+	 * @return checks and creation of the indices at startup, which
+	 *  may still be running if <code>IndexBootstrapLazy</code>
+	 */
+	public IndexBootstrap getIndexBootstrap() {
+		return bootstrap;
+	}
+
+	/**
+	 * @return can return <code>null</code> if <code>HotKeysFile</code> is not set
+	 */
+	public HotKeyTracker getHotKeyTracker() {
+		return hotKeys;
+	}
+
+	/**
+	 * @return can return <code>null</code> if <code>ExistenceFilterEnabled</code> is not set
+	 */
+	public ExistenceIndex getExistenceIndex() {
+		return existence;
+	}
+
+	/**
+	 * Cache a node which was just written; any read of it still in
+	 * flight is detached first, so it cannot put back an older version
+	 * @param id
+	 * @param index
+	 * @param object
+	 */
+	void cacheNode(String id, String index, JSONObject object) {
+		cacheNode(id, index, object, null);
+	}
+
+	/**
+	 * @param id
+	 * @param index
+	 * @param object
+	 * @param serialized <code>object</code> as sent, or <code>null</code>
+	 */
+	void cacheNode(String id, String index, JSONObject object, byte [] serialized) {
+		readCoalescer.forget(cacheKey(index, id));
+		objectCache.putWritten(index, id, object, serialized);
+	}
+
+	void evictNode(String id, String index) {
+		readCoalescer.forget(cacheKey(index, id));
+		objectCache.remove(index, id);
+	}
+
+	/**
+	 * Single-flight statistics for id lookups
+	 * @return
+	 */
+	public RequestCoalescer<JSONObject> getReadCoalescer() {
+		return readCoalescer;
+	}
+
+	///////////////////////
+	// UTILITIES
+	// Dependency on values supplied by an XML config file
+	///////////////////////
+	/**
+	 * A {@link DocumentCache} unless <code>CacheClass</code> names
+	 * another {@link IDocumentCache}
+	 * @return
+	 */
+	private IDocumentCache createCache() {
+		String className = environment.getStringProperty("CacheClass");
+		if (className == null)
+			return new DocumentCache(environment);
+		try {
+			return (IDocumentCache)Class.forName(className.trim())
+					.getConstructor(ProviderEnvironment.class)
+					.newInstance(environment);
+		} catch (Exception e) {
+			environment.logError("Client.createCache "+className, e);
+			return new DocumentCache(environment);
+		}
+	}
+
+	private void initExistence() {
+		String enabled = environment.getStringProperty("ExistenceFilterEnabled");
+		if (enabled == null || !Boolean.parseBoolean(enabled.trim()))
+			return;
+		String fpp = environment.getStringProperty("ExistenceFilterFpp");
+		existence = new ExistenceIndex(environment, this,
+				getIntProperty("ExistenceFilterExpectedIds", 1000000),
+				(fpp == null) ? 0.01 : Double.parseDouble(fpp.trim()));
+		existence.start(getIndexNames(), getIntProperty("ExistenceFilterRebuildMinutes", 60),
+				getIntProperty("ExistenceFilterCheckSeconds", 10));
+	}
+
+	/**
+	 * The codec is a {@link JsonSmartCodec} unless <code>JsonCodecClass</code>
+	 * names another {@link IJsonCodec}
+	 * @param uris
+	 * @return
+	 */
+	private JsonTransport createTransport(Collection<String> uris) {
+		IJsonCodec codec = null;
+		String className = environment.getStringProperty("JsonCodecClass");
+		if (className != null) {
+			try {
+				codec = (IJsonCodec)Class.forName(className.trim()).newInstance();
+			} catch (Exception e) {
+				environment.logError("Client.createTransport "+className, e);
+			}
+		}
+		if (codec == null)
+			codec = new JsonSmartCodec();
+		NodeSelector selector = new NodeSelector(environment, uris,
+				getIntProperty("NodeEjectFailures", 3),
+				getIntProperty("NodeEjectMillis", 5000),
+				getIntProperty("NodeHealthCheckMillis", 5000),
+				getIntProperty("NodeProbeTimeoutMillis", 1000));
+		String accept = environment.getStringProperty("GzipResponses");
+		Gzip gzip = new Gzip(getIntProperty("GzipRequestThreshold", -1),
+				accept != null && Boolean.parseBoolean(accept.trim()));
+		JsonTransport result = new JsonTransport(environment, selector, codec, gzip, 80, 50,
+				getIntProperty("HttpConnectTimeoutMillis", 3000),
+				getIntProperty("HttpSocketTimeoutMillis", 3000),
+				getIntProperty("HttpConnectionRequestTimeoutMillis", 3000));
+		metrics.addNodes(selector);
+		metrics.addCompression(gzip);
+		return result;
+	}
+
+	/**
+	 * Jest sends bulk, scroll and admin requests; it can only gzip all
+	 * of them or none
+	 * @return <code>true</code> if <code>GzipBulkRequests</code>
+	 */
+	private boolean isBulkCompressed() {
+		String v = environment.getStringProperty("GzipBulkRequests");
+		return v != null && Boolean.parseBoolean(v.trim());
+	}
+
+	private void initBatcher() {
+		String enabled = environment.getStringProperty("GetBatchEnabled");
+		if (enabled == null || !Boolean.parseBoolean(enabled.trim()))
+			return;
+		batcher = new GetBatcher(environment, this,
+				getIntProperty("GetBatchMaxSize", 100), getIntProperty("GetBatchWindowMillis", 2));
+	}
+
+	/**
+	 * Track reads if <code>HotKeysFile</code> is set, and first fill the
+	 * cache with the ids the last run read most; the client is not
+	 * returned until warm-up is done or <code>WarmupTimeoutSeconds</code>
+	 * have passed
+	 */
+	private void initHotKeys() {
+		String path = environment.getStringProperty("HotKeysFile");
+		if (path == null || path.trim().isEmpty())
+			return;
+		hotKeys = new HotKeyTracker(environment, this, new File(path.trim()),
+				getIntProperty("HotKeysMax", 10000));
+		metrics.addHotKeys(hotKeys);
+		hotKeys.warmUp(getIntProperty("WarmupBatchSize", 500), getIntProperty("WarmupThreads", 4),
+				getIntProperty("WarmupTimeoutSeconds", 60) * 1000L);
+		hotKeys.start(getIntProperty("HotKeysSaveSeconds", 300));
+	}
+
+	private List<String> getIndexNames() {
+		List<List<String>>indexes = (List<List<String>>)environment.getProperties().get("IndexNames");
+		List<String> result = new ArrayList<String>();
+		int len = indexes.size();
+		for (int i=0; i<len; i++)
+			result.add(indexes.get(i).get(0));
+		return result;
+	}
+
+	private void initConsistency() {
+		consistency = ConsistencyMode.fromProperty(environment.getStringProperty("ConsistencyMode"));
+		if (consistency == ConsistencyMode.INTERVAL) {
+			refresher = new RefreshScheduler(environment, client, getIntProperty("RefreshIntervalMillis", 1000));
+			String r = environment.getStringProperty("RefreshOnRead");
+			refreshOnRead = (r == null || Boolean.parseBoolean(r.trim()));
+		}
+	}
+
+	/**
+	 * Set the <code>refresh</code> parameter of a write for the
+	 * configured {@link ConsistencyMode}
+	 * @param builder
+	 */
+	private void applyRefreshPolicy(AbstractAction.Builder<?, ?> builder) {
+		if (consistency == ConsistencyMode.REFRESH)
+			builder.setParameter(Parameters.REFRESH, true);
+		else if (consistency == ConsistencyMode.WAIT_FOR)
+			builder.setParameter(Parameters.REFRESH, "wait_for");
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		String v = environment.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Integer.parseInt(v.trim());
+	}
+
+	private Collection<String> getClusters() {
+		List<List<String>>clusters = (List<List<String>>)environment.getProperties().get("Clusters");
+		int len = clusters.size();
+		List<String>entry;
+		String name, port;
+		Collection<String>result = new ArrayList<String>();
+		for (int i=0; i<len; i++) {
+			entry = clusters.get(i);
+			name = entry.get(0);
+			port = entry.get(1);
+			result.add("http://"+name+":"+port);
+		}
+		return result;
+	}
+	/**
+	 * Check every index, creating those missing, all at once; unless
+	 * <code>IndexBootstrapLazy</code>, wait for that to finish
+	 * @param mappings by index name
+	 * @param lazy
+	 */
+	private void bootstrapIndices(Map<String, JSONObject> mappings, boolean lazy) {
+		Iterator<JSONObject> itr = mappings.values().iterator();
+		while (itr.hasNext())
+			CompactNode.internFieldNames(itr.next());
+		bootstrap = new IndexBootstrap(environment, transport,
+				Integer.parseInt(environment.getStringProperty("NumShards").trim()),
+				Integer.parseInt(environment.getStringProperty("NumDuplicates").trim()));
+		metrics.addBootstrap(bootstrap);
+		bootstrap.start(mappings);
+		if (!lazy)
+			bootstrap.await();
+	}
+
+	/**
+	 * The mappings of each of the <code>IndexNames</code>, read from the
+	 * files the config names
+	 * @return
+	 */
+	private Map<String, JSONObject> getIndexMappings() {
+		List<List<String>>indexes = (List<List<String>>)environment.getProperties().get("IndexNames");
+		Map<String, JSONObject> result = new LinkedHashMap<String, JSONObject>();
+		int len = indexes.size();
+		String name;
+		for (int i=0;i<len;i++) {
+			name = indexes.get(i).get(0);
+			try {
+				result.put(name, (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE)
+						.parse(getMappings(indexes.get(i).get(1))));
+			} catch (Exception e) {
+				environment.logError("Client mappings for "+name+": "+e.getMessage(), e);
+				e.printStackTrace();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Bridge Jest's callback API to a {@link CompletableFuture}
+	 * @param action
+	 * @return
+	 */
+	private <T extends JestResult> CompletableFuture<T> executeAsync(Action<T> action) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		client.executeAsync(action, new JestResultHandler<T>() {
+
+			@Override
+			public void completed(T result) {
+				future.complete(result);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				future.completeExceptionally(ex);
+			}
+		});
+		return future;
+	}
+
+	private CompletableFuture<IResult> completedResult(Object o) {
+		IResult result = new ResultPojo();
+		result.setResultObject(o);
+		return CompletableFuture.completedFuture(result);
+	}
+
+	private void asyncError(IResult result, Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null)
+			t = t.getCause();
+		result.addErrorString(t.getMessage());
+		environment.logError(t.getMessage(), (t instanceof Exception) ? (Exception)t : null);
+	}
+
+	/**
+	 * GET a node, sharing the request with any concurrent lookup of
+	 * the same node; the fetched node is cached
+	 * @param id
+	 * @param index
+	 * @return <code>null</code> if not found
+	 * @throws Exception
+	 */
+	private JSONObject fetchNode(String id, String index) throws Exception {
+		return readCoalescer.execute(cacheKey(index, id), () -> {
+			if (batcher != null && !batcher.isShutdown()) {
+				try {
+					return batcher.load(index, id).get();
+				} catch (ExecutionException e) {
+					// report the MultiGet's failure, not its wrapper
+					Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+					throw (cause instanceof Exception) ? (Exception)cause : e;
+				} catch (RejectedExecutionException e) {
+					// shut down since; a GET of its own instead
 				}
-			} else {
-				result.setResultObject(null);
-				result.setResultObjectA(null);
-				result.addErrorString(IErrorMessages.MISSING_VERSION_PROPERTY+": "+id);
 			}
-		} else {
-			result.setResultObject(null);
-			result.setResultObjectA(null);
-			result.addErrorString(IErrorMessages.MISSING_VERSION_PROPERTY+": "+id);			
+			long t = metrics.begin();
+			JsonTransport.Response rs = transport.execute(JsonTransport.GET,
+					docPath(index, id)+"?"+REALTIME+"=true", null);
+			metrics.end(t, OperationTracer.GET, index, id, -1, rs.length);
+			return sourceFromGet(rs);
+		}, jo -> publishNode(id, index, jo));
+	}
+
+	/**
+	 * Asynchronous {@link #fetchNode(String, String)}
+	 * @param id
+	 * @param index
+	 * @return
+	 */
+	private CompletableFuture<JSONObject> fetchNodeAsync(String id, String index) {
+		return readCoalescer.executeAsync(cacheKey(index, id), () -> {
+			if (batcher != null && !batcher.isShutdown()) {
+				try {
+					return batcher.load(index, id);
+				} catch (RejectedExecutionException e) {
+					// shut down since; a GET of its own instead
+				}
+			}
+			long t = metrics.begin();
+			return transport.executeAsync(JsonTransport.GET, docPath(index, id)+"?"+REALTIME+"=true", null)
+					.whenComplete((rs, e) -> recordAsync(t, OperationTracer.GET, index, id, -1, rs, e))
+					.thenApply(rs -> {
+						try {
+							return sourceFromGet(rs);
+						} catch (IOException e) {
+							throw new CompletionException(e);
+						}
+					});
+		}, jo -> publishNode(id, index, jo));
+	}
+
+	/**
+	 * Time an asynchronous request, or count its failure
+	 */
+	private void recordAsync(long start, String op, String index, String id, long requestBytes,
+			JsonTransport.Response rs, Throwable e) {
+		if (e != null)
+			metrics.error(op);
+		else
+			metrics.end(start, op, index, id, requestBytes, rs.length);
+	}
+
+	/**
+	 * Fetch <code>ids</code> with one MultiGet and cache those found;
+	 * like any read, through the coalescer, so a node written or deleted
+	 * while the MultiGet is in flight is not cached as it was before
+	 * @param index
+	 * @param ids
+	 * @return how many were found
+	 * @throws Exception
+	 */
+	int warmCache(String index, List<String> ids) throws Exception {
+		Map<String, String> byKey = new HashMap<String, String>();
+		List<String> keys = new ArrayList<String>(ids.size());
+		for (String id : ids) {
+			String key = cacheKey(index, id);
+			byKey.put(key, id);
+			keys.add(key);
+		}
+		Map<String, JSONObject> found = readCoalescer.executeAll(keys, led -> {
+			List<String> batch = new ArrayList<String>(led.size());
+			for (String key : led)
+				batch.add(byKey.get(key));
+			long t = metrics.begin();
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST, typePath(index)+"/_mget", idsBody(batch));
+			metrics.end(t, OperationTracer.MULTI_GET, index, null, -1, rs.length);
+			if (!rs.isSucceeded())
+				throw new IOException(rs.getErrorMessage());
+			return sourcesFromMultiGet(rs.body);
+		}, (key, jo) -> publishNode(byKey.get(key), index, jo));
+		int result = 0;
+		for (JSONObject jo : found.values()) {
+			if (jo != null)
+				result++;
 		}
 		return result;
 	}
 
+	private void recordRead(String index, String id) {
+		if (hotKeys != null)
+			hotKeys.record(index, id);
+	}
+
+	private void publishNode(String id, String index, JSONObject jo) {
+		if (jo != null)
+			objectCache.put(index, id, jo);
+	}
+
+	private JsonTransport.Response search(String query, String index) throws IOException {
+		long t = metrics.begin();
+		byte [] body = query.getBytes(StandardCharsets.UTF_8);
+		JsonTransport.Response result = transport.execute(JsonTransport.POST, typePath(index)+"/_search", body);
+		metrics.end(t, OperationTracer.SEARCH, index, null, body.length, result.length);
+		if (!result.isSucceeded())
+			throw new IOException(result.getErrorMessage());
+		return result;
+	}
+
+	/**
+	 * @param s
+	 * @return the length of <code>s</code> in UTF-8, without encoding it
+	 */
+	static int utf8Length(String s) {
+		int result = 0;
+		char c;
+		for (int i=0; i<s.length(); i++) {
+			c = s.charAt(i);
+			if (c < 0x80)
+				result++;
+			else if (c < 0x800)
+				result += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				result += 4;
+				i++;
+			} else if (Character.isSurrogate(c))
+				// unpaired, encoded as '?'
+				result++;
+			else
+				result += 3;
+		}
+		return result;
+	}
+
+	/**
+	 * @param query
+	 * @param filter can be <code>null</code>
+	 * @return <code>query</code> with <code>filter</code> as its <code>_source</code>
+	 * @throws Exception
+	 */
+	private String filterQuery(String query, SourceFilter filter) throws Exception {
+		if (filter == null)
+			return query;
+		JSONObject jo = transport.getCodec().decode(query.getBytes(StandardCharsets.UTF_8));
+		jo.put("_source", filter.toSearchSource());
+		return jo.toJSONString();
+	}
+
+	/**
+	 * @param rs
+	 * @return the <code>count</code> of a _count response
+	 * @throws IOException
+	 */
+	private Double countFromResponse(JsonTransport.Response rs) throws IOException {
+		if (!rs.isSucceeded())
+			throw new IOException(rs.getErrorMessage());
+		return new Double(((Number)rs.body.get("count")).doubleValue());
+	}
+
+	/**
+	 * @param ids
+	 * @return an <code>_mget</code> body
+	 */
+	private byte [] idsBody(List<String> ids) {
+		JSONArray ja = new JSONArray();
+		ja.addAll(ids);
+		JSONObject jo = new JSONObject();
+		jo.put("ids", ja);
+		return transport.getCodec().encode(jo);
+	}
+
+	private String typePath(String index) {
+		return "/" + index + "/" + _TYPE;
+	}
+
+	private String docPath(String index, String id) {
+		return typePath(index) + "/" + JsonTransport.encodeId(id);
+	}
+
+	/**
+	 * @return the <code>refresh</code> query string for the configured {@link ConsistencyMode}
+	 */
+	private String refreshParam() {
+		if (consistency == ConsistencyMode.REFRESH)
+			return "?refresh=true";
+		if (consistency == ConsistencyMode.WAIT_FOR)
+			return "?refresh=wait_for";
+		return "";
+	}
+
+	private static String cacheKey(String index, String id) {
+		return index + "/" + id;
+	}
+
+	/**
+	 * Returns the <code>_source</code> of a GET response
+	 * @param rs
+	 * @return can return <code>null</code> if not found
+	 * @throws IOException if the GET failed; a missing node is a 404,
+	 *  and a server error must not pass for one
+	 */
+	private JSONObject sourceFromGet(JsonTransport.Response rs) throws IOException {
+		if (!rs.isSucceeded() && rs.status != 404)
+			throw new IOException(rs.getErrorMessage());
+		return sourceFromGet(rs.body);
+	}
+
+	/**
+	 * Returns the <code>_source</code> of a GET response body
+	 * @param jo
+	 * @return can return <code>null</code> if not found
+	 */
+	private JSONObject sourceFromGet(JSONObject jo) {
+		if (jo == null)
+			return null;
+		Boolean t = (Boolean)jo.get("found");
+		if (t != null && t.booleanValue())
+			return (JSONObject)jo.get("_source");
+		return null;
+	}
+
+	/**
+	 * Apply a partial-document update as ElasticSearch does: objects
+	 * merge, anything else replaces
+	 * @param old the node before the update, can be <code>null</code>
+	 * @param update
+	 * @return <code>null</code> if the update is a script or
+	 *  <code>old</code> is unknown
+	 */
+	private JSONObject mergeLocally(JSONObject old, JSONObject update) {
+		Object doc = update.get("doc");
+		if (!(doc instanceof JSONObject) || update.containsKey("script"))
+			return null;
+		JSONObject result = new JSONObject();
+		if (old != null)
+			result.putAll(old);
+		else if (!Boolean.TRUE.equals(update.get("doc_as_upsert")))
+			return null;
+		mergeInto(result, (JSONObject)doc);
+		return result;
+	}
+
+	private static void mergeInto(JSONObject target, JSONObject doc) {
+		Iterator<Map.Entry<String, Object>> itr = doc.entrySet().iterator();
+		Map.Entry<String, Object> e;
+		Object was;
+		while (itr.hasNext()) {
+			e = itr.next();
+			was = target.get(e.getKey());
+			if (was instanceof JSONObject && e.getValue() instanceof JSONObject) {
+				JSONObject copy = new JSONObject();
+				copy.putAll((JSONObject)was);
+				mergeInto(copy, (JSONObject)e.getValue());
+				target.put(e.getKey(), copy);
+			} else
+				target.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Returns the <code>_source</code> of each doc in a MultiGet response,
+	 * in request order; missing docs are <code>null</code>
+	 * @param jo
+	 * @return can return <code>null</code>
+	 */
+	private List<JSONObject> sourcesFromMultiGet(JSONObject jo) {
+		if (jo == null)
+			return null;
+		List<JSONObject>dx = (List<JSONObject>)jo.get("docs");
+		if (dx == null)
+			return null;
+		List<JSONObject>rslt = new ArrayList<>(dx.size());
+		Iterator<JSONObject>itx = dx.iterator();
+		while (itx.hasNext()) {
+			jo = itx.next();
+			rslt.add((JSONObject)jo.get("_source"));
+		}
+		return rslt;
+	}
+
+	/**
+	 * Returns the <code>_source</code> of each hit in a Search response
+	 * @param jo
+	 * @return can return <code>null</code>
+	 */
+	private List<JSONObject> sourcesFromSearch(JSONObject jo) {
+		if (jo == null)
+			return null;
+		JSONObject hits = (JSONObject)jo.get("hits");
+		if (hits == null)
+			return null;
+		JSONArray l = (JSONArray)hits.get("hits");
+		if (l == null)
+			return null;
+		int len = l.size();
+		List<JSONObject>results = new ArrayList<JSONObject>(len);
+		for (int i=0; i<len; i++) {
+			jo = (JSONObject)l.get(i);
+			results.add((JSONObject)jo.get("_source"));
+		}
+		return results;
+	}
+
+	/**
+	 * Make <code>session</code>'s writes to <code>index</code> searchable,
+	 * if <code>RefreshOnRead</code>
+	 * @param session can be <code>null</code>
+	 * @param index
+	 */
+	private void awaitSession(WriteSession session, String index) {
+		if (session == null || refresher == null || !refreshOnRead)
+			return;
+		long gen = session.getGeneration(index);
+		if (gen > 0)
+			refresher.awaitVisible(index, gen);
+	}
+
+	/**
+	 * Record a successful write, in <code>session</code> too if any
+	 * @param index
+	 * @param session can be <code>null</code>
+	 */
+	private void recordWrite(String index, WriteSession session) {
+		long gen = markWritten(index);
+		if (session != null && gen > 0)
+			session.recordWrite(index, gen);
+	}
+
+	private String getMappings(String fileName) {
+		String mappings = handler.readFile(ConfigurationHelper.findPath(fileName));		
+		return mappings;
+	}
+
 }
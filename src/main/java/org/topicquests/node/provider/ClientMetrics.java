@@ -0,0 +1,359 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.topicquests.node.provider.api.ICacheStatsMXBean;
+import org.topicquests.node.provider.api.IDocumentCache;
+import org.topicquests.node.provider.api.INodeStatsMXBean;
+import org.topicquests.node.provider.api.IOperationStatsMXBean;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Latency, error and byte counts for each kind of {@link Client}
+ * operation, named by the {@link OperationTracer} constants, plus the
+ * client's cache, node and compression statistics</p>
+ * <p>Every operation is timed; sampled ones are also handed to the
+ * {@link OperationTracer}. If <code>MetricsJmxEnabled</code>, each
+ * operation, the cache and each node are registered as MBeans under
+ * <code>org.topicquests.node.provider:type=Client,client=N</code>.</p>
+ */
+public class ClientMetrics {
+	private ProviderEnvironment environment;
+	private OperationTracer tracer;
+	private IDocumentCache cache;
+	private NodeSelector selector = null;
+	private Gzip gzip = null;
+	private HotKeyTracker hotKeys = null;
+	private IndexBootstrap bootstrap = null;
+	private volatile long startupMillis = -1;
+	private final Map<String, OperationStats> operations;
+	private final List<ObjectName> registered;
+	private final String domain;
+	private final boolean isJmxEnabled;
+	private static final AtomicInteger clients = new AtomicInteger(0);
+
+	/**
+	 * One operation's numbers
+	 */
+	public static class OperationStats implements IOperationStatsMXBean {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder requestBytes = new LongAdder();
+		final LongAdder responseBytes = new LongAdder();
+
+		@Override
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		@Override
+		public long getErrorCount() {
+			return errors.sum();
+		}
+
+		@Override
+		public long getRequestBytes() {
+			return requestBytes.sum();
+		}
+
+		@Override
+		public long getResponseBytes() {
+			return responseBytes.sum();
+		}
+
+		@Override
+		public double getMeanMicros() {
+			return latency.getMean();
+		}
+
+		@Override
+		public long getP50Micros() {
+			return latency.getValueAtPercentile(50);
+		}
+
+		@Override
+		public long getP99Micros() {
+			return latency.getValueAtPercentile(99);
+		}
+
+		@Override
+		public long getP999Micros() {
+			return latency.getValueAtPercentile(99.9);
+		}
+
+		@Override
+		public long getMaxMicros() {
+			return latency.getMax();
+		}
+
+		JSONObject toJSON() {
+			JSONObject result = new JSONObject();
+			result.put("count", getCount());
+			result.put("errors", getErrorCount());
+			result.put("requestBytes", getRequestBytes());
+			result.put("responseBytes", getResponseBytes());
+			result.put("meanMicros", getMeanMicros());
+			result.put("p50Micros", getP50Micros());
+			result.put("p99Micros", getP99Micros());
+			result.put("p999Micros", getP999Micros());
+			result.put("maxMicros", getMaxMicros());
+			return result;
+		}
+	}
+
+	private static class CacheStats implements ICacheStatsMXBean {
+		private final IDocumentCache cache;
+
+		CacheStats(IDocumentCache c) {
+			cache = c;
+		}
+
+		@Override
+		public long getSize() {
+			return cache.size();
+		}
+
+		@Override
+		public long getWeightedSize() {
+			return cache.getWeightedSize();
+		}
+
+		@Override
+		public long getHitCount() {
+			return cache.getHitCount();
+		}
+
+		@Override
+		public long getMissCount() {
+			return cache.getMissCount();
+		}
+
+		@Override
+		public long getEvictionCount() {
+			return cache.getEvictionCount();
+		}
+
+		@Override
+		public double getHitRatio() {
+			return cache.getHitRatio();
+		}
+	}
+
+	/**
+	 * @param env
+	 * @param c the client's cache
+	 */
+	public ClientMetrics(ProviderEnvironment env, IDocumentCache c) {
+		environment = env;
+		tracer = env.getOperationTracer();
+		cache = c;
+		operations = new ConcurrentHashMap<String, OperationStats>();
+		registered = new ArrayList<ObjectName>();
+		domain = "org.topicquests.node.provider:type=Client,client=" + clients.incrementAndGet();
+		String jmx = env.getStringProperty("MetricsJmxEnabled");
+		isJmxEnabled = (jmx == null || Boolean.parseBoolean(jmx.trim()));
+		if (isJmxEnabled)
+			register("cache", new CacheStats(c));
+	}
+
+	/**
+	 * Include the transport's nodes in snapshots and JMX
+	 * @param s
+	 */
+	public void addNodes(NodeSelector s) {
+		selector = s;
+		if (isJmxEnabled) {
+			Iterator<NodeSelector.Node> itr = s.getNodes().iterator();
+			INodeStatsMXBean n;
+			while (itr.hasNext()) {
+				n = itr.next();
+				register("node,address=" + ObjectName.quote(n.getAddress()), n);
+			}
+		}
+	}
+
+	/**
+	 * Include the transport's compression numbers in snapshots and JMX
+	 * @param g
+	 */
+	public void addCompression(Gzip g) {
+		gzip = g;
+		if (isJmxEnabled)
+			register("compression", g);
+	}
+
+	/**
+	 * Include index bootstrap in snapshots
+	 * @param b
+	 */
+	public void addBootstrap(IndexBootstrap b) {
+		bootstrap = b;
+	}
+
+	/**
+	 * @param millis how long the client's constructor took
+	 */
+	public void recordStartup(long millis) {
+		startupMillis = millis;
+	}
+
+	/**
+	 * @return how long the client's constructor took, <code>-1</code> until it returns
+	 */
+	public long getStartupMillis() {
+		return startupMillis;
+	}
+
+	/**
+	 * Include hot-key tracking and cache warm-up in snapshots and JMX
+	 * @param h
+	 */
+	public void addHotKeys(HotKeyTracker h) {
+		hotKeys = h;
+		if (isJmxEnabled)
+			register("hotkeys", h);
+	}
+
+	/**
+	 * @return a start time for {@link #end(long, String, String, String, long, long)}
+	 */
+	public long begin() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a completed operation
+	 * @param start from {@link #begin()}
+	 * @param op
+	 * @param index
+	 * @param id can be <code>null</code>
+	 * @param requestBytes <code>-1</code> if unknown
+	 * @param responseBytes <code>-1</code> if unknown
+	 */
+	public void end(long start, String op, String index, String id, long requestBytes, long responseBytes) {
+		long nanos = System.nanoTime() - start;
+		OperationStats s = stats(op);
+		s.latency.record(nanos / 1000);
+		if (requestBytes > 0)
+			s.requestBytes.add(requestBytes);
+		if (responseBytes > 0)
+			s.responseBytes.add(responseBytes);
+		tracer.record(op, index, id, Math.max(requestBytes, responseBytes), nanos);
+	}
+
+	/**
+	 * Count a failed operation
+	 * @param op
+	 */
+	public void error(String op) {
+		stats(op).errors.increment();
+	}
+
+	/**
+	 * @param op
+	 * @return can return <code>null</code> if <code>op</code> has not happened
+	 */
+	public OperationStats getOperationStats(String op) {
+		return operations.get(op);
+	}
+
+	/**
+	 * @return every operation's numbers, the cache's and the nodes', as JSON
+	 */
+	public JSONObject getSnapshot() {
+		JSONObject result = new JSONObject();
+		JSONObject ops = new JSONObject();
+		Iterator<Map.Entry<String, OperationStats>> itr = operations.entrySet().iterator();
+		Map.Entry<String, OperationStats> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			ops.put(e.getKey(), e.getValue().toJSON());
+		}
+		result.put("operations", ops);
+		JSONObject c = new JSONObject();
+		c.put("size", cache.size());
+		c.put("weightedSize", cache.getWeightedSize());
+		c.put("hits", cache.getHitCount());
+		c.put("misses", cache.getMissCount());
+		c.put("evictions", cache.getEvictionCount());
+		c.put("hitRatio", cache.getHitRatio());
+		if (cache instanceof TieredDocumentCache) {
+			TieredDocumentCache t = (TieredDocumentCache)cache;
+			JSONObject o = new JSONObject();
+			o.put("size", t.getOffHeapTier().size());
+			o.put("allocatedBytes", t.getOffHeapTier().getAllocatedBytes());
+			o.put("hits", t.getOffHeapHitCount());
+			o.put("evictions", t.getOffHeapTier().getEvictionCount());
+			o.put("compressionRatio", t.getOffHeapTier().getCompressionRatio());
+			c.put("offHeap", o);
+		}
+		result.put("cache", c);
+		if (selector != null)
+			result.put("nodes", selector.getSnapshot());
+		if (gzip != null)
+			result.put("compression", gzip.toJSON());
+		if (hotKeys != null)
+			result.put("hotKeys", hotKeys.toJSON());
+		result.put("startupMillis", startupMillis);
+		if (bootstrap != null)
+			result.put("bootstrap", bootstrap.toJSON());
+		result.put("timestamp", System.currentTimeMillis());
+		return result;
+	}
+
+	/**
+	 * Unregister the MBeans
+	 */
+	public void shutdown() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (registered) {
+			Iterator<ObjectName> itr = registered.iterator();
+			while (itr.hasNext()) {
+				try {
+					server.unregisterMBean(itr.next());
+				} catch (Exception e) {
+					environment.logError("ClientMetrics "+e.getMessage(), e);
+				}
+			}
+			registered.clear();
+		}
+	}
+
+	private OperationStats stats(String op) {
+		OperationStats result = operations.get(op);
+		if (result == null) {
+			OperationStats s = new OperationStats();
+			result = operations.putIfAbsent(op, s);
+			if (result == null) {
+				result = s;
+				if (isJmxEnabled)
+					register(op, s);
+			}
+		}
+		return result;
+	}
+
+	private void register(String name, Object bean) {
+		try {
+			ObjectName on = new ObjectName(domain + ",name=" + name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, on);
+			synchronized (registered) {
+				registered.add(on);
+			}
+		} catch (Exception e) {
+			environment.logError("ClientMetrics "+name+" "+e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.topicquests.node.provider.api.IJsonCodec;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.ContainerFactory;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author park
+ * <p>An {@link IJsonCodec} which parses objects into {@link CompactNode}s,
+ * so that parsed and cached nodes share their field names and hold no
+ * hash table entries. Name it as <code>JsonCodecClass</code> to use it.</p>
+ */
+public class CompactJsonCodec implements IJsonCodec {
+	private static final ContainerFactory FACTORY = new ContainerFactory() {
+
+		@Override
+		public Map<String, Object> createObjectContainer() {
+			return new CompactNode();
+		}
+
+		@Override
+		public List<Object> creatArrayContainer() {
+			return new JSONArray();
+		}
+	};
+
+	@Override
+	public JSONObject decode(byte[] bytes) throws Exception {
+		// JSONParser is not thread safe, but cheap to create
+		return (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(bytes, FACTORY);
+	}
+
+	@Override
+	public byte[] encode(JSONObject object) {
+		return object.toJSONString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,484 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>A {@link JSONObject} which keeps its entries in one array of
+ * alternating keys and values rather than in a hash table of entry
+ * objects; made by {@link CompactJsonCodec}</p>
+ * <p>Field names known from <code>mappings.json</code>, and those of
+ * ElasticSearch responses, are shared: each node refers to the one
+ * interned String rather than holding its own copy. Since Java interns
+ * string literals too, a lookup such as <code>get("lox")</code> usually
+ * matches by identity. Booleans and small numbers are the shared boxed
+ * instances.</p>
+ * <p>Lookups scan the array, which for nodes of a few dozen fields is
+ * as quick as hashing. The inherited hash table is never used. Like
+ * {@link HashMap}, a node is not thread safe while it is being changed.</p>
+ */
+public class CompactNode extends JSONObject {
+	private static final long serialVersionUID = 1L;
+	private static final Map<String, String> FIELD_NAMES = new ConcurrentHashMap<String, String>();
+	private static final Object [] EMPTY = new Object[0];
+	private static final int INITIAL_PAIRS = 8;
+	// keys at even indices, values at odd
+	private Object [] kv = EMPTY;
+	private int count = 0;
+
+	static {
+		String [] names = {
+			"_index", "_type", "_id", "_version", "_score", "_source", "_scroll_id",
+			"found", "hits", "total", "max_score", "docs", "took", "timed_out",
+			"_shards", "successful", "failed", "errors", "items", "status",
+			"error", "reason", "count", "get", "result", "created", "sort"
+		};
+		for (String n : names)
+			internFieldName(n);
+	}
+
+	public CompactNode() {
+	}
+
+	/**
+	 * @param m entries to copy
+	 */
+	public CompactNode(Map<String, ?> m) {
+		kv = new Object[Math.max(2, 2 * m.size())];
+		Iterator<? extends Map.Entry<String, ?>> itr = m.entrySet().iterator();
+		Map.Entry<String, ?> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Share <code>name</code> among all nodes
+	 * @param name
+	 * @return the shared instance
+	 */
+	public static String internFieldName(String name) {
+		String result = FIELD_NAMES.get(name);
+		if (result == null) {
+			result = name.intern();
+			FIELD_NAMES.put(result, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Share every property name in <code>mappings</code>, at any depth
+	 * @param mappings as in <code>mappings.json</code>
+	 */
+	public static void internFieldNames(Map<String, ?> mappings) {
+		Iterator<? extends Map.Entry<String, ?>> itr = mappings.entrySet().iterator();
+		Map.Entry<String, ?> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			if (e.getValue() instanceof Map) {
+				Map<String, ?> m = (Map<String, ?>)e.getValue();
+				if ("properties".equals(e.getKey())) {
+					Iterator<String> names = m.keySet().iterator();
+					while (names.hasNext())
+						internFieldName(names.next());
+				}
+				internFieldNames(m);
+			}
+		}
+	}
+
+	/**
+	 * @return a rough estimate of the heap held, as
+	 *  {@link DocumentCache#estimateWeight(Object)} makes for a map
+	 */
+	int estimateWeight() {
+		int result = 56 + 16 + 4 * kv.length;
+		Object k;
+		for (int i=0; i<count; i+=2) {
+			k = kv[i];
+			if (FIELD_NAMES.get(k) != k)
+				result += DocumentCache.estimateWeight(k);
+			result += DocumentCache.estimateWeight(kv[i + 1]);
+		}
+		return result;
+	}
+
+	///////////////////////
+	// Map
+	///////////////////////
+
+	@Override
+	public int size() {
+		return count >> 1;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int i = indexOf(key);
+		return (i < 0) ? null : kv[i + 1];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (int i=1; i<count; i+=2) {
+			if (Objects.equals(kv[i], value))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		value = canonical(value);
+		int i = indexOf(key);
+		if (i >= 0) {
+			Object old = kv[i + 1];
+			kv[i + 1] = value;
+			return old;
+		}
+		if (count == kv.length)
+			kv = Arrays.copyOf(kv, Math.max(2 * INITIAL_PAIRS, kv.length + (kv.length >> 1) + 1 & ~1));
+		String shared = FIELD_NAMES.get(key);
+		kv[count++] = (shared == null) ? key : shared;
+		kv[count++] = value;
+		return null;
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> m) {
+		Iterator<? extends Map.Entry<? extends String, ? extends Object>> itr = m.entrySet().iterator();
+		Map.Entry<? extends String, ? extends Object> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	@Override
+	public Object remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0)
+			return null;
+		Object old = kv[i + 1];
+		removeAt(i);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(kv, 0, count, null);
+		count = 0;
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object defaultValue) {
+		int i = indexOf(key);
+		return (i < 0) ? defaultValue : kv[i + 1];
+	}
+
+	@Override
+	public Object putIfAbsent(String key, Object value) {
+		int i = indexOf(key);
+		if (i >= 0 && kv[i + 1] != null)
+			return kv[i + 1];
+		return put(key, value);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		int i = indexOf(key);
+		if (i < 0 || !Objects.equals(kv[i + 1], value))
+			return false;
+		removeAt(i);
+		return true;
+	}
+
+	@Override
+	public boolean replace(String key, Object oldValue, Object newValue) {
+		int i = indexOf(key);
+		if (i < 0 || !Objects.equals(kv[i + 1], oldValue))
+			return false;
+		kv[i + 1] = canonical(newValue);
+		return true;
+	}
+
+	@Override
+	public Object replace(String key, Object value) {
+		int i = indexOf(key);
+		if (i < 0)
+			return null;
+		Object old = kv[i + 1];
+		kv[i + 1] = canonical(value);
+		return old;
+	}
+
+	@Override
+	public Object computeIfAbsent(String key, Function<? super String, ? extends Object> f) {
+		Object v = get(key);
+		if (v == null && (v = f.apply(key)) != null)
+			put(key, v);
+		return v;
+	}
+
+	@Override
+	public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ? extends Object> f) {
+		Object v = get(key);
+		if (v == null)
+			return null;
+		v = f.apply(key, v);
+		if (v == null)
+			remove(key);
+		else
+			put(key, v);
+		return v;
+	}
+
+	@Override
+	public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> f) {
+		Object v = f.apply(key, get(key));
+		if (v == null)
+			remove(key);
+		else
+			put(key, v);
+		return v;
+	}
+
+	@Override
+	public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ? extends Object> f) {
+		Object old = get(key);
+		Object v = (old == null) ? value : f.apply(old, value);
+		if (v == null)
+			remove(key);
+		else
+			put(key, v);
+		return v;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super String, ? super Object> action) {
+		for (int i=0; i<count; i+=2)
+			action.accept((String)kv[i], kv[i + 1]);
+	}
+
+	@Override
+	public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> f) {
+		for (int i=0; i<count; i+=2)
+			kv[i + 1] = canonical(f.apply((String)kv[i], kv[i + 1]));
+	}
+
+	@Override
+	public Object clone() {
+		CompactNode result = new CompactNode();
+		result.kv = Arrays.copyOf(kv, kv.length);
+		result.count = count;
+		return result;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Cursor<Map.Entry<String, Object>>() {
+					@Override
+					Map.Entry<String, Object> at(int i) {
+						return new Slot(i);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return count >> 1;
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+
+			@Override
+			public Iterator<String> iterator() {
+				return new Cursor<String>() {
+					@Override
+					String at(int i) {
+						return (String)kv[i];
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return count >> 1;
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+
+			@Override
+			public Iterator<Object> iterator() {
+				return new Cursor<Object>() {
+					@Override
+					Object at(int i) {
+						return kv[i + 1];
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return count >> 1;
+			}
+		};
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	/**
+	 * Walks the pairs; supports {@link Iterator#remove()}
+	 */
+	private abstract class Cursor<T> implements Iterator<T> {
+		private int next = 0;
+		private int last = -1;
+
+		abstract T at(int i);
+
+		@Override
+		public boolean hasNext() {
+			return next < count;
+		}
+
+		@Override
+		public T next() {
+			if (next >= count)
+				throw new NoSuchElementException();
+			last = next;
+			next += 2;
+			return at(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0)
+				throw new IllegalStateException();
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+
+	/**
+	 * An entry which reads and writes its pair in place
+	 */
+	private final class Slot implements Map.Entry<String, Object> {
+		private final int i;
+
+		Slot(int i) {
+			this.i = i;
+		}
+
+		@Override
+		public String getKey() {
+			return (String)kv[i];
+		}
+
+		@Override
+		public Object getValue() {
+			return kv[i + 1];
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object old = kv[i + 1];
+			kv[i + 1] = canonical(value);
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+			return Objects.equals(getKey(), e.getKey()) && Objects.equals(getValue(), e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	private int indexOf(Object key) {
+		for (int i=0; i<count; i+=2) {
+			if (kv[i] == key)
+				return i;
+		}
+		if (key == null)
+			return -1;
+		for (int i=0; i<count; i+=2) {
+			if (key.equals(kv[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove the pair at <code>i</code>, keeping the order of the rest
+	 */
+	private void removeAt(int i) {
+		System.arraycopy(kv, i + 2, kv, i, count - i - 2);
+		kv[--count] = null;
+		kv[--count] = null;
+	}
+
+	/**
+	 * @param v
+	 * @return the shared instance of a boolean or small number
+	 */
+	private static Object canonical(Object v) {
+		if (v instanceof Boolean)
+			return Boolean.valueOf((Boolean)v);
+		if (v instanceof Long)
+			return Long.valueOf((Long)v);
+		if (v instanceof Integer)
+			return Integer.valueOf((Integer)v);
+		return v;
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+/**
+ * @author park
+ * <p>How writes become visible to searches; set with the
+ * <code>ConsistencyMode</code> property in the config file</p>
+ */
+public enum ConsistencyMode {
+	/** every write forces a refresh: <code>refresh=true</code> */
+	REFRESH,
+	/** writes mark their index dirty; a {@link RefreshScheduler} refreshes
+	 * dirty indices at <code>RefreshIntervalMillis</code> */
+	INTERVAL,
+	/** writes return once a scheduled refresh has made them visible:
+	 * <code>refresh=wait_for</code>, which requires ElasticSearch 5.0 or later */
+	WAIT_FOR;
+
+	public static ConsistencyMode fromProperty(String value) {
+		if (value == null)
+			return REFRESH;
+		return valueOf(value.trim().toUpperCase());
+	}
+}
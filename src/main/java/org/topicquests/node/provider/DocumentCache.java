@@ -0,0 +1,355 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.node.provider.api.IDocumentCache;
+import org.topicquests.node.provider.api.IEvictionListener;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>The default {@link IDocumentCache}</p>
+ * <ul>
+ * <li>Bounded by the estimated heap bytes of cached nodes rather than
+ * their number: <code>CacheMaxBytes</code></li>
+ * <li>Split into independently locked LRU segments for concurrency</li>
+ * <li>Frequency-aware admission: when full, a new node only displaces the
+ * least recently used node if it has been asked for at least as often,
+ * according to a {@link FrequencySketch}; so a scan of cold nodes cannot
+ * flush hot ones. A node just written, see
+ * {@link #putWritten(String, String, JSONObject, byte[])}, is always
+ * admitted.</li>
+ * <li>Optional expiry after write: <code>CacheTTLSeconds</code></li>
+ * <li>An optional {@link IEvictionListener} receives what is evicted
+ * or not admitted, e.g. to keep it in a second tier</li>
+ * </ul>
+ */
+public class DocumentCache implements IDocumentCache {
+	private static final int SEGMENTS = 16;
+	/** a guess at an average node, to size the sketch */
+	private static final int AVERAGE_WEIGHT = 2048;
+	/** parsed json-smart trees run to several times their JSON size */
+	private static final int HEAP_PER_JSON_BYTE = 4;
+	private final Segment [] segments;
+	private final FrequencySketch sketch;
+	private final long ttlMillis;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private volatile IEvictionListener listener = null;
+
+	private static final class Node {
+		final String key;
+		final JSONObject value;
+		/** kept only for a listener, which can then store it unchanged */
+		final byte [] serialized;
+		final int weight;
+		final long expiresAt;
+
+		Node(String key, JSONObject value, byte [] serialized, int weight, long expiresAt) {
+			this.key = key;
+			this.value = value;
+			this.serialized = serialized;
+			this.weight = (serialized == null) ? weight : weight + serialized.length;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final class Segment {
+		final LinkedHashMap<String, Node> map = new LinkedHashMap<String, Node>(16, 0.75f, true);
+		final long maxWeight;
+		long weight = 0;
+
+		Segment(long maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+
+		synchronized JSONObject get(String key) {
+			Node n = map.get(key);
+			if (n == null)
+				return null;
+			if (n.expiresAt > 0 && n.expiresAt < System.currentTimeMillis()) {
+				map.remove(key);
+				weight -= n.weight;
+				return null;
+			}
+			return n.value;
+		}
+
+		/**
+		 * @param node
+		 * @param admit whether <code>node</code> must be asked for at least
+		 *  as often as the first node it would evict
+		 */
+		synchronized void put(Node node, boolean admit) {
+			Node old = map.remove(node.key);
+			if (old != null)
+				weight -= old.weight;
+			if (node.weight > maxWeight) {
+				spill(node);
+				return;
+			}
+			// decide before evicting anything; replacing a stale node is always allowed
+			if (admit && old == null && weight + node.weight > maxWeight && !map.isEmpty()) {
+				Node first = map.values().iterator().next();
+				if (sketch.frequency(node.key) < sketch.frequency(first.key)) {
+					spill(node);
+					return;
+				}
+			}
+			Iterator<Node> itr = map.values().iterator();
+			Node victim;
+			while (weight + node.weight > maxWeight && itr.hasNext()) {
+				victim = itr.next();
+				itr.remove();
+				weight -= victim.weight;
+				evictions.increment();
+				spill(victim);
+			}
+			map.put(node.key, node);
+			weight += node.weight;
+		}
+
+		/**
+		 * Hand a node leaving, or refused by, this segment to the listener
+		 */
+		private void spill(Node n) {
+			IEvictionListener l = listener;
+			if (l == null || (n.expiresAt > 0 && n.expiresAt < System.currentTimeMillis()))
+				return;
+			int slash = n.key.indexOf('/');
+			l.onEviction(n.key.substring(0, slash), n.key.substring(slash + 1), n.value, n.serialized, n.expiresAt);
+		}
+
+		synchronized void remove(String key) {
+			Node n = map.remove(key);
+			if (n != null)
+				weight -= n.weight;
+		}
+
+		synchronized void clear() {
+			map.clear();
+			weight = 0;
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+	}
+
+	/**
+	 * Sized from <code>CacheMaxBytes</code> and <code>CacheTTLSeconds</code>
+	 * @param env
+	 */
+	public DocumentCache(ProviderEnvironment env) {
+		this(longProperty(env, "CacheMaxBytes", 64L * 1024 * 1024),
+				longProperty(env, "CacheTTLSeconds", 0) * 1000);
+	}
+
+	/**
+	 * @param maxBytes
+	 * @param ttlMillis <code>0</code> means nodes do not expire
+	 */
+	public DocumentCache(long maxBytes, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		segments = new Segment[SEGMENTS];
+		long perSegment = Math.max(1, maxBytes / SEGMENTS);
+		for (int i=0; i<SEGMENTS; i++)
+			segments[i] = new Segment(perSegment);
+		sketch = new FrequencySketch((int)Math.min(Integer.MAX_VALUE, maxBytes / AVERAGE_WEIGHT));
+	}
+
+	/**
+	 * @param l can be <code>null</code> for none
+	 */
+	public void setEvictionListener(IEvictionListener l) {
+		listener = l;
+	}
+
+	/**
+	 * {@link #put(String, String, JSONObject, byte[])} with the expiry
+	 * the node had in another tier
+	 * @param index
+	 * @param id
+	 * @param node
+	 * @param serialized
+	 * @param expiresAt <code>0</code> for never
+	 */
+	public void put(String index, String id, JSONObject node, byte [] serialized, long expiresAt) {
+		String key = key(index, id);
+		sketch.increment(key);
+		segmentFor(key).put(new Node(key, node, retained(serialized), weigh(node, serialized), expiresAt), true);
+	}
+
+	@Override
+	public JSONObject get(String index, String id) {
+		String key = key(index, id);
+		sketch.increment(key);
+		JSONObject result = segmentFor(key).get(key);
+		if (result == null)
+			misses.increment();
+		else
+			hits.increment();
+		return result;
+	}
+
+	@Override
+	public void put(String index, String id, JSONObject node) {
+		String key = key(index, id);
+		sketch.increment(key);
+		long expires = (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : 0;
+		segmentFor(key).put(new Node(key, node, null, estimateWeight(node), expires), true);
+	}
+
+	/**
+	 * Weighs the node by its serialized size rather than by walking it
+	 */
+	@Override
+	public void put(String index, String id, JSONObject node, byte [] serialized) {
+		String key = key(index, id);
+		sketch.increment(key);
+		long expires = (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : 0;
+		segmentFor(key).put(new Node(key, node, retained(serialized), weigh(node, serialized), expires), true);
+	}
+
+	/**
+	 * Admitted whatever its frequency, since a node just written is
+	 * likely to be read back
+	 */
+	@Override
+	public void putWritten(String index, String id, JSONObject node, byte [] serialized) {
+		String key = key(index, id);
+		sketch.increment(key);
+		long expires = (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : 0;
+		int w = (serialized == null) ? estimateWeight(node) : weigh(node, serialized);
+		segmentFor(key).put(new Node(key, node, retained(serialized), w, expires), false);
+	}
+
+	@Override
+	public void remove(String index, String id) {
+		String key = key(index, id);
+		segmentFor(key).remove(key);
+	}
+
+	@Override
+	public void clear() {
+		for (int i=0; i<SEGMENTS; i++)
+			segments[i].clear();
+	}
+
+	@Override
+	public long size() {
+		long result = 0;
+		for (int i=0; i<SEGMENTS; i++)
+			result += segments[i].size();
+		return result;
+	}
+
+	@Override
+	public long getWeightedSize() {
+		long result = 0;
+		for (int i=0; i<SEGMENTS; i++)
+			result += segments[i].weight();
+		return result;
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total == 0) ? 0 : (double)h / (double)total;
+	}
+
+	/**
+	 * A rough estimate of the heap held by a parsed node: json-smart
+	 * builds a HashMap of Strings, boxed numbers and lists
+	 * @param o
+	 * @return bytes
+	 */
+	static int estimateWeight(Object o) {
+		if (o == null || o instanceof Boolean)
+			return 0;
+		if (o instanceof CompactNode)
+			return ((CompactNode)o).estimateWeight();
+		if (o instanceof String)
+			return 40 + 2 * ((String)o).length();
+		if (o instanceof Map) {
+			Map<?,?> m = (Map<?,?>)o;
+			int result = 48 + 16 * m.size();
+			Iterator<? extends Map.Entry<?,?>> itr = m.entrySet().iterator();
+			Map.Entry<?,?> e;
+			while (itr.hasNext()) {
+				e = itr.next();
+				result += 32 + estimateWeight(e.getKey()) + estimateWeight(e.getValue());
+			}
+			return result;
+		}
+		if (o instanceof List) {
+			List<?> l = (List<?>)o;
+			int result = 40 + 8 * l.size();
+			Iterator<?> itr = l.iterator();
+			while (itr.hasNext())
+				result += estimateWeight(itr.next());
+			return result;
+		}
+		return 24;
+	}
+
+	/**
+	 * A {@link CompactNode} is far smaller than {@link #HEAP_PER_JSON_BYTE}
+	 * suggests, so is weighed by walking it
+	 */
+	private static int weigh(JSONObject node, byte [] serialized) {
+		if (node instanceof CompactNode)
+			return estimateWeight(node);
+		return HEAP_PER_JSON_BYTE * serialized.length;
+	}
+
+	/**
+	 * @param serialized
+	 * @return <code>serialized</code> if a listener will want it
+	 */
+	private byte [] retained(byte [] serialized) {
+		return (listener == null) ? null : serialized;
+	}
+
+	private static String key(String index, String id) {
+		// index names cannot contain '/'
+		return index + "/" + id;
+	}
+
+	private Segment segmentFor(String key) {
+		return segments[FrequencySketch.spread(key.hashCode()) & (SEGMENTS - 1)];
+	}
+
+	private static long longProperty(ProviderEnvironment env, String key, long defaultValue) {
+		String v = env.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Long.parseLong(v.trim());
+	}
+}
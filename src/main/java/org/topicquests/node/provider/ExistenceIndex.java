@@ -0,0 +1,284 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.searchbox.indices.Refresh;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>A local {@link BloomFilter} of the ids in each index, so that
+ * {@link Client} can answer "not there" without a network call</p>
+ * <p>Each filter is seeded by a source-less scan of its index and
+ * rebuilt periodically, since deleted ids cannot be removed from a Bloom
+ * filter. Until its first scan completes, an index has no filter and
+ * every lookup goes to ElasticSearch.</p>
+ * <p>While a rebuild runs, new ids go into both the old and the new
+ * filter. The index is refreshed after the new filter starts receiving
+ * ids and before the scan, so no acknowledged write can slip between the two.</p>
+ * <p>A filter knows only the ids written through its own {@link Client},
+ * so it must be the indices' only writer. To catch a breach, every
+ * <code>checkSeconds</code> the index operations ElasticSearch counted on
+ * primaries since the scan are compared with those this client noted; if
+ * ElasticSearch counted more twice running, someone else is writing, and
+ * the filter answers nothing until its next rebuild. Between two checks,
+ * another writer's new ids may still be answered as absent. A bulk load
+ * which notes no ids, such as an {@link Importer} run, suspends the filter
+ * while it runs and has it rebuilt after.</p>
+ */
+public class ExistenceIndex {
+	private ProviderEnvironment environment;
+	private Client client;
+	private Map<String, IndexFilter> filters;
+	private ScheduledExecutorService scheduler;
+	private final long expectedIds;
+	private final double fpp;
+	private final LongAdder definiteMisses = new LongAdder();
+	private static final String SCAN_QUERY =
+			"{\"_source\":false,\"query\":{\"match_all\":{}}}";
+
+	private static class IndexFilter {
+		volatile BloomFilter active = null;
+		volatile BloomFilter building = null;
+		/** ids noted through this client */
+		final LongAdder noted = new LongAdder();
+		/** ElasticSearch's and our counts when the active filter was scanned */
+		volatile long baseIndexed = -1;
+		volatile long baseNoted = 0;
+		/** checks in a row which found writes we did not note */
+		int excessChecks = 0;
+		/** set when another writer was seen; cleared by a rebuild */
+		volatile boolean suspect = false;
+		final AtomicInteger suspended = new AtomicInteger(0);
+	}
+
+	/**
+	 * @param env
+	 * @param c
+	 * @param expectedIds per index
+	 * @param fpp false positive probability
+	 */
+	public ExistenceIndex(ProviderEnvironment env, Client c, long expectedIds, double fpp) {
+		environment = env;
+		client = c;
+		this.expectedIds = expectedIds;
+		this.fpp = fpp;
+		filters = new ConcurrentHashMap<String, IndexFilter>();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ExistenceIndex");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Seed a filter for each of <code>indices</code> in the background,
+	 * then rebuild every <code>rebuildMinutes</code>
+	 * @param indices
+	 * @param rebuildMinutes <code>0</code> disables rebuilding
+	 * @param checkSeconds how often to look for another writer;
+	 *  <code>0</code> for never
+	 */
+	public void start(Collection<String> indices, long rebuildMinutes, long checkSeconds) {
+		Iterator<String> itr = indices.iterator();
+		while (itr.hasNext())
+			filters.put(itr.next(), new IndexFilter());
+		scheduler.execute(() -> rebuildAll());
+		if (rebuildMinutes > 0)
+			scheduler.scheduleWithFixedDelay(() -> rebuildAll(), rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+		if (checkSeconds > 0)
+			scheduler.scheduleWithFixedDelay(() -> checkAll(), checkSeconds, checkSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Record an id which is now in <code>index</code>
+	 * @param index
+	 * @param id
+	 */
+	public void add(String index, String id) {
+		IndexFilter f = filters.get(index);
+		if (f == null)
+			return;
+		f.noted.increment();
+		BloomFilter b = f.building;
+		if (b != null)
+			b.put(id);
+		b = f.active;
+		if (b != null)
+			b.put(id);
+	}
+
+	/**
+	 * Returns <code>true</code> only if <code>id</code> is certainly not in <code>index</code>
+	 * @param index
+	 * @param id
+	 * @return
+	 */
+	public boolean isDefinitelyAbsent(String index, String id) {
+		IndexFilter f = filters.get(index);
+		if (f == null || f.suspect || f.suspended.get() > 0)
+			return false;
+		BloomFilter b = f.active;
+		if (b == null || b.mightContain(id))
+			return false;
+		definiteMisses.increment();
+		return true;
+	}
+
+	/**
+	 * @return how many lookups were answered without a network call
+	 */
+	public long getDefiniteMissCount() {
+		return definiteMisses.sum();
+	}
+
+	public boolean isReady(String index) {
+		IndexFilter f = filters.get(index);
+		return f != null && f.active != null && !f.suspect && f.suspended.get() == 0;
+	}
+
+	/**
+	 * Answer nothing for <code>index</code> until {@link #resume(String)},
+	 * e.g. while ids are written which are not noted
+	 * @param index
+	 */
+	public void suspend(String index) {
+		IndexFilter f = filters.get(index);
+		if (f != null)
+			f.suspended.incrementAndGet();
+	}
+
+	/**
+	 * End a {@link #suspend(String)}; the filter is rebuilt in the
+	 * background and answers again once the rebuild is done
+	 * @param index
+	 */
+	public void resume(String index) {
+		IndexFilter f = filters.get(index);
+		if (f == null)
+			return;
+		f.suspect = true;
+		f.suspended.decrementAndGet();
+		scheduler.execute(() -> rebuild(index, f));
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private void rebuildAll() {
+		Iterator<Map.Entry<String, IndexFilter>> itr = filters.entrySet().iterator();
+		Map.Entry<String, IndexFilter> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			rebuild(e.getKey(), e.getValue());
+		}
+	}
+
+	private void rebuild(String index, IndexFilter f) {
+		BloomFilter b = new BloomFilter(expectedIds, fpp);
+		f.building = b;
+		try {
+			client.getJestClient().execute(new Refresh.Builder().addIndex(index).build());
+			long indexed = countIndexed(index);
+			long noted = f.noted.sum();
+			long count = scan(index, b);
+			synchronized (f) {
+				f.baseIndexed = indexed;
+				f.baseNoted = noted;
+				f.excessChecks = 0;
+				f.active = b;
+				f.suspect = false;
+			}
+			environment.logDebug("ExistenceIndex "+index+" "+count);
+		} catch (Exception e) {
+			// keep the old filter; it is still correct, just less sharp
+			environment.logError("ExistenceIndex "+index+" "+e.getMessage(), e);
+		} finally {
+			f.building = null;
+		}
+	}
+
+	private void checkAll() {
+		Iterator<Map.Entry<String, IndexFilter>> itr = filters.entrySet().iterator();
+		Map.Entry<String, IndexFilter> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			try {
+				check(e.getKey(), e.getValue());
+			} catch (Exception x) {
+				environment.logError("ExistenceIndex check "+e.getKey()+" "+x.getMessage(), x);
+			}
+		}
+	}
+
+	/**
+	 * Suspect <code>f</code> if ElasticSearch counted more index operations
+	 * than this client noted, on two checks in a row, so that a write
+	 * acknowledged but not yet noted does not count
+	 * @param index
+	 * @param f
+	 * @throws Exception
+	 */
+	private void check(String index, IndexFilter f) throws Exception {
+		if (f.active == null || f.suspect || f.baseIndexed < 0)
+			return;
+		long indexed = countIndexed(index);
+		long noted = f.noted.sum();
+		synchronized (f) {
+			// a counter which went back, e.g. after a node restart, hides what happened
+			if (indexed < f.baseIndexed || indexed - f.baseIndexed > noted - f.baseNoted)
+				f.excessChecks++;
+			else
+				f.excessChecks = 0;
+			if (f.excessChecks < 2)
+				return;
+			f.suspect = true;
+		}
+		environment.logError("ExistenceIndex "+index+" is written by another client; its filter answers"+
+				" nothing until rebuilt, and ExistenceFilterEnabled needs a single writer", null);
+	}
+
+	/**
+	 * @param index
+	 * @return index operations on primaries, as ElasticSearch counts them
+	 * @throws Exception
+	 */
+	private long countIndexed(String index) throws Exception {
+		JsonTransport.Response rs = client.getTransport().execute(JsonTransport.GET,
+				"/"+JsonTransport.encodeId(index)+"/_stats/indexing", null);
+		if (!rs.isSucceeded())
+			throw new Exception(rs.getErrorMessage());
+		JSONObject all = (JSONObject)rs.body.get("_all");
+		JSONObject primaries = (JSONObject)all.get("primaries");
+		JSONObject indexing = (JSONObject)primaries.get("indexing");
+		return ((Number)indexing.get("index_total")).longValue();
+	}
+
+	/**
+	 * Put every id in <code>index</code> into <code>b</code>
+	 * @param index
+	 * @param b
+	 * @return number of ids
+	 * @throws Exception
+	 */
+	private long scan(String index, BloomFilter b) throws Exception {
+		long result = 0;
+		try (ScrollIterator itr = client.scrollHits(SCAN_QUERY, index, -1, 0, false)) {
+			while (itr.hasNext()) {
+				b.put((String)itr.next().get("_id"));
+				result++;
+			}
+		}
+		return result;
+	}
+}
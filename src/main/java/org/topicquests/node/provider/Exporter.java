@@ -0,0 +1,209 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.zip.GZIPOutputStream;
+
+import org.topicquests.node.provider.api.IProgressListener;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Dumps an index to gzipped NDJSON files which {@link Importer} can
+ * load into any index</p>
+ * <p>Each of <code>ExportSlices</code> scrolls writes its own files,
+ * <code>index-sN-pM.ndjson.gz</code>, starting a new one every
+ * <code>ExportPartDocs</code> nodes. Lines come in pairs, a bulk
+ * <code>index</code> action carrying the <code>_id</code>, then the
+ * source, so that a file can be sent as bulk bodies unparsed.</p>
+ * <p>A slice which finishes writes <code>index-sN.done</code>. Run again
+ * into the same directory, an export skips finished slices and starts
+ * the others over; a scroll cannot be resumed part way. If a slice
+ * fails the others are stopped unfinished. Slices need
+ * ElasticSearch 5.0 or later; before that an export is a single slice.</p>
+ */
+public class Exporter {
+	private ProviderEnvironment environment;
+	private Client client;
+	private final int slices;
+	private final int partDocs;
+	/** nodes between progress reports */
+	private static final int REPORT_EVERY = 1000;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	public static final String
+		EXPORT		= "export",
+		DONE		= "done";
+	public static final String SUFFIX = ".ndjson.gz";
+
+	/**
+	 * @param env
+	 * @param c
+	 */
+	public Exporter(ProviderEnvironment env, Client c) {
+		environment = env;
+		client = c;
+		slices = getIntProperty("ExportSlices", 1);
+		partDocs = getIntProperty("ExportPartDocs", 100000);
+	}
+
+	/**
+	 * Write every hit of <code>query</code> in <code>index</code>
+	 * to files in <code>dir</code>
+	 * @param index
+	 * @param query a search body; can be <code>null</code> for all
+	 * @param dir created if need be
+	 * @param listener can be <code>null</code>
+	 * @return a summary of the run
+	 */
+	public IResult export(String index, String query, File dir, IProgressListener listener) {
+		IResult result = new ResultPojo();
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create "+dir);
+			long total = -1;
+			if (query == null) {
+				IResult r = client.count("{\"query\":{\"match_all\":{}}}", index);
+				if (!r.hasError())
+					total = ((Number)r.getResultObject()).longValue();
+			}
+			Progress progress = new Progress(listener, total, EXPORT);
+			progress.report(EXPORT);
+			int n = Math.max(1, slices);
+			SliceGroup readers = new SliceGroup(n);
+			long resumed = 0;
+			List<CompletableFuture<Long>> parts = new ArrayList<CompletableFuture<Long>>(n);
+			try {
+				for (int i=0; i<n; i++) {
+					final int slice = i;
+					final File marker = new File(dir, index+"-s"+slice+".done");
+					if (marker.isFile()) {
+						long count = Long.parseLong(new String(Files.readAllBytes(marker.toPath()),
+								StandardCharsets.UTF_8).trim());
+						progress.add(count, 0, null);
+						resumed += count;
+						continue;
+					}
+					parts.add(readers.submit(() -> {
+						try {
+							return exportSlice(index, query, dir, slice, n, marker, progress, readers);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}));
+				}
+				for (CompletableFuture<Long> f : parts)
+					f.join();
+			} catch (RuntimeException e) {
+				readers.cancel(e);
+				throw e;
+			} finally {
+				readers.await();
+			}
+			progress.report(DONE);
+			JSONObject summary = new JSONObject();
+			summary.put("index", index);
+			summary.put("dir", dir.getPath());
+			summary.put("slices", n);
+			summary.put("docs", progress.done.get());
+			summary.put("resumed", resumed);
+			summary.put("seconds", progress.getSeconds());
+			summary.put("docsPerSecond", (progress.done.get() - resumed) / Math.max(progress.getSeconds(), 1e-9));
+			result.setResultObject(summary);
+			environment.logDebug("Exporter "+summary.toJSONString());
+		} catch (Exception e) {
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	/**
+	 * Write one slice from the beginning, replacing any files an
+	 * earlier, unfinished run left
+	 * @param index
+	 * @param query
+	 * @param dir
+	 * @param slice
+	 * @param maxSlices
+	 * @param marker written when the slice is complete
+	 * @param progress
+	 * @param group stops this slice if another fails
+	 * @return nodes written
+	 * @throws IOException
+	 */
+	private long exportSlice(String index, String query, File dir, int slice, int maxSlices,
+			File marker, Progress progress, SliceGroup group) throws IOException {
+		String prefix = index+"-s"+slice+"-p";
+		File [] stale = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+		if (stale != null) {
+			for (File f : stale)
+				Files.delete(f.toPath());
+		}
+		long count = 0;
+		int part = 0;
+		int inPart = 0;
+		int unreported = 0;
+		OutputStream out = null;
+		StringBuilder buf = new StringBuilder();
+		JSONObject hit;
+		try (ScrollIterator itr = group.open(client.scrollHits(query, index, (maxSlices > 1) ? slice : -1, maxSlices, false))) {
+			while (itr.hasNext()) {
+				hit = itr.next();
+				if (out == null)
+					out = openPart(new File(dir, prefix+(part++)+SUFFIX));
+				buf.setLength(0);
+				BulkSender.appendIndex(buf, null, (String)hit.get("_id"), (JSONObject)hit.get("_source"));
+				out.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+				count++;
+				if (++unreported >= REPORT_EVERY) {
+					progress.add(unreported, 0, null);
+					unreported = 0;
+				}
+				if (++inPart >= partDocs) {
+					out.close();
+					out = null;
+					inPart = 0;
+				}
+			}
+		} finally {
+			if (out != null)
+				out.close();
+		}
+		// a cancelled slice is not complete
+		if (group.isCancelled())
+			throw new CancellationException("Export of "+index+" slice "+slice+" stopped");
+		progress.add(unreported, 0, null);
+		Files.write(marker.toPath(), Long.toString(count).getBytes(StandardCharsets.UTF_8));
+		return count;
+	}
+
+	private OutputStream openPart(File f) throws IOException {
+		return new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f), BUFFER_SIZE), BUFFER_SIZE);
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		String v = environment.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Integer.parseInt(v.trim());
+	}
+}
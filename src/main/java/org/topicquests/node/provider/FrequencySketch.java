@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+/**
+ * @author park
+ * <p>An approximate, aging count of how often keys are seen: a count-min
+ * sketch of four rows of small saturating counters. Once enough
+ * increments accumulate, every counter is halved so that old popularity
+ * fades.</p>
+ * <p>Counters are updated without locking; a lost increment under a race
+ * only makes an estimate slightly low, which is acceptable for cache
+ * admission and hot-key ranking</p>
+ * @see https://arxiv.org/abs/1512.00727
+ */
+class FrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int [] SEEDS = {
+		0x97cb3127, 0xb4b82e9f, 0x6e7b1a45, 0x1d8e4e27
+	};
+	private final int [] table;
+	private final int width;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param expectedKeys roughly how many distinct keys matter at once
+	 */
+	FrequencySketch(int expectedKeys) {
+		int w = 1;
+		while (w < Math.max(expectedKeys, 64))
+			w <<= 1;
+		width = w;
+		mask = w - 1;
+		table = new int[DEPTH * w];
+		sampleSize = 10 * w;
+	}
+
+	void increment(String key) {
+		int h = spread(key.hashCode());
+		boolean added = false;
+		int ix;
+		for (int i=0; i<DEPTH; i++) {
+			ix = indexOf(h, i);
+			if (table[ix] < MAX_COUNT) {
+				table[ix]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize)
+			reset();
+	}
+
+	int frequency(String key) {
+		int h = spread(key.hashCode());
+		int result = MAX_COUNT;
+		for (int i=0; i<DEPTH; i++)
+			result = Math.min(result, table[indexOf(h, i)]);
+		return result;
+	}
+
+	private synchronized void reset() {
+		if (additions < sampleSize)
+			return;
+		for (int i=0; i<table.length; i++)
+			table[i] >>>= 1;
+		additions = additions >>> 1;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= h >>> 16;
+		return row * width + (h & mask);
+	}
+
+	static int spread(int h) {
+		h ^= h >>> 17;
+		h *= 0xed5ad4bb;
+		h ^= h >>> 11;
+		h *= 0xac4c1b51;
+		h ^= h >>> 15;
+		return h;
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Collects single-node lookups which arrive within a short window and
+ * resolves them with one MultiGet, in the manner of DataLoader</p>
+ * <p>A batch per index opens with its first id and is sent when it holds
+ * <code>maxSize</code> distinct ids or <code>windowMillis</code> after
+ * it opened, whichever comes first. Each caller's future completes with
+ * its own node, or <code>null</code> if not found.</p>
+ * <p>{@link #shutdown()} sends the batches still open; a lookup after
+ * it is refused with a <code>RejectedExecutionException</code>.</p>
+ * @see https://github.com/graphql/dataloader
+ */
+public class GetBatcher {
+	private ProviderEnvironment environment;
+	private Client client;
+	private final int maxSize;
+	private final long windowMillis;
+	private final Object lock = new Object();
+	private Map<String, Batch> open;
+	private ScheduledExecutorService timer;
+	private volatile boolean isShutdown = false;
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+
+	private class Batch {
+		final String index;
+		final LinkedHashMap<String, CompletableFuture<JSONObject>> waiting;
+		ScheduledFuture<?> timeout = null;
+		boolean isSent = false;
+
+		Batch(String index) {
+			this.index = index;
+			waiting = new LinkedHashMap<String, CompletableFuture<JSONObject>>();
+		}
+	}
+
+	/**
+	 * @param env
+	 * @param c
+	 * @param maxSize
+	 * @param windowMillis
+	 */
+	public GetBatcher(ProviderEnvironment env, Client c, int maxSize, long windowMillis) {
+		environment = env;
+		client = c;
+		this.maxSize = maxSize;
+		this.windowMillis = windowMillis;
+		open = new HashMap<String, Batch>();
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "GetBatcher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Queue a lookup of <code>id</code>
+	 * @param index
+	 * @param id
+	 * @return completes with the node's source, or <code>null</code>
+	 */
+	public CompletableFuture<JSONObject> load(String index, String id) {
+		requests.increment();
+		CompletableFuture<JSONObject> result;
+		Batch full = null;
+		synchronized (lock) {
+			if (isShutdown)
+				throw new RejectedExecutionException("GetBatcher is shut down");
+			Batch b = open.get(index);
+			if (b == null) {
+				b = new Batch(index);
+				open.put(index, b);
+				final Batch nb = b;
+				b.timeout = timer.schedule(() -> send(nb), windowMillis, TimeUnit.MILLISECONDS);
+			}
+			result = b.waiting.get(id);
+			if (result == null) {
+				result = new CompletableFuture<JSONObject>();
+				b.waiting.put(id, result);
+			}
+			if (b.waiting.size() >= maxSize) {
+				b.timeout.cancel(false);
+				full = b;
+			}
+		}
+		if (full != null)
+			send(full);
+		return result;
+	}
+
+	/**
+	 * @return MultiGets sent
+	 */
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	/**
+	 * @return lookups queued
+	 */
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	public boolean isShutdown() {
+		return isShutdown;
+	}
+
+	/**
+	 * Stop the timer and send every open batch, so no caller is left waiting
+	 */
+	public void shutdown() {
+		List<Batch> l;
+		synchronized (lock) {
+			isShutdown = true;
+			l = new ArrayList<Batch>(open.values());
+		}
+		timer.shutdownNow();
+		for (Batch b : l)
+			send(b);
+	}
+
+	private void send(Batch b) {
+		synchronized (lock) {
+			if (b.isSent)
+				return;
+			b.isSent = true;
+			if (open.get(b.index) == b)
+				open.remove(b.index);
+		}
+		batches.increment();
+		List<String> ids = new ArrayList<String>(b.waiting.keySet());
+		client.multiGetNodesAsync(ids, b.index).whenComplete((r, e) -> {
+			if (e == null && r.hasError())
+				e = new Exception(r.getErrorString());
+			List<JSONObject> docs = (e == null) ? (List<JSONObject>)r.getResultObject() : null;
+			Iterator<CompletableFuture<JSONObject>> itr = b.waiting.values().iterator();
+			int i = 0;
+			CompletableFuture<JSONObject> f;
+			while (itr.hasNext()) {
+				f = itr.next();
+				if (e != null)
+					f.completeExceptionally(e);
+				else
+					f.complete((docs == null) ? null : docs.get(i));
+				i++;
+			}
+			if (e != null)
+				environment.logError("GetBatcher "+b.index+" "+e.getMessage(), null);
+		});
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.topicquests.node.provider.api.ICompressionStatsMXBean;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Gzip for {@link JsonTransport} bodies, counting what it saves and
+ * what it costs</p>
+ * <p>Request bodies of at least <code>GzipRequestThreshold</code> bytes
+ * are sent compressed; ElasticSearch always accepts a gzip request body.
+ * With <code>GzipResponses</code>, responses are requested gzipped, which
+ * ElasticSearch honours only when the cluster sets
+ * <code>http.compression: true</code>.</p>
+ */
+public class Gzip implements ICompressionStatsMXBean {
+	private final int threshold;
+	private final boolean acceptGzip;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder requestRaw = new LongAdder();
+	private final LongAdder requestWire = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder responses = new LongAdder();
+	private final LongAdder responseRaw = new LongAdder();
+	private final LongAdder responseWire = new LongAdder();
+	private final LongAdder decompressNanos = new LongAdder();
+
+	/**
+	 * @param threshold smallest request body compressed, <code>-1</code>
+	 *  to compress none
+	 * @param acceptGzip
+	 */
+	public Gzip(int threshold, boolean acceptGzip) {
+		this.threshold = threshold;
+		this.acceptGzip = acceptGzip;
+	}
+
+	/**
+	 * @param length
+	 * @return <code>true</code> if a request body of <code>length</code>
+	 *  bytes should be compressed
+	 */
+	public boolean isCompressed(int length) {
+		return threshold > -1 && length >= threshold;
+	}
+
+	public boolean isAcceptGzip() {
+		return acceptGzip;
+	}
+
+	/**
+	 * @param body
+	 * @return
+	 * @throws IOException
+	 */
+	public byte [] compress(byte [] body) throws IOException {
+		long t = System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+		try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192)) {
+			gz.write(body);
+		}
+		byte [] result = out.toByteArray();
+		compressNanos.add(System.nanoTime() - t);
+		requests.increment();
+		requestRaw.add(body.length);
+		requestWire.add(result.length);
+		return result;
+	}
+
+	/**
+	 * @param body
+	 * @return
+	 * @throws IOException
+	 */
+	public byte [] decompress(byte [] body) throws IOException {
+		long t = System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+		byte [] buf = new byte[8192];
+		int n;
+		try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(body), 8192)) {
+			while ((n = gz.read(buf)) > 0)
+				out.write(buf, 0, n);
+		}
+		byte [] result = out.toByteArray();
+		decompressNanos.add(System.nanoTime() - t);
+		responses.increment();
+		responseWire.add(body.length);
+		responseRaw.add(result.length);
+		return result;
+	}
+
+	@Override
+	public long getCompressedRequests() {
+		return requests.sum();
+	}
+
+	@Override
+	public double getRequestRatio() {
+		return ratio(requestWire.sum(), requestRaw.sum());
+	}
+
+	@Override
+	public long getCompressMicros() {
+		return compressNanos.sum() / 1000;
+	}
+
+	@Override
+	public long getCompressedResponses() {
+		return responses.sum();
+	}
+
+	@Override
+	public double getResponseRatio() {
+		return ratio(responseWire.sum(), responseRaw.sum());
+	}
+
+	@Override
+	public long getDecompressMicros() {
+		return decompressNanos.sum() / 1000;
+	}
+
+	JSONObject toJSON() {
+		JSONObject result = new JSONObject();
+		result.put("compressedRequests", getCompressedRequests());
+		result.put("requestBytes", requestRaw.sum());
+		result.put("requestWireBytes", requestWire.sum());
+		result.put("requestRatio", getRequestRatio());
+		result.put("compressMicros", getCompressMicros());
+		result.put("compressedResponses", getCompressedResponses());
+		result.put("responseBytes", responseRaw.sum());
+		result.put("responseWireBytes", responseWire.sum());
+		result.put("responseRatio", getResponseRatio());
+		result.put("decompressMicros", getDecompressMicros());
+		return result;
+	}
+
+	private static double ratio(long wire, long raw) {
+		return (raw == 0) ? 1 : (double)wire / (double)raw;
+	}
+}
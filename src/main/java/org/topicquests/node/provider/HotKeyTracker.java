@@ -0,0 +1,298 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.node.provider.api.IHotKeyStatsMXBean;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Counts reads by id, so that a restarted {@link Client} can fill its
+ * cache with the nodes most asked for instead of one miss at a time</p>
+ * <p>At most <code>2 * capacity</code> ids are counted exactly. Once
+ * that many are tracked, an id new to the tracker is only taken on after
+ * a {@link FrequencySketch} has seen it before, so a scan of cold ids
+ * cannot crowd the table; when the table fills it is cut back to the
+ * <code>capacity</code> most read, and their counts halved so that old
+ * popularity fades.</p>
+ * <p>The hot ids, not their nodes, are written to <code>HotKeysFile</code>
+ * every <code>HotKeysSaveSeconds</code> and on shutdown, one
+ * <code>index TAB id</code> per line, hottest first. At startup
+ * {@link #warmUp(int, int, long)} fetches them with parallel MultiGets.</p>
+ */
+public class HotKeyTracker implements IHotKeyStatsMXBean {
+	private ProviderEnvironment environment;
+	private Client client;
+	private final File file;
+	private final int capacity;
+	private final Map<String, AtomicInteger> counts;
+	private final FrequencySketch sketch;
+	private ScheduledExecutorService scheduler;
+	private final Object pruneLock = new Object();
+	/** sketch estimate an untracked id needs once the table is full */
+	private static final int ADMIT_FREQUENCY = 2;
+	private volatile long warmupKeys = 0;
+	private final LongAdder warmed = new LongAdder();
+	private final LongAdder looked = new LongAdder();
+	private volatile long warmupMillis = -1;
+
+	/**
+	 * @param env
+	 * @param c
+	 * @param f where hot ids are kept between runs
+	 * @param capacity hot ids to keep
+	 */
+	public HotKeyTracker(ProviderEnvironment env, Client c, File f, int capacity) {
+		environment = env;
+		client = c;
+		file = f;
+		this.capacity = Math.max(1, capacity);
+		counts = new ConcurrentHashMap<String, AtomicInteger>(this.capacity * 2);
+		sketch = new FrequencySketch(this.capacity * 4);
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "HotKeyTracker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Save the hot ids every <code>saveSeconds</code>
+	 * @param saveSeconds <code>0</code> saves only on {@link #shutdown()}
+	 */
+	public void start(long saveSeconds) {
+		if (saveSeconds > 0)
+			scheduler.scheduleWithFixedDelay(() -> save(), saveSeconds, saveSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Count a read of <code>id</code>
+	 * @param index
+	 * @param id
+	 */
+	public void record(String index, String id) {
+		String key = index + "\t" + id;
+		AtomicInteger n = counts.get(key);
+		if (n != null) {
+			n.incrementAndGet();
+			return;
+		}
+		if (counts.size() >= capacity) {
+			sketch.increment(key);
+			if (sketch.frequency(key) < ADMIT_FREQUENCY)
+				return;
+		}
+		n = counts.putIfAbsent(key, new AtomicInteger(1));
+		if (n != null)
+			n.incrementAndGet();
+		else if (counts.size() >= capacity * 2)
+			prune();
+	}
+
+	/**
+	 * @return up to <code>capacity</code> keys, <code>index TAB id</code>,
+	 *  most read first
+	 */
+	public List<String> getHotKeys() {
+		List<Map.Entry<String, Integer>> entries = ranked();
+		int len = Math.min(capacity, entries.size());
+		List<String> result = new ArrayList<String>(len);
+		for (int i=0; i<len; i++)
+			result.add(entries.get(i).getKey());
+		return result;
+	}
+
+	/**
+	 * Write the hot ids to the file, replacing it in one step
+	 */
+	public void save() {
+		try {
+			List<String> keys = getHotKeys();
+			File tmp = new File(file.getPath()+".tmp");
+			Files.write(tmp.toPath(), keys, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			environment.logDebug("HotKeyTracker saved "+keys.size()+" to "+file);
+		} catch (Exception e) {
+			environment.logError("HotKeyTracker.save "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Fetch the ids saved by an earlier run into the cache, and count
+	 * them as read so that they stay hot until the traffic says otherwise
+	 * @param batchSize ids per MultiGet
+	 * @param threads MultiGets at once
+	 * @param timeoutMillis longest to wait; warm-up carries on in the
+	 *  background past it
+	 * @return <code>true</code> if warm-up finished in time
+	 */
+	public boolean warmUp(int batchSize, int threads, long timeoutMillis) {
+		long start = System.nanoTime();
+		List<String> keys;
+		try {
+			keys = file.isFile() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)
+					: new ArrayList<String>();
+		} catch (IOException e) {
+			environment.logError("HotKeyTracker.warmUp "+e.getMessage(), e);
+			keys = new ArrayList<String>();
+		}
+		// ids by index, hottest first
+		Map<String, List<String>> byIndex = new LinkedHashMap<String, List<String>>();
+		Iterator<String> itr = keys.iterator();
+		String key;
+		int tab;
+		List<String> ids;
+		long count = 0;
+		while (itr.hasNext()) {
+			key = itr.next();
+			tab = key.indexOf('\t');
+			if (tab < 1)
+				continue;
+			ids = byIndex.get(key.substring(0, tab));
+			if (ids == null) {
+				ids = new ArrayList<String>();
+				byIndex.put(key.substring(0, tab), ids);
+			}
+			ids.add(key.substring(tab + 1));
+			if (counts.size() < capacity)
+				counts.putIfAbsent(key, new AtomicInteger(1));
+			count++;
+		}
+		warmupKeys = count;
+		if (count == 0) {
+			warmupMillis = (System.nanoTime() - start) / 1000000;
+			return true;
+		}
+		int size = Math.max(1, batchSize);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, "HotKeyTracker.warmUp");
+			t.setDaemon(true);
+			return t;
+		});
+		Iterator<Map.Entry<String, List<String>>> ie = byIndex.entrySet().iterator();
+		Map.Entry<String, List<String>> entry;
+		while (ie.hasNext()) {
+			entry = ie.next();
+			String index = entry.getKey();
+			ids = entry.getValue();
+			for (int i=0; i<ids.size(); i+=size) {
+				List<String> batch = ids.subList(i, Math.min(ids.size(), i + size));
+				pool.execute(() -> {
+					try {
+						warmed.add(client.warmCache(index, batch));
+					} catch (Exception e) {
+						environment.logError("HotKeyTracker.warmUp "+index+" "+e.getMessage(), e);
+					}
+					looked.add(batch.size());
+					if (looked.sum() >= warmupKeys)
+						warmupMillis = (System.nanoTime() - start) / 1000000;
+				});
+			}
+		}
+		pool.shutdown();
+		boolean result = false;
+		try {
+			result = pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		environment.logDebug("HotKeyTracker warmed "+warmed.sum()+" of "+count+" in "
+				+((System.nanoTime() - start) / 1000000)+"ms"+(result ? "" : ", still running"));
+		return result;
+	}
+
+	/**
+	 * Stop saving, and save once more
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		save();
+	}
+
+	@Override
+	public int getTrackedKeys() {
+		return counts.size();
+	}
+
+	@Override
+	public long getWarmupKeys() {
+		return warmupKeys;
+	}
+
+	@Override
+	public long getWarmedKeys() {
+		return warmed.sum();
+	}
+
+	@Override
+	public double getWarmupProgress() {
+		long total = warmupKeys;
+		return (total == 0) ? ((warmupMillis < 0) ? 0 : 1) : Math.min(1.0, (double)looked.sum() / (double)total);
+	}
+
+	@Override
+	public long getWarmupMillis() {
+		return warmupMillis;
+	}
+
+	JSONObject toJSON() {
+		JSONObject result = new JSONObject();
+		result.put("trackedKeys", getTrackedKeys());
+		result.put("warmupKeys", getWarmupKeys());
+		result.put("warmedKeys", getWarmedKeys());
+		result.put("warmupProgress", getWarmupProgress());
+		result.put("warmupMillis", getWarmupMillis());
+		return result;
+	}
+
+	/**
+	 * Cut the table back to the <code>capacity</code> most read ids and
+	 * halve their counts
+	 */
+	private void prune() {
+		synchronized (pruneLock) {
+			if (counts.size() < capacity * 2)
+				return;
+			List<Map.Entry<String, Integer>> entries = ranked();
+			AtomicInteger n;
+			for (int i=0; i<entries.size(); i++) {
+				if (i >= capacity)
+					counts.remove(entries.get(i).getKey());
+				else if ((n = counts.get(entries.get(i).getKey())) != null)
+					n.updateAndGet(v -> v >>> 1);
+			}
+		}
+	}
+
+	/**
+	 * @return a snapshot of the counts, most read first; the live counts
+	 *  move under a sort
+	 */
+	private List<Map.Entry<String, Integer>> ranked() {
+		List<Map.Entry<String, Integer>> result = new ArrayList<Map.Entry<String, Integer>>(counts.size());
+		Iterator<Map.Entry<String, AtomicInteger>> itr = counts.entrySet().iterator();
+		Map.Entry<String, AtomicInteger> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			result.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(e.getKey(), e.getValue().get()));
+		}
+		result.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+		return result;
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+import org.topicquests.node.provider.api.IProgressListener;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Loads the files an {@link Exporter} wrote into an index</p>
+ * <p><code>ImportThreads</code> workers each take a whole file, read it
+ * through a memory mapping into a gzip stream, and cut it at newlines
+ * into bulk bodies of <code>ImportBatchSize</code> nodes; only action
+ * lines are parsed, for their ids.</p>
+ * <p>The target may be in use: each request waits for the index as
+ * other writes do, is journaled for a running {@link Reindexer}, and
+ * evicts its nodes from the {@link Client} cache. The existence filter
+ * is suspended for the run and rebuilt after it.</p>
+ * <p>Items refused with 429 or as unavailable are sent again by
+ * {@link BulkSender}. Items which still fail are appended, as bulk
+ * lines, to <code>file.failed</code>, to be fixed and sent again; only
+ * then does a worker write how many nodes of its file are done to
+ * <code>file.ckpt</code>. A gzip stream cannot be entered part way, so
+ * a resumed file is read again from the start, but nodes already done
+ * are skipped rather than sent. A finished file is marked so and
+ * skipped entirely.</p>
+ */
+public class Importer {
+	private ProviderEnvironment environment;
+	private Client client;
+	private BulkSender sender;
+	private final int threads;
+	private final int batchSize;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** largest single mapping; a {@link MappedByteBuffer} is int indexed */
+	private static final long WINDOW = 1L << 30;
+	private static final String CHECKPOINT = ".ckpt", FINISHED = " done", REFUSED = ".failed";
+	public static final String
+		IMPORT		= "import",
+		DONE		= "done";
+
+	/**
+	 * @param env
+	 * @param c
+	 */
+	public Importer(ProviderEnvironment env, Client c) {
+		environment = env;
+		client = c;
+		sender = new BulkSender(env, c, "_import");
+		threads = getIntProperty("ImportThreads", 4);
+		batchSize = getIntProperty("ImportBatchSize", 1000);
+	}
+
+	/**
+	 * Load every <code>*.ndjson.gz</code> file in <code>dir</code> into
+	 * <code>index</code>
+	 * @param index
+	 * @param dir
+	 * @param listener can be <code>null</code>
+	 * @return a summary of the run
+	 */
+	public IResult importFrom(String index, File dir, IProgressListener listener) {
+		IResult result = new ResultPojo();
+		try {
+			File [] files = dir.listFiles((d, name) -> name.endsWith(Exporter.SUFFIX));
+			if (files == null)
+				throw new IOException("Cannot read "+dir);
+			// largest first, so that no worker is left with a big file at the end
+			Arrays.sort(files, (a, b) -> Long.compare(b.length(), a.length()));
+			Progress progress = new Progress(listener, -1, IMPORT);
+			progress.report(IMPORT);
+			int n = Math.max(1, Math.min(threads, files.length));
+			SliceGroup workers = new SliceGroup(n);
+			List<CompletableFuture<Long>> parts = new ArrayList<CompletableFuture<Long>>(files.length);
+			long skipped = 0;
+			// imported ids are not noted one by one
+			ExistenceIndex existence = client.getExistenceIndex();
+			if (existence != null)
+				existence.suspend(index);
+			try {
+				for (File f : files) {
+					File ckpt = new File(f.getPath()+CHECKPOINT);
+					long from = 0;
+					if (ckpt.isFile()) {
+						String s = new String(Files.readAllBytes(ckpt.toPath()), StandardCharsets.UTF_8).trim();
+						if (s.endsWith(FINISHED.trim())) {
+							from = Long.parseLong(s.substring(0, s.length() - FINISHED.length()).trim());
+							progress.add(from, 0, null);
+							skipped += from;
+							continue;
+						}
+						from = Long.parseLong(s);
+						progress.add(from, 0, null);
+						skipped += from;
+					}
+					final long skip = from;
+					parts.add(workers.submit(() -> {
+						try {
+							return importFile(index, f, ckpt, skip, progress, workers);
+						} catch (IOException e) {
+							throw new RuntimeException(f.getName()+": "+e.getMessage(), e);
+						}
+					}));
+				}
+				for (CompletableFuture<Long> f : parts)
+					f.join();
+			} catch (RuntimeException e) {
+				workers.cancel(e);
+				throw e;
+			} finally {
+				// no worker may write once the filter is rebuilt
+				workers.await();
+				if (existence != null)
+					existence.resume(index);
+			}
+			progress.report(DONE);
+			JSONObject summary = new JSONObject();
+			summary.put("index", index);
+			summary.put("dir", dir.getPath());
+			summary.put("files", files.length);
+			summary.put("docs", progress.done.get());
+			summary.put("resumed", skipped);
+			summary.put("failed", progress.failed.get());
+			summary.put("seconds", progress.getSeconds());
+			summary.put("docsPerSecond", (progress.done.get() - skipped) / Math.max(progress.getSeconds(), 1e-9));
+			result.setResultObject(summary);
+			if (progress.failed.get() > 0)
+				result.addErrorString("Import "+index+": "+progress.failed.get()+" nodes failed, kept in *"+REFUSED+
+						" files in "+dir.getPath()+", first: "+progress.firstError);
+			environment.logDebug("Importer "+summary.toJSONString());
+		} catch (Exception e) {
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	/**
+	 * Send one file, checkpointing after each bulk request
+	 * @param index
+	 * @param file
+	 * @param ckpt
+	 * @param skip nodes done by an earlier run
+	 * @param progress
+	 * @param group stops this file if another fails
+	 * @return nodes in the file
+	 * @throws IOException if a bulk request fails as a whole; the
+	 *  checkpoint then holds the last batch which did not
+	 */
+	private long importFile(String index, File file, File ckpt, long skip, Progress progress,
+			SliceGroup group) throws IOException {
+		File refused = new File(file.getPath()+REFUSED);
+		// starting over, so whatever an earlier run refused will be sent again
+		if (skip == 0)
+			Files.deleteIfExists(refused.toPath());
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(BUFFER_SIZE);
+		byte [] buf = new byte[BUFFER_SIZE];
+		long seen = 0;
+		int lines = 0;
+		int inBatch = 0;
+		// bytes of batch up to the end of its last whole node
+		int complete = 0;
+		int len, from, i;
+		try (InputStream in = new GZIPInputStream(new MappedInputStream(file), BUFFER_SIZE)) {
+			while ((len = in.read(buf)) > 0) {
+				from = 0;
+				for (i=0; i<len; i++) {
+					if (buf[i] != '\n')
+						continue;
+					if (seen >= skip)
+						batch.write(buf, from, i + 1 - from);
+					from = i + 1;
+					// an action line, then its source
+					if (++lines == 2) {
+						lines = 0;
+						if (++seen > skip) {
+							complete = batch.size();
+							if (++inBatch >= batchSize) {
+								checkCancelled(group, file);
+								send(index, batch, complete, inBatch, ckpt, refused, seen, progress);
+								inBatch = 0;
+								complete = 0;
+							}
+						}
+					}
+				}
+				if (seen >= skip)
+					batch.write(buf, from, len - from);
+			}
+		}
+		if (batch.size() > complete)
+			environment.logError("Importer "+file.getName()+": incomplete last node ignored", null);
+		checkCancelled(group, file);
+		if (inBatch > 0)
+			send(index, batch, complete, inBatch, ckpt, refused, seen, progress);
+		checkpoint(ckpt, seen+FINISHED);
+		return seen;
+	}
+
+	/**
+	 * @param group
+	 * @param file
+	 * @throws CancellationException if another file failed; the
+	 *  checkpoint is left for a later run
+	 */
+	private void checkCancelled(SliceGroup group, File file) {
+		if (group.isCancelled())
+			throw new CancellationException("Import of "+file.getName()+" stopped");
+	}
+
+	/**
+	 * Send a batch, keep what it refused, then checkpoint
+	 * @param index
+	 * @param batch
+	 * @param length bytes of whole nodes in <code>batch</code>
+	 * @param size nodes
+	 * @param ckpt
+	 * @param refused
+	 * @param seen nodes of the file up to the end of this batch
+	 * @param progress
+	 * @throws IOException
+	 */
+	private void send(String index, ByteArrayOutputStream batch, int length, int size, File ckpt, File refused,
+			long seen, Progress progress) throws IOException {
+		byte [] body = batch.toByteArray();
+		if (body.length > length)
+			body = Arrays.copyOf(body, length);
+		batch.reset();
+		List<String> ids = BulkSender.ids(body);
+		ByteArrayOutputStream failed = new ByteArrayOutputStream();
+		WriteJournal journal = client.enterWrite(index);
+		boolean ok;
+		try {
+			ok = sender.send(index, body, size, progress, failed);
+		} finally {
+			// as for any write: no stale node left in the cache, and a reindex copies these again
+			for (String id : ids) {
+				client.evictNode(id, index);
+				if (journal != null)
+					journal.add(id);
+			}
+			client.exitWrite(journal, null);
+		}
+		client.markWritten(index);
+		if (!ok)
+			throw new IOException("Bulk request failed after node "+(seen - size));
+		if (failed.size() > 0)
+			Files.write(refused.toPath(), failed.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		checkpoint(ckpt, Long.toString(seen));
+	}
+
+	/**
+	 * Replace <code>ckpt</code> in one step, so a crash leaves the old
+	 * checkpoint or the new one
+	 * @param ckpt
+	 * @param value
+	 * @throws IOException
+	 */
+	private void checkpoint(File ckpt, String value) throws IOException {
+		File tmp = new File(ckpt.getPath()+".tmp");
+		Files.write(tmp.toPath(), value.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), ckpt.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		String v = environment.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Integer.parseInt(v.trim());
+	}
+
+	/**
+	 * Reads a file through read-only mappings of up to {@link #WINDOW}
+	 * bytes, so the page cache is read without copying through a
+	 * heap buffer as a {@link java.io.FileInputStream} does
+	 */
+	private static class MappedInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long size;
+		private long position = 0;
+		private MappedByteBuffer window = null;
+
+		MappedInputStream(File f) throws IOException {
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			size = channel.size();
+		}
+
+		private boolean fill() throws IOException {
+			if (window != null && window.hasRemaining())
+				return true;
+			if (position >= size)
+				return false;
+			long len = Math.min(WINDOW, size - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, len);
+			position += len;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? (window.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (window == null) ? 0 : window.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			window = null;
+			channel.close();
+		}
+	}
+}
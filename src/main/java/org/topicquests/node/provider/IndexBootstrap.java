@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Makes sure each of the <code>IndexNames</code> exists when a
+ * {@link Client} starts</p>
+ * <p>Every index is checked at once, with one asynchronous
+ * <code>HEAD</code> each. A missing index is created as
+ * <code>name_v1</code> behind the alias <code>name</code> by a single
+ * request which carries its settings, mappings and alias. An index which
+ * another client created in the meantime counts as existing, so any
+ * number of clients may bootstrap together.</p>
+ * <p>A client may wait for bootstrap, or let it run in the background;
+ * then a write to an index waits only for that index, with
+ * {@link #awaitIndex(String)}, so that ElasticSearch never creates it
+ * without its mappings.</p>
+ */
+public class IndexBootstrap {
+	private ProviderEnvironment environment;
+	private JsonTransport transport;
+	private final int shards;
+	private final int replicas;
+	private final Map<String, CompletableFuture<Void>> indices = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	private final AtomicInteger existing = new AtomicInteger(0);
+	private final AtomicInteger created = new AtomicInteger(0);
+	private final AtomicInteger failed = new AtomicInteger(0);
+	private volatile long millis = -1;
+	private CompletableFuture<Void> all = CompletableFuture.completedFuture(null);
+
+	/**
+	 * @param env
+	 * @param t
+	 * @param shards for indices created
+	 * @param replicas for indices created
+	 */
+	public IndexBootstrap(ProviderEnvironment env, JsonTransport t, int shards, int replicas) {
+		environment = env;
+		transport = t;
+		this.shards = shards;
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Check, and where need be create, every index in <code>mappings</code>
+	 * @param mappings by index name
+	 * @return completes when all are done; never exceptionally
+	 */
+	public CompletableFuture<Void> start(Map<String, JSONObject> mappings) {
+		long start = System.nanoTime();
+		List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>(mappings.size());
+		Iterator<Map.Entry<String, JSONObject>> itr = mappings.entrySet().iterator();
+		Map.Entry<String, JSONObject> e;
+		CompletableFuture<Void> f;
+		while (itr.hasNext()) {
+			e = itr.next();
+			f = ensure(e.getKey(), e.getValue());
+			indices.put(e.getKey(), f);
+			parts.add(f);
+		}
+		all = CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()]))
+				.whenComplete((v, x) -> {
+			millis = (System.nanoTime() - start) / 1000000;
+			environment.logDebug("IndexBootstrap "+toJSON().toJSONString());
+		});
+		return all;
+	}
+
+	/**
+	 * Wait until every index is checked
+	 */
+	public void await() {
+		all.join();
+	}
+
+	/**
+	 * Wait until <code>index</code> is checked; at once if it was, or
+	 * if it is not one of the bootstrapped indices
+	 * @param index
+	 */
+	public void awaitIndex(String index) {
+		CompletableFuture<Void> f = indices.get(index);
+		if (f != null && !f.isDone())
+			f.join();
+	}
+
+	public boolean isDone() {
+		return all.isDone();
+	}
+
+	/**
+	 * @return how long bootstrap took, <code>-1</code> until it is done
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	JSONObject toJSON() {
+		JSONObject result = new JSONObject();
+		result.put("indices", indices.size());
+		result.put("existing", existing.get());
+		result.put("created", created.get());
+		result.put("failed", failed.get());
+		result.put("millis", millis);
+		return result;
+	}
+
+	/**
+	 * @param name
+	 * @param mappings
+	 * @return never completes exceptionally; failures are logged
+	 */
+	private CompletableFuture<Void> ensure(String name, JSONObject mappings) {
+		String path = "/"+JsonTransport.encodeId(name);
+		return transport.executeAsync(JsonTransport.HEAD, path, null).thenCompose(rs -> {
+			if (rs.status != 404) {
+				if (rs.isSucceeded())
+					existing.incrementAndGet();
+				else
+					fail(name, "HTTP "+rs.status, null);
+				return CompletableFuture.completedFuture(null);
+			}
+			byte [] body = Reindexer.createBody(mappings, shards, replicas, null, name)
+					.toJSONString().getBytes(StandardCharsets.UTF_8);
+			return transport.executeAsync(JsonTransport.PUT, "/"+JsonTransport.encodeId(Reindexer.nextVersion(name, name)), body)
+					.thenAccept(r -> {
+				if (r.isSucceeded())
+					created.incrementAndGet();
+				else if (isAlreadyThere(r))
+					existing.incrementAndGet();
+				else
+					fail(name, r.getErrorMessage(), null);
+			});
+		}).exceptionally(x -> {
+			fail(name, x.getMessage(), x);
+			return null;
+		});
+	}
+
+	/**
+	 * Another client created the index between our check and create
+	 */
+	private static boolean isAlreadyThere(JsonTransport.Response r) {
+		Object err = (r.body == null) ? null : r.body.get("error");
+		if (err instanceof JSONObject)
+			err = ((JSONObject)err).get("type");
+		// index_already_exists_exception before 6.0, resource_already_exists_exception after
+		return r.status == 400 && err != null && err.toString().contains("already_exists");
+	}
+
+	private void fail(String name, String message, Throwable t) {
+		failed.incrementAndGet();
+		environment.logError("IndexBootstrap "+name+": "+message, (t instanceof Exception) ? (Exception)t : null);
+	}
+}
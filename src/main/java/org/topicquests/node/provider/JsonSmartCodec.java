@@ -0,0 +1,30 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.nio.charset.StandardCharsets;
+
+import org.topicquests.node.provider.api.IJsonCodec;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author park
+ * <p>The default {@link IJsonCodec}: json-smart parsing straight from
+ * the response bytes</p>
+ */
+public class JsonSmartCodec implements IJsonCodec {
+
+	@Override
+	public JSONObject decode(byte[] bytes) throws Exception {
+		// JSONParser is not thread safe, but cheap to create
+		return (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(bytes);
+	}
+
+	@Override
+	public byte[] encode(JSONObject object) {
+		return object.toJSONString().getBytes(StandardCharsets.UTF_8);
+	}
+}
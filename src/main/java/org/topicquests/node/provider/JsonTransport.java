@@ -0,0 +1,287 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.topicquests.node.provider.api.IJsonCodec;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>The HTTP path for document reads and writes</p>
+ * <p>Jest parses each response with Gson, and {@link Client} then turned
+ * that back into a String to parse again with json-smart. Here response
+ * bytes are decoded once, straight into {@link JSONObject}s, by an
+ * {@link IJsonCodec}; request bodies are encoded once to bytes.</p>
+ * <p>Each request goes to a node chosen by a {@link NodeSelector}, which
+ * is told how long it took and whether the node failed. Bodies may be
+ * gzipped either way; see {@link Gzip}.</p>
+ * <p>Jest remains in use for index administration, bulk and scroll</p>
+ */
+public class JsonTransport {
+	private ProviderEnvironment environment;
+	private IJsonCodec codec;
+	private CloseableHttpClient http;
+	private CloseableHttpAsyncClient asyncHttp;
+	private NodeSelector selector;
+	private Gzip gzip;
+	private static final byte [] EMPTY = new byte[0];
+	public static final String
+		GET		= "GET",
+		HEAD	= "HEAD",
+		PUT		= "PUT",
+		POST	= "POST",
+		DELETE	= "DELETE";
+
+	/**
+	 * A decoded response
+	 */
+	public static class Response {
+		public final int status;
+		/** can be <code>null</code> for an empty body */
+		public final JSONObject body;
+		/** size of the response body in bytes */
+		public final int length;
+
+		Response(int status, JSONObject body, int length) {
+			this.status = status;
+			this.body = body;
+			this.length = length;
+		}
+
+		public boolean isSucceeded() {
+			return status >= 200 && status < 300;
+		}
+
+		/**
+		 * @return ElasticSearch's error, or the status
+		 */
+		public String getErrorMessage() {
+			Object err = (body == null) ? null : body.get("error");
+			if (err instanceof JSONObject)
+				err = ((JSONObject)err).get("reason");
+			return (err == null) ? ("HTTP "+status) : err.toString();
+		}
+	}
+
+	/**
+	 * @param env
+	 * @param s
+	 * @param c
+	 * @param g
+	 * @param maxConnections
+	 * @param maxPerRoute
+	 * @param connectTimeout milliseconds to connect to a node
+	 * @param socketTimeout milliseconds to wait for a response's bytes
+	 * @param requestTimeout milliseconds to wait for a pooled connection
+	 */
+	public JsonTransport(ProviderEnvironment env, NodeSelector s, IJsonCodec c, Gzip g,
+			int maxConnections, int maxPerRoute, int connectTimeout, int socketTimeout, int requestTimeout) {
+		environment = env;
+		selector = s;
+		codec = c;
+		gzip = g;
+		// a hung node must fail, so that the selector can eject it
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setConnectionRequestTimeout(requestTimeout)
+				.build();
+		// content encoding is done here, where it can be measured
+		http = HttpClients.custom()
+				.disableContentCompression()
+				.setDefaultRequestConfig(config)
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxPerRoute)
+				.build();
+		asyncHttp = HttpAsyncClients.custom()
+				.setDefaultRequestConfig(config)
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxPerRoute)
+				.build();
+		asyncHttp.start();
+	}
+
+	public IJsonCodec getCodec() {
+		return codec;
+	}
+
+	public NodeSelector getNodeSelector() {
+		return selector;
+	}
+
+	public Gzip getGzip() {
+		return gzip;
+	}
+
+	/**
+	 * @param method
+	 * @param path beginning with <code>/</code>, query string included
+	 * @param body can be <code>null</code>
+	 * @return
+	 * @throws IOException on a transport failure, not on an HTTP error status
+	 */
+	public Response execute(String method, String path, byte [] body) throws IOException {
+		NodeSelector.Node node = selector.select();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try (CloseableHttpResponse rsp = http.execute(buildRequest(method, node.address + path, body))) {
+			Response result = decode(rsp);
+			failed = isUnavailable(result.status);
+			return result;
+		} finally {
+			selector.release(node, System.nanoTime() - start, failed);
+		}
+	}
+
+	/**
+	 * Asynchronous {@link #execute(String, String, byte[])}
+	 * @param method
+	 * @param path
+	 * @param body
+	 * @return
+	 */
+	public CompletableFuture<Response> executeAsync(String method, String path, byte [] body) {
+		CompletableFuture<Response> result = new CompletableFuture<Response>();
+		NodeSelector.Node node = selector.select();
+		long start = System.nanoTime();
+		HttpRequestBase req;
+		try {
+			req = buildRequest(method, node.address + path, body);
+		} catch (IOException e) {
+			selector.release(node, System.nanoTime() - start, false);
+			result.completeExceptionally(e);
+			return result;
+		}
+		asyncHttp.execute(req, new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse rsp) {
+				try {
+					Response r = decode(rsp);
+					selector.release(node, System.nanoTime() - start, isUnavailable(r.status));
+					result.complete(r);
+				} catch (IOException e) {
+					selector.release(node, System.nanoTime() - start, true);
+					result.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				selector.release(node, System.nanoTime() - start, true);
+				result.completeExceptionally(ex);
+			}
+
+			@Override
+			public void cancelled() {
+				selector.release(node, System.nanoTime() - start, false);
+				result.cancel(false);
+			}
+		});
+		return result;
+	}
+
+	public void shutdown() {
+		selector.shutdown();
+		try {
+			http.close();
+			asyncHttp.close();
+		} catch (IOException e) {
+			environment.logError(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Escape a document id for use in a path
+	 * @param id
+	 * @return
+	 */
+	public static String encodeId(String id) {
+		try {
+			return URLEncoder.encode(id, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Response decode(HttpResponse rsp) throws IOException {
+		HttpEntity e = rsp.getEntity();
+		byte [] bytes = (e == null) ? EMPTY : EntityUtils.toByteArray(e);
+		Header ce = (e == null) ? null : e.getContentEncoding();
+		if (ce != null && bytes.length > 0 && "gzip".equalsIgnoreCase(ce.getValue().trim()))
+			bytes = gzip.decompress(bytes);
+		JSONObject jo = null;
+		if (bytes.length > 0) {
+			try {
+				jo = codec.decode(bytes);
+			} catch (Exception x) {
+				throw new IOException("Unparseable response: "+x.getMessage(), x);
+			}
+		}
+		return new Response(rsp.getStatusLine().getStatusCode(), jo, bytes.length);
+	}
+
+	private HttpRequestBase buildRequest(String method, String uri, byte [] body) throws IOException {
+		HttpRequestBase result;
+		if (GET.equals(method))
+			result = new HttpGet(uri);
+		else if (HEAD.equals(method))
+			result = new HttpHead(uri);
+		else if (DELETE.equals(method))
+			result = new HttpDelete(uri);
+		else {
+			HttpEntityEnclosingRequestBase r = PUT.equals(method) ? new HttpPut(uri) : new HttpPost(uri);
+			if (body != null) {
+				ByteArrayEntity entity;
+				if (gzip.isCompressed(body.length)) {
+					entity = new ByteArrayEntity(gzip.compress(body), ContentType.APPLICATION_JSON);
+					entity.setContentEncoding("gzip");
+				} else
+					entity = new ByteArrayEntity(body, ContentType.APPLICATION_JSON);
+				r.setEntity(entity);
+			}
+			result = r;
+		}
+		if (gzip.isAcceptGzip())
+			result.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		return result;
+	}
+
+	/**
+	 * A gateway or proxy in front of the node, or the node itself, saying
+	 * it cannot serve; query errors and 429 rejections are not node failures
+	 * @param status
+	 * @return
+	 */
+	private static boolean isUnavailable(int status) {
+		return status == 502 || status == 503 || status == 504;
+	}
+}
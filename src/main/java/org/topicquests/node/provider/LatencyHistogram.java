@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author park
+ * <p>A lock-free log-linear histogram of latencies in microseconds, in
+ * the manner of HdrHistogram: each power of two is split into 32 linear
+ * sub-buckets, so any recorded value is reported within about 3%, from
+ * 1 microsecond to about 12 days, in a fixed 9KB</p>
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = SUB + (MAX_BITS - SUB_BITS) * SUB;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * @param micros
+	 */
+	public void record(long micros) {
+		long v = Math.min(Math.max(0, micros), MAX_VALUE);
+		counts.incrementAndGet(index(v));
+		total.increment();
+		sum.add(v);
+		long m = max.get();
+		while (v > m && !max.compareAndSet(m, v))
+			m = max.get();
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.sum();
+		return (n == 0) ? 0 : (double)sum.sum() / (double)n;
+	}
+
+	/**
+	 * @param percentile e.g. <code>99.9</code>
+	 * @return the highest value in the bucket holding that percentile,
+	 *  or <code>0</code> if nothing is recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = 0;
+		long [] snapshot = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return 0;
+		long rank = (long)Math.ceil(Math.min(100, percentile) / 100 * n);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i=0; i<BUCKETS; i++)
+			counts.set(i, 0);
+		total.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	static int index(long v) {
+		if (v < SUB)
+			return (int)v;
+		int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS;
+		return SUB + shift * SUB + (int)(v >>> shift) - SUB;
+	}
+
+	static long upperBound(int i) {
+		if (i < SUB)
+			return i;
+		int shift = (i - SUB) / SUB;
+		long sub = (i - SUB) % SUB;
+		return ((SUB + sub + 1) << shift) - 1;
+	}
+}
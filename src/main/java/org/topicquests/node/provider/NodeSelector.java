@@ -0,0 +1,408 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.node.provider.api.INodeStatsMXBean;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Chooses which of the configured <code>Clusters</code> nodes serves
+ * each {@link JsonTransport} request</p>
+ * <p>Each node keeps a moving average (EWMA) of its latency and of its
+ * failure rate. A request goes to the better of two healthy nodes picked
+ * at random, scored by latency, requests in flight and failures. Two
+ * random choices spread load nearly as well as always taking the best
+ * node, without every client piling onto the same one.</p>
+ * <p>After <code>NodeEjectFailures</code> consecutive failures a node is
+ * ejected for <code>NodeEjectMillis</code>, doubled on each repeat
+ * ejection. Once its time is up a node is given one trial request, and
+ * is reinstated if that succeeds or ejected again if it fails. A
+ * background task also probes ejected nodes, and idle ones to keep their
+ * latency current, every <code>NodeHealthCheckMillis</code>. A node's
+ * backoff is only forgiven after it stays up for twice its last
+ * ejection, so a node which keeps failing soon after coming back is kept
+ * out for longer each time. If every node is ejected, the one due back
+ * soonest is used rather than failing outright.</p>
+ */
+public class NodeSelector {
+	private ProviderEnvironment environment;
+	private final Node [] nodes;
+	private final int ejectFailures;
+	private final long ejectMillis;
+	private final long healthCheckMillis;
+	private final int probeTimeoutMillis;
+	private ScheduledExecutorService scheduler;
+	/** weight of the newest sample in each moving average */
+	private static final double ALPHA = 0.2;
+	/** longest ejection, as a multiple of <code>ejectMillis</code> */
+	private static final int MAX_BACKOFF = 64;
+
+	/**
+	 * One node's state
+	 */
+	public static class Node implements INodeStatsMXBean {
+		final String address;
+		final AtomicInteger inFlight = new AtomicInteger(0);
+		final LongAdder requests = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final LongAdder ejections = new LongAdder();
+		// guarded by this
+		private double ewmaMicros = 0;
+		private double errorRate = 0;
+		private int consecutiveFailures = 0;
+		private int backoff = 0;
+		private long reinstatedAt = 0;
+		/** a trial request is out to this ejected node */
+		private boolean trial = false;
+		private volatile long ejectedUntil = 0;
+		private volatile long lastUsed = 0;
+
+		Node(String address) {
+			this.address = address;
+		}
+
+		@Override
+		public String getAddress() {
+			return address;
+		}
+
+		@Override
+		public boolean isHealthy() {
+			return ejectedUntil == 0;
+		}
+
+		@Override
+		public synchronized double getEwmaMicros() {
+			return ewmaMicros;
+		}
+
+		@Override
+		public synchronized double getErrorRate() {
+			return errorRate;
+		}
+
+		@Override
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		@Override
+		public long getRequestCount() {
+			return requests.sum();
+		}
+
+		@Override
+		public long getFailureCount() {
+			return failures.sum();
+		}
+
+		@Override
+		public long getEjectionCount() {
+			return ejections.sum();
+		}
+
+		/**
+		 * Lower is better; an unmeasured node scores best so that it is tried
+		 * @return
+		 */
+		synchronized double score() {
+			return (ewmaMicros + 1) * (inFlight.get() + 1) / (1.05 - Math.min(errorRate, 1));
+		}
+
+		synchronized void sample(long micros, boolean failed) {
+			ewmaMicros = (ewmaMicros == 0) ? micros : ewmaMicros + ALPHA * (micros - ewmaMicros);
+			errorRate += ALPHA * ((failed ? 1 : 0) - errorRate);
+		}
+
+		/**
+		 * @return <code>true</code> if this failure ejects the node
+		 */
+		synchronized boolean fail(int ejectFailures) {
+			return ++consecutiveFailures >= ejectFailures && ejectedUntil == 0;
+		}
+
+		synchronized void succeed() {
+			consecutiveFailures = 0;
+		}
+
+		synchronized void eject(long ejectMillis) {
+			long now = System.currentTimeMillis();
+			// forgiven if it stayed up for twice its last ejection
+			if (backoff > 0 && reinstatedAt > 0 && now - reinstatedAt >= 2 * backoff * ejectMillis)
+				backoff = 0;
+			backoff = (backoff == 0) ? 1 : Math.min(backoff * 2, MAX_BACKOFF);
+			ejectedUntil = now + backoff * ejectMillis;
+			trial = false;
+			ejections.increment();
+		}
+
+		/**
+		 * Claim the one trial request of an ejected node whose time is up
+		 * @param now
+		 * @return <code>true</code> if the caller's request is the trial
+		 */
+		synchronized boolean startTrial(long now) {
+			if (ejectedUntil == 0 || now < ejectedUntil || trial)
+				return false;
+			trial = true;
+			return true;
+		}
+
+		/**
+		 * @return <code>true</code> if a trial request was out
+		 */
+		synchronized boolean endTrial() {
+			boolean result = trial;
+			trial = false;
+			return result;
+		}
+
+		/**
+		 * Put the node back in service; its backoff is kept, see
+		 * {@link #eject(long)}
+		 */
+		synchronized void reinstate() {
+			ejectedUntil = 0;
+			consecutiveFailures = 0;
+			trial = false;
+			reinstatedAt = System.currentTimeMillis();
+			errorRate = 0;
+		}
+
+		JSONObject toJSON() {
+			JSONObject result = new JSONObject();
+			result.put("address", address);
+			result.put("healthy", isHealthy());
+			result.put("ewmaMicros", getEwmaMicros());
+			result.put("errorRate", getErrorRate());
+			result.put("inFlight", getInFlight());
+			result.put("requests", getRequestCount());
+			result.put("failures", getFailureCount());
+			result.put("ejections", getEjectionCount());
+			return result;
+		}
+	}
+
+	/**
+	 * @param env
+	 * @param servers e.g. <code>http://localhost:9200</code>
+	 * @param ejectFailures consecutive failures which eject a node
+	 * @param ejectMillis first ejection period
+	 * @param healthCheckMillis probe interval, <code>0</code> for none
+	 * @param probeTimeoutMillis
+	 */
+	public NodeSelector(ProviderEnvironment env, Collection<String> servers, int ejectFailures,
+			long ejectMillis, long healthCheckMillis, int probeTimeoutMillis) {
+		environment = env;
+		List<Node> l = new ArrayList<Node>();
+		Iterator<String> itr = servers.iterator();
+		while (itr.hasNext())
+			l.add(new Node(itr.next()));
+		nodes = l.toArray(new Node[l.size()]);
+		this.ejectFailures = Math.max(1, ejectFailures);
+		this.ejectMillis = ejectMillis;
+		this.healthCheckMillis = healthCheckMillis;
+		this.probeTimeoutMillis = probeTimeoutMillis;
+		if (healthCheckMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "NodeSelector");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleWithFixedDelay(() -> checkHealth(), healthCheckMillis,
+					healthCheckMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Choose a node for a request; the caller must follow with
+	 * {@link #release(Node, long, boolean)}
+	 * @return
+	 */
+	public Node select() {
+		Node result = choose();
+		result.inFlight.incrementAndGet();
+		result.lastUsed = System.currentTimeMillis();
+		return result;
+	}
+
+	/**
+	 * Report a request's outcome
+	 * @param n from {@link #select()}
+	 * @param nanos
+	 * @param failed <code>true</code> if the node could not be reached or
+	 *  said it was unavailable
+	 */
+	public void release(Node n, long nanos, boolean failed) {
+		n.inFlight.decrementAndGet();
+		n.requests.increment();
+		n.sample(nanos / 1000, failed);
+		boolean trial = n.endTrial();
+		if (failed) {
+			n.failures.increment();
+			if (trial) {
+				n.eject(ejectMillis);
+				environment.logError("NodeSelector trial failed, ejected "+n.address+" again", null);
+			} else if (n.fail(ejectFailures)) {
+				n.eject(ejectMillis);
+				environment.logError("NodeSelector ejected "+n.address, null);
+			}
+		} else if (!n.isHealthy() && (trial || System.currentTimeMillis() >= n.ejectedUntil)) {
+			// a trial, or the only choice left once due back, and it answered
+			n.reinstate();
+			environment.logDebug("NodeSelector reinstated "+n.address);
+		} else
+			n.succeed();
+	}
+
+	/**
+	 * @return every node, for dashboards and JMX
+	 */
+	public List<Node> getNodes() {
+		return Arrays.asList(nodes);
+	}
+
+	/**
+	 * @return every node's numbers, as JSON
+	 */
+	public JSONArray getSnapshot() {
+		JSONArray result = new JSONArray();
+		for (int i=0; i<nodes.length; i++)
+			result.add(nodes[i].toJSON());
+		return result;
+	}
+
+	public void shutdown() {
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	private Node choose() {
+		int len = nodes.length;
+		if (len == 1)
+			return nodes[0];
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		int start = r.nextInt(len);
+		Node a = null, b = null, n;
+		// an ejected node whose time is up gets one trial request
+		long now = System.currentTimeMillis();
+		for (int i=0; i<len; i++) {
+			n = nodes[(start + i) % len];
+			if (n.startTrial(now))
+				return n;
+		}
+		// first two healthy nodes from a random start
+		for (int i=0; i<len && b == null; i++) {
+			n = nodes[(start + i) % len];
+			if (!n.isHealthy())
+				continue;
+			if (a == null)
+				a = n;
+			else
+				b = n;
+		}
+		if (a == null)
+			return soonestBack();
+		if (b == null)
+			return a;
+		// a random second choice, so the one after start is not favoured
+		int other = r.nextInt(len);
+		if (nodes[other].isHealthy() && nodes[other] != a)
+			b = nodes[other];
+		return (b.score() < a.score()) ? b : a;
+	}
+
+	private Node soonestBack() {
+		Node result = nodes[0];
+		for (int i=1; i<nodes.length; i++)
+			if (nodes[i].ejectedUntil < result.ejectedUntil)
+				result = nodes[i];
+		return result;
+	}
+
+	private void checkHealth() {
+		long now = System.currentTimeMillis();
+		Node n;
+		for (int i=0; i<nodes.length; i++) {
+			n = nodes[i];
+			try {
+				if (!n.isHealthy()) {
+					if (now >= n.ejectedUntil && n.startTrial(now))
+						probeEjected(n);
+				} else if (now - n.lastUsed >= healthCheckMillis && n.inFlight.get() == 0)
+					probeIdle(n);
+			} catch (Exception e) {
+				environment.logError("NodeSelector.checkHealth "+n.address+" "+e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * The probe is the node's trial, claimed by the caller
+	 * @param n
+	 */
+	private void probeEjected(Node n) {
+		long t = System.nanoTime();
+		try {
+			if (probe(n.address)) {
+				n.sample((System.nanoTime() - t) / 1000, false);
+				n.reinstate();
+				environment.logDebug("NodeSelector reinstated "+n.address);
+			} else
+				n.eject(ejectMillis);
+		} finally {
+			n.endTrial();
+		}
+	}
+
+	private void probeIdle(Node n) {
+		long t = System.nanoTime();
+		boolean ok = probe(n.address);
+		n.sample((System.nanoTime() - t) / 1000, !ok);
+		if (!ok && n.fail(ejectFailures)) {
+			n.eject(ejectMillis);
+			environment.logError("NodeSelector ejected "+n.address, null);
+		}
+	}
+
+	/**
+	 * @param address
+	 * @return <code>true</code> if the node answers its root endpoint
+	 */
+	private boolean probe(String address) {
+		HttpURLConnection con = null;
+		try {
+			con = (HttpURLConnection)new URL(address + "/").openConnection();
+			con.setConnectTimeout(probeTimeoutMillis);
+			con.setReadTimeout(probeTimeoutMillis);
+			int status = con.getResponseCode();
+			try (InputStream in = (status < 400) ? con.getInputStream() : con.getErrorStream()) {
+				if (in != null)
+					while (in.read() > -1)
+						;
+			}
+			return status < 500;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (con != null)
+				con.disconnect();
+		}
+	}
+}
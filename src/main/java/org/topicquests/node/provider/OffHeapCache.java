@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author park
+ * <p>Compressed node bytes kept outside the Java heap, bounded by bytes</p>
+ * <p>Bytes are appended to a ring of direct buffers, <em>slabs</em>, of
+ * <code>slabBytes</code> each. When the ring is full, the oldest slab is
+ * reused whole and every entry in it dropped, so eviction is first in,
+ * first out and costs no per-entry bookkeeping off the heap. On the heap
+ * each entry costs its key, a small locator, and a place in its slab's
+ * list of keys, so that reusing a slab drops just the entries it held.</p>
+ * <p>Bytes are compressed with raw deflate at its fastest level; LZ4 or
+ * zstd would be quicker but are not among this library's dependencies.</p>
+ */
+public class OffHeapCache {
+	private final ByteBuffer [] slabs;
+	private final int slabBytes;
+	// guarded by lock
+	private final int [] epochs;
+	/** the keys put in each slab; some may have moved on since */
+	private final List<String> [] slabKeys;
+	private int current = 0;
+	private int position = 0;
+	private int filled = 1;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+	private final LongAdder rawBytes = new LongAdder();
+	private final LongAdder storedBytes = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private static final ThreadLocal<Deflater> DEFLATERS =
+			ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+	private static final ThreadLocal<Inflater> INFLATERS =
+			ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * Where an entry's bytes are; stale once its slab's epoch moves on
+	 */
+	private static final class Entry {
+		final int slab;
+		final int epoch;
+		final int offset;
+		final int length;
+		final int rawLength;
+		final long expiresAt;
+
+		Entry(int slab, int epoch, int offset, int length, int rawLength, long expiresAt) {
+			this.slab = slab;
+			this.epoch = epoch;
+			this.offset = offset;
+			this.length = length;
+			this.rawLength = rawLength;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * @param maxBytes off-heap memory to use, allocated a slab at a time
+	 * @param slabBytes
+	 */
+	public OffHeapCache(long maxBytes, int slabBytes) {
+		this.slabBytes = slabBytes;
+		int n = (int)Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / slabBytes));
+		slabs = new ByteBuffer[n];
+		epochs = new int[n];
+		slabKeys = newKeyLists(n);
+		slabs[0] = ByteBuffer.allocateDirect(slabBytes);
+	}
+
+	/**
+	 * Keep <code>raw</code>, replacing any bytes kept for <code>key</code>
+	 * @param key
+	 * @param raw
+	 * @param expiresAt <code>0</code> for never
+	 * @return <code>false</code> if too large to keep
+	 */
+	public boolean put(String key, byte [] raw, long expiresAt) {
+		byte [] packed = compress(raw);
+		if (packed.length > slabBytes) {
+			index.remove(key);
+			return false;
+		}
+		lock.writeLock().lock();
+		try {
+			if (position + packed.length > slabBytes)
+				advance();
+			ByteBuffer b = slabs[current].duplicate();
+			b.position(position);
+			b.put(packed);
+			index.put(key, new Entry(current, epochs[current], position, packed.length, raw.length, expiresAt));
+			slabKeys[current].add(key);
+			position += packed.length;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		rawBytes.add(raw.length);
+		storedBytes.add(packed.length);
+		return true;
+	}
+
+	/**
+	 * Remove and return the bytes kept for <code>key</code>
+	 * @param key
+	 * @return <code>null</code> if none
+	 */
+	public Taken take(String key) {
+		Entry e = index.remove(key);
+		if (e == null || (e.expiresAt > 0 && e.expiresAt < System.currentTimeMillis()))
+			return null;
+		byte [] packed = new byte[e.length];
+		lock.readLock().lock();
+		try {
+			if (epochs[e.slab] != e.epoch)
+				return null;
+			ByteBuffer b = slabs[e.slab].duplicate();
+			b.position(e.offset);
+			b.get(packed);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new Taken(decompress(packed, e.rawLength), e.expiresAt);
+	}
+
+	/**
+	 * Bytes taken out by {@link OffHeapCache#take(String)}
+	 */
+	public static final class Taken {
+		public final byte [] bytes;
+		public final long expiresAt;
+
+		Taken(byte [] bytes, long expiresAt) {
+			this.bytes = bytes;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public void remove(String key) {
+		index.remove(key);
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			index.clear();
+			for (int i=0; i<epochs.length; i++) {
+				epochs[i]++;
+				slabKeys[i].clear();
+			}
+			position = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return entries kept
+	 */
+	public long size() {
+		return index.size();
+	}
+
+	/**
+	 * @return off-heap bytes allocated
+	 */
+	public long getAllocatedBytes() {
+		lock.readLock().lock();
+		try {
+			return (long)filled * (long)slabBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return entries dropped when their slab was reused
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return compressed size over original size of all bytes kept
+	 */
+	public double getCompressionRatio() {
+		long raw = rawBytes.sum();
+		return (raw == 0) ? 1 : (double)storedBytes.sum() / (double)raw;
+	}
+
+	/**
+	 * Move to the next slab in the ring, dropping whatever it held;
+	 * the write lock is held
+	 */
+	private void advance() {
+		current = (current + 1) % slabs.length;
+		position = 0;
+		int epoch = epochs[current]++;
+		if (slabs[current] == null) {
+			slabs[current] = ByteBuffer.allocateDirect(slabBytes);
+			filled++;
+			return;
+		}
+		List<String> keys = slabKeys[current];
+		Entry e;
+		for (String key : keys) {
+			e = index.get(key);
+			// a key put again since may live in another slab now
+			if (e != null && e.slab == current && e.epoch == epoch && index.remove(key, e))
+				evictions.increment();
+		}
+		keys.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> [] newKeyLists(int n) {
+		List<String> [] result = new List[n];
+		for (int i=0; i<n; i++)
+			result[i] = new ArrayList<String>();
+		return result;
+	}
+
+	private static byte [] compress(byte [] raw) {
+		Deflater d = DEFLATERS.get();
+		d.reset();
+		d.setInput(raw);
+		d.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 16);
+		byte [] buf = new byte[Math.max(64, Math.min(raw.length, 8192))];
+		int n;
+		while (!d.finished()) {
+			n = d.deflate(buf);
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte [] decompress(byte [] packed, int rawLength) {
+		Inflater inf = INFLATERS.get();
+		inf.reset();
+		inf.setInput(packed);
+		byte [] result = new byte[rawLength];
+		try {
+			int n = 0, k;
+			while (n < rawLength && !inf.finished()) {
+				k = inf.inflate(result, n, rawLength - n);
+				if (k == 0 && (inf.needsInput() || inf.needsDictionary()))
+					throw new DataFormatException("truncated");
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupt cache entry", e);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author park
+ * <p>Records operation, index, id, response size and latency of a
+ * sample of {@link Client} calls, in place of printing payloads.
+ * {@link ClientMetrics} hands it every operation it times.</p>
+ * <p>When tracing is off, or an operation is not sampled,
+ * {@link #record(String, String, String, long, long)} returns at once:
+ * nothing is allocated or formatted. Configured by
+ * <code>TraceEnabled</code> and <code>TraceSampleRate</code>.</p>
+ */
+public class OperationTracer {
+	private ProviderEnvironment environment;
+	private volatile boolean isEnabled;
+	private volatile double sampleRate;
+	public static final String
+		INDEX		= "index",
+		GET			= "get",
+		MULTI_GET	= "mget",
+		EXISTS		= "exists",
+		SEARCH		= "search",
+		MULTI_SEARCH	= "msearch",
+		COUNT		= "count",
+		UPDATE		= "update",
+		DELETE		= "delete",
+		BULK		= "bulk";
+
+	/**
+	 * @param env
+	 * @param enabled
+	 * @param sampleRate fraction of operations traced, <code>0</code> to <code>1</code>
+	 */
+	public OperationTracer(ProviderEnvironment env, boolean enabled, double sampleRate) {
+		environment = env;
+		isEnabled = enabled;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Log one completed operation, if tracing is on and it is sampled
+	 * @param op
+	 * @param index
+	 * @param id can be <code>null</code>
+	 * @param bytes request or response size, <code>-1</code> if unknown
+	 * @param nanos latency
+	 */
+	public void record(String op, String index, String id, long bytes, long nanos) {
+		if (!isEnabled)
+			return;
+		double r = sampleRate;
+		if (r < 1 && ThreadLocalRandom.current().nextDouble() >= r)
+			return;
+		StringBuilder buf = new StringBuilder(96);
+		buf.append("TRACE op=").append(op)
+			.append(" index=").append(index);
+		if (id != null)
+			buf.append(" id=").append(id);
+		if (bytes > -1)
+			buf.append(" bytes=").append(bytes);
+		buf.append(" us=").append(nanos / 1000);
+		environment.logDebug(buf.toString());
+	}
+
+	public boolean isEnabled() {
+		return isEnabled;
+	}
+
+	/**
+	 * Switch tracing at runtime
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		isEnabled = enabled;
+	}
+
+	/**
+	 * @param rate <code>0</code> to <code>1</code>
+	 */
+	public void setSampleRate(double rate) {
+		sampleRate = rate;
+	}
+}
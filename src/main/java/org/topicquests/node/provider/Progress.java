@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.topicquests.node.provider.api.IProgressListener;
+
+/**
+ * @author park
+ * <p>Counts and rate of a {@link Reindexer}, {@link Exporter} or
+ * {@link Importer} run, shared by its threads</p>
+ */
+class Progress {
+	final IProgressListener listener;
+	final long total;
+	final long start;
+	final AtomicLong done = new AtomicLong(0);
+	final AtomicLong failed = new AtomicLong(0);
+	volatile String phase;
+	volatile String firstError = null;
+
+	/**
+	 * @param l can be <code>null</code>
+	 * @param total <code>-1</code> if unknown
+	 * @param phase
+	 */
+	Progress(IProgressListener l, long total, String phase) {
+		listener = l;
+		this.total = total;
+		this.phase = phase;
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Count a finished batch
+	 * @param ok
+	 * @param bad
+	 * @param error the first failure's message, if <code>bad > 0</code>
+	 */
+	void add(long ok, long bad, String error) {
+		long d = done.addAndGet(ok);
+		if (bad > 0) {
+			failed.addAndGet(bad);
+			if (firstError == null)
+				firstError = error;
+		}
+		if (listener != null)
+			listener.onProgress(phase, d, total, rate());
+	}
+
+	/**
+	 * Begin a phase
+	 * @param p
+	 */
+	void report(String p) {
+		phase = p;
+		if (listener != null)
+			listener.onProgress(p, done.get(), total, rate());
+	}
+
+	double getSeconds() {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	double rate() {
+		double seconds = getSeconds();
+		return (seconds <= 0) ? 0 : done.get() / seconds;
+	}
+}
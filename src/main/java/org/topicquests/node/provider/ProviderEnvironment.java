@@ -19,6 +19,7 @@ public class ProviderEnvironment {
 	private LoggingPlatform log = LoggingPlatform.getInstance("logger.properties");
 	private Map<String,Object>configProps;
 	private Client client;
+	private OperationTracer tracer;
 
 	/**
 	 * 
@@ -27,6 +28,19 @@ public class ProviderEnvironment {
 		ConfigPullParser p = new ConfigPullParser("provider-config.xml");
 		configProps = p.getProperties();
 		System.out.println("Client config "+configProps);
+		tracer = createTracer();
+		client = new Client(this);
+	}
+
+	/**
+	 * Configure from <code>props</code> rather than <code>provider-config.xml</code>,
+	 * e.g. to point at a test server; lists are <code>List<List<String>></code>
+	 * as the config parser makes them
+	 * @param props
+	 */
+	public ProviderEnvironment(Map<String,Object> props) {
+		configProps = props;
+		tracer = createTracer();
 		client = new Client(this);
 	}
 
@@ -74,4 +88,25 @@ public class ProviderEnvironment {
 	public Tracer getTracer(String name) {
 		return log.getTracer(name);
 	}
+
+	/**
+	 * @return the default client's {@link ClientMetrics} as JSON
+	 */
+	public JSONObject getMetricsSnapshot() {
+		return client.getMetrics().getSnapshot();
+	}
+
+	/**
+	 * @return the tracer for {@link Client} operations
+	 */
+	public OperationTracer getOperationTracer() {
+		return tracer;
+	}
+
+	private OperationTracer createTracer() {
+		String enabled = getStringProperty("TraceEnabled");
+		String rate = getStringProperty("TraceSampleRate");
+		return new OperationTracer(this, enabled != null && Boolean.parseBoolean(enabled.trim()),
+				(rate == null) ? 1 : Double.parseDouble(rate.trim()));
+	}
 }
@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.indices.Refresh;
+
+/**
+ * @author park
+ * <p>Coalesces index refreshes for {@link ConsistencyMode#INTERVAL}</p>
+ * <p>Each write bumps a per-index generation. A background task refreshes
+ * indices whose generation moved since their last refresh, so any number
+ * of writes within an interval cost one refresh. A reader which must see
+ * a given generation can call {@link #awaitVisible(String, long)}; concurrent
+ * callers share a single refresh.</p>
+ */
+public class RefreshScheduler {
+	private ProviderEnvironment environment;
+	private JestClient client;
+	private Map<String, IndexState> states;
+	private ScheduledExecutorService scheduler;
+
+	private static class IndexState {
+		final AtomicLong written = new AtomicLong(0);
+		/** highest generation known to be searchable; guarded by <code>this</code> */
+		volatile long refreshed = 0;
+	}
+
+	/**
+	 * @param env
+	 * @param c
+	 * @param intervalMillis
+	 */
+	public RefreshScheduler(ProviderEnvironment env, JestClient c, long intervalMillis) {
+		environment = env;
+		client = c;
+		states = new ConcurrentHashMap<String, IndexState>();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "RefreshScheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(() -> refreshDirty(), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Record a write to <code>index</code>
+	 * @param index
+	 * @return the write's generation
+	 */
+	public long markDirty(String index) {
+		return state(index).written.incrementAndGet();
+	}
+
+	/**
+	 * Returns <code>true</code> if writes up to <code>generation</code>
+	 * are searchable
+	 * @param index
+	 * @param generation
+	 * @return
+	 */
+	public boolean isVisible(String index, long generation) {
+		return state(index).refreshed >= generation;
+	}
+
+	/**
+	 * Block until writes up to <code>generation</code> are searchable,
+	 * refreshing <code>index</code> if the scheduler has not yet done so
+	 * @param index
+	 * @param generation
+	 */
+	public void awaitVisible(String index, long generation) {
+		IndexState s = state(index);
+		if (s.refreshed >= generation)
+			return;
+		refresh(index, s);
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private IndexState state(String index) {
+		return states.computeIfAbsent(index, k -> new IndexState());
+	}
+
+	private void refreshDirty() {
+		Iterator<Map.Entry<String, IndexState>> itr = states.entrySet().iterator();
+		Map.Entry<String, IndexState> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			if (e.getValue().refreshed < e.getValue().written.get())
+				refresh(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Only one refresh per index runs at a time; callers queued behind
+	 * it usually find their generation already covered
+	 * @param index
+	 * @param s
+	 */
+	private void refresh(String index, IndexState s) {
+		synchronized (s) {
+			long target = s.written.get();
+			if (s.refreshed >= target)
+				return;
+			try {
+				JestResult jr = client.execute(new Refresh.Builder().addIndex(index).build());
+				if (jr.isSucceeded())
+					s.refreshed = target;
+				else
+					environment.logError("RefreshScheduler "+index+" "+jr.getErrorMessage(), null);
+			} catch (Exception e) {
+				environment.logError(e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,501 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.topicquests.node.provider.api.IProgressListener;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Rebuilds an index with new mappings or shard count while it stays
+ * in use; writes through this client are held back only during the final
+ * catch-up and the alias swap</p>
+ * <p>{@link Client} addresses each of the <code>IndexNames</code> through
+ * an alias of that name over a versioned physical index,
+ * <code>name_vN</code>. A reindex:</p>
+ * <ol>
+ * <li>creates <code>name_vN+1</code> with no replicas and no refresh,</li>
+ * <li>journals the id of every node the client writes meanwhile,</li>
+ * <li>waits for writes begun before the journal, and refreshes the
+ * current index so that the copy sees them,</li>
+ * <li>copies the current index with <code>ReindexSlices</code> scrolls
+ * feeding <code>ReindexWriters</code> bulk writers,</li>
+ * <li>copies journaled nodes again until few remain, restores replicas
+ * and the current index's refresh interval,</li>
+ * <li>holds writes back briefly, copies the last journaled nodes and
+ * swaps the alias in one <code>_aliases</code> request.</li>
+ * </ol>
+ * <p>Only writes made through this {@link Client} are journaled; other
+ * writers should be stopped or should use a client which is reindexing.
+ * Slices need ElasticSearch 5.0 or later.</p>
+ * <p>If any node fails to copy, after {@link BulkSender}'s retries, the
+ * reindex stops before holding writes back: the new index is deleted and
+ * the alias left as it was.</p>
+ * <p>An index which predates aliasing has the alias's own name, and must
+ * be deleted before the alias can take that name; until the alias is
+ * added, readers find no index. A reindex does that only when
+ * <code>ReindexDeleteLegacyIndex</code> is <code>true</code>. Should the
+ * alias then fail, the nodes are safe in the new index, which must be
+ * aliased by hand.</p>
+ */
+public class Reindexer {
+	private ProviderEnvironment environment;
+	private Client client;
+	private JsonTransport transport;
+	private BulkSender sender;
+	private final int slices;
+	private final int writers;
+	private final int batchSize;
+	private final int catchUpRounds;
+	private final boolean deleteLegacy;
+	//NOTE we support just one type
+	private final String _TYPE = "core";
+	/** stop catching up and swap when fewer than this many are journaled */
+	private static final int CATCH_UP_THRESHOLD = 1000;
+	private static final Pattern VERSIONED = Pattern.compile("^(.*)_v(\\d+)$");
+	public static final String
+		COPY		= "copy",
+		CATCH_UP	= "catchup",
+		SWAP		= "swap",
+		DONE		= "done";
+
+	/**
+	 * @param env
+	 * @param c
+	 */
+	public Reindexer(ProviderEnvironment env, Client c) {
+		environment = env;
+		client = c;
+		transport = c.getTransport();
+		sender = new BulkSender(env, c, "_reindex");
+		slices = getIntProperty("ReindexSlices", 1);
+		writers = getIntProperty("ReindexWriters", 4);
+		batchSize = getIntProperty("ReindexBatchSize", 1000);
+		catchUpRounds = getIntProperty("ReindexCatchUpRounds", 5);
+		String v = environment.getStringProperty("ReindexDeleteLegacyIndex");
+		deleteLegacy = v != null && Boolean.parseBoolean(v.trim());
+	}
+
+	/**
+	 * Rebuild <code>alias</code> with <code>mappings</code>
+	 * @param alias one of the <code>IndexNames</code>
+	 * @param mappings keyed by type, as in <code>mappings.json</code>
+	 * @param shards
+	 * @param replicas
+	 * @param listener can be <code>null</code>
+	 * @return a summary of the run
+	 */
+	public IResult reindex(String alias, JSONObject mappings, int shards, int replicas, IProgressListener listener) {
+		IResult result = new ResultPojo();
+		WriteJournal journal = null;
+		String source = null;
+		String target = null;
+		boolean paused = false;
+		// whether target holds a partial copy to drop on failure
+		boolean partial = false;
+		try {
+			source = resolveIndex(alias);
+			if (source == null)
+				throw new IOException("No such index "+alias);
+			if (alias.equals(source) && !deleteLegacy)
+				throw new IOException("Reindex "+alias+" must delete the unaliased index "+alias+
+						"; set ReindexDeleteLegacyIndex to allow it");
+			target = nextVersion(alias, source);
+			String refreshInterval = getRefreshInterval(source);
+			IResult r = createIndex(target, mappings, shards, 0, "-1", null);
+			if (r.hasError())
+				throw new IOException(r.getErrorString());
+			partial = true;
+			journal = client.openJournal(alias);
+			// the scroll sees only refreshed nodes; those written earlier are not journaled
+			client.awaitUnjournaledWrites();
+			refresh(source);
+			Progress progress = new Progress(listener, count(source), COPY);
+			progress.report(COPY);
+			long copied = copy(source, target, progress);
+			long caughtUp = 0;
+			List<String> ids;
+			for (int i=0; i<catchUpRounds; i++) {
+				ids = journal.drain();
+				if (ids.isEmpty())
+					break;
+				progress.report(CATCH_UP);
+				caughtUp += catchUp(source, target, ids, progress);
+				if (journal.size() < CATCH_UP_THRESHOLD)
+					break;
+			}
+			checkFailures(alias, progress);
+			restoreSettings(target, replicas, refreshInterval);
+			progress.report(SWAP);
+			journal.pause();
+			paused = true;
+			caughtUp += catchUp(source, target, journal.drain(), progress);
+			checkFailures(alias, progress);
+			refresh(target);
+			partial = false;
+			swapAlias(alias, source, target);
+			journal.resume();
+			paused = false;
+			progress.report(DONE);
+			JSONObject summary = new JSONObject();
+			summary.put("alias", alias);
+			summary.put("source", source);
+			summary.put("target", target);
+			summary.put("total", progress.total);
+			summary.put("copied", copied);
+			summary.put("caughtUp", caughtUp);
+			summary.put("failed", progress.failed.get());
+			summary.put("seconds", progress.getSeconds());
+			summary.put("docsPerSecond", progress.rate());
+			result.setResultObject(summary);
+			environment.logDebug("Reindexer "+summary.toJSONString());
+		} catch (Exception e) {
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+			if (partial) {
+				IResult r = deleteIndex(target);
+				if (r.hasError())
+					result.addErrorString(r.getErrorString());
+			}
+		} finally {
+			if (journal != null) {
+				if (paused)
+					journal.resume();
+				client.closeJournal(alias);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param alias
+	 * @return the physical index behind <code>alias</code>, <code>alias</code>
+	 *  itself if it is a plain index, or <code>null</code> if neither
+	 * @throws IOException
+	 */
+	public String resolveIndex(String alias) throws IOException {
+		JsonTransport.Response rs = transport.execute(JsonTransport.GET, "/_alias/"+JsonTransport.encodeId(alias), null);
+		if (rs.isSucceeded() && rs.body != null && !rs.body.isEmpty())
+			return rs.body.keySet().iterator().next();
+		rs = transport.execute(JsonTransport.HEAD, "/"+JsonTransport.encodeId(alias), null);
+		return rs.isSucceeded() ? alias : null;
+	}
+
+	/**
+	 * Create an index, with its settings, mappings and alias, in one request
+	 * @param index
+	 * @param mappings can be <code>null</code>
+	 * @param shards
+	 * @param replicas
+	 * @param refreshInterval e.g. <code>-1</code> for none, or <code>null</code>
+	 *  for the default
+	 * @param alias can be <code>null</code>
+	 * @return
+	 */
+	public IResult createIndex(String index, JSONObject mappings, int shards, int replicas,
+			String refreshInterval, String alias) {
+		IResult result = new ResultPojo();
+		try {
+			JSONObject body = createBody(mappings, shards, replicas, refreshInterval, alias);
+			JsonTransport.Response rs = transport.execute(JsonTransport.PUT, "/"+JsonTransport.encodeId(index),
+					body.toJSONString().getBytes(StandardCharsets.UTF_8));
+			if (!rs.isSucceeded())
+				result.addErrorString("Create "+index+": "+rs.getErrorMessage());
+		} catch (Exception e) {
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	/**
+	 * A create-index body carrying settings, mappings and alias, so that
+	 * an index is made complete in one request
+	 * @param mappings can be <code>null</code>
+	 * @param shards
+	 * @param replicas
+	 * @param refreshInterval can be <code>null</code> for the default
+	 * @param alias can be <code>null</code>
+	 * @return
+	 */
+	static JSONObject createBody(JSONObject mappings, int shards, int replicas,
+			String refreshInterval, String alias) {
+		JSONObject settings = new JSONObject();
+		settings.put("number_of_shards", shards);
+		settings.put("number_of_replicas", replicas);
+		if (refreshInterval != null)
+			settings.put("refresh_interval", refreshInterval);
+		JSONObject result = new JSONObject();
+		result.put("settings", settings);
+		if (mappings != null)
+			result.put("mappings", mappings);
+		if (alias != null) {
+			JSONObject aliases = new JSONObject();
+			aliases.put(alias, new JSONObject());
+			result.put("aliases", aliases);
+		}
+		return result;
+	}
+
+	/**
+	 * Drop a physical index, e.g. the one a reindex replaced
+	 * @param index
+	 * @return
+	 */
+	public IResult deleteIndex(String index) {
+		IResult result = new ResultPojo();
+		try {
+			JsonTransport.Response rs = transport.execute(JsonTransport.DELETE, "/"+JsonTransport.encodeId(index), null);
+			if (!rs.isSucceeded())
+				result.addErrorString("Delete "+index+": "+rs.getErrorMessage());
+		} catch (Exception e) {
+			result.addErrorString(e.getMessage());
+			environment.logError(e.getMessage(), e);
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	/**
+	 * Parallel sliced scrolls of <code>source</code>, batched into bulk
+	 * requests on a bounded pool of writers; a full pool makes the
+	 * reading thread write, which keeps readers from running ahead. If a
+	 * slice fails the others and the writers are stopped.
+	 * @param source
+	 * @param target
+	 * @param progress
+	 * @return nodes read
+	 * @throws Exception
+	 */
+	private long copy(String source, String target, Progress progress) throws Exception {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(writers, writers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(writers * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+		int n = Math.max(1, slices);
+		SliceGroup readers = new SliceGroup(n);
+		try {
+			List<CompletableFuture<Long>> parts = new ArrayList<CompletableFuture<Long>>(n);
+			for (int i=0; i<n; i++) {
+				final int slice = (n > 1) ? i : -1;
+				parts.add(readers.submit(() -> {
+					long count = 0;
+					StringBuilder batch = new StringBuilder();
+					int inBatch = 0;
+					JSONObject hit;
+					try (ScrollIterator itr = readers.open(client.scrollHits(null, source, slice, n, false))) {
+						while (itr.hasNext()) {
+							hit = itr.next();
+							BulkSender.appendIndex(batch, target, (String)hit.get("_id"), (JSONObject)hit.get("_source"));
+							count++;
+							if (++inBatch >= batchSize) {
+								String body = batch.toString();
+								int size = inBatch;
+								pool.execute(() -> sender.send(body, size, progress));
+								batch = new StringBuilder();
+								inBatch = 0;
+							}
+						}
+					}
+					if (inBatch > 0 && !readers.isCancelled())
+						sender.send(batch.toString(), inBatch, progress);
+					return count;
+				}));
+			}
+			long result = 0;
+			for (int i=0; i<n; i++)
+				result += parts.get(i).join();
+			return result;
+		} catch (RuntimeException e) {
+			readers.cancel(e);
+			throw e;
+		} finally {
+			// stop queued writes first, so that readers are not held up
+			if (readers.isCancelled())
+				pool.shutdownNow();
+			readers.await();
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.HOURS);
+		}
+	}
+
+	/**
+	 * Copy the current state of <code>ids</code>: index those in
+	 * <code>source</code>, delete the rest from <code>target</code>
+	 * @param source
+	 * @param target
+	 * @param ids
+	 * @param progress
+	 * @return nodes copied or deleted
+	 * @throws IOException
+	 */
+	private long catchUp(String source, String target, List<String> ids, Progress progress) throws IOException {
+		long result = 0;
+		int len = ids.size();
+		for (int from=0; from<len; from+=batchSize) {
+			List<String> chunk = ids.subList(from, Math.min(from + batchSize, len));
+			JSONArray ja = new JSONArray();
+			ja.addAll(chunk);
+			JSONObject req = new JSONObject();
+			req.put("ids", ja);
+			JsonTransport.Response rs = transport.execute(JsonTransport.POST,
+					"/"+JsonTransport.encodeId(source)+"/"+_TYPE+"/_mget?realtime=true",
+					req.toJSONString().getBytes(StandardCharsets.UTF_8));
+			if (!rs.isSucceeded())
+				throw new IOException("Catch up "+source+": "+rs.getErrorMessage());
+			JSONArray docs = (JSONArray)rs.body.get("docs");
+			StringBuilder batch = new StringBuilder();
+			JSONObject doc;
+			for (int i=0; i<docs.size(); i++) {
+				doc = (JSONObject)docs.get(i);
+				if (Boolean.TRUE.equals(doc.get("found")))
+					BulkSender.appendIndex(batch, target, (String)doc.get("_id"), (JSONObject)doc.get("_source"));
+				else
+					BulkSender.appendAction(batch, "delete", target, (String)doc.get("_id"));
+			}
+			sender.send(batch.toString(), docs.size(), progress);
+			result += docs.size();
+		}
+		return result;
+	}
+
+	/**
+	 * Stop the reindex if any node failed to copy
+	 * @param alias
+	 * @param progress
+	 * @throws IOException
+	 */
+	private void checkFailures(String alias, Progress progress) throws IOException {
+		if (progress.failed.get() > 0)
+			throw new IOException("Reindex "+alias+" abandoned: "+progress.failed.get()+
+					" nodes failed, first: "+progress.firstError);
+	}
+
+	private long count(String index) throws IOException {
+		JsonTransport.Response rs = transport.execute(JsonTransport.POST, "/"+JsonTransport.encodeId(index)+"/_count",
+				"{\"query\":{\"match_all\":{}}}".getBytes(StandardCharsets.UTF_8));
+		if (!rs.isSucceeded())
+			throw new IOException("Count "+index+": "+rs.getErrorMessage());
+		return ((Number)rs.body.get("count")).longValue();
+	}
+
+	/**
+	 * @param index
+	 * @return <code>index</code>'s <code>refresh_interval</code>, or
+	 *  ElasticSearch's default if it has none set
+	 * @throws IOException
+	 */
+	private String getRefreshInterval(String index) throws IOException {
+		JsonTransport.Response rs = transport.execute(JsonTransport.GET,
+				"/"+JsonTransport.encodeId(index)+"/_settings?flat_settings=true", null);
+		if (!rs.isSucceeded())
+			throw new IOException("Settings "+index+": "+rs.getErrorMessage());
+		// keyed by the physical index
+		Iterator<Object> itr = rs.body.values().iterator();
+		if (itr.hasNext()) {
+			JSONObject settings = (JSONObject)((JSONObject)itr.next()).get("settings");
+			Object v = (settings == null) ? null : settings.get("index.refresh_interval");
+			if (v != null)
+				return v.toString();
+		}
+		return "1s";
+	}
+
+	private void restoreSettings(String index, int replicas, String refreshInterval) throws IOException {
+		JSONObject settings = new JSONObject();
+		settings.put("number_of_replicas", replicas);
+		settings.put("refresh_interval", refreshInterval);
+		JSONObject body = new JSONObject();
+		body.put("index", settings);
+		JsonTransport.Response rs = transport.execute(JsonTransport.PUT, "/"+JsonTransport.encodeId(index)+"/_settings",
+				body.toJSONString().getBytes(StandardCharsets.UTF_8));
+		if (!rs.isSucceeded())
+			throw new IOException("Settings "+index+": "+rs.getErrorMessage());
+	}
+
+	private void refresh(String index) throws IOException {
+		JsonTransport.Response rs = transport.execute(JsonTransport.POST, "/"+JsonTransport.encodeId(index)+"/_refresh", null);
+		if (!rs.isSucceeded())
+			throw new IOException("Refresh "+index+": "+rs.getErrorMessage());
+	}
+
+	/**
+	 * Point <code>alias</code> at <code>target</code> in one request. An
+	 * index which predates aliasing has the alias's name, and must be
+	 * deleted first; ElasticSearch 2.x cannot do that in the same request.
+	 * The caller has checked <code>ReindexDeleteLegacyIndex</code>.
+	 * @param alias
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	private void swapAlias(String alias, String source, String target) throws IOException {
+		JSONArray actions = new JSONArray();
+		if (alias.equals(source)) {
+			JsonTransport.Response rs = transport.execute(JsonTransport.DELETE, "/"+JsonTransport.encodeId(source), null);
+			if (!rs.isSucceeded())
+				throw new IOException("Delete "+source+": "+rs.getErrorMessage());
+		} else
+			actions.add(aliasAction("remove", source, alias));
+		actions.add(aliasAction("add", target, alias));
+		JSONObject body = new JSONObject();
+		body.put("actions", actions);
+		JsonTransport.Response rs = transport.execute(JsonTransport.POST, "/_aliases",
+				body.toJSONString().getBytes(StandardCharsets.UTF_8));
+		if (!rs.isSucceeded()) {
+			if (alias.equals(source))
+				throw new IOException("Swap "+alias+": "+rs.getErrorMessage()+"; "+source+
+						" is deleted and its nodes are in "+target+", which must be aliased as "+alias+
+						" by hand once any index named "+alias+" is gone");
+			throw new IOException("Swap "+alias+": "+rs.getErrorMessage());
+		}
+	}
+
+	private static JSONObject aliasAction(String op, String index, String alias) {
+		JSONObject jo = new JSONObject();
+		jo.put("index", index);
+		jo.put("alias", alias);
+		JSONObject result = new JSONObject();
+		result.put(op, jo);
+		return result;
+	}
+
+	/**
+	 * @param alias
+	 * @param current
+	 * @return <code>alias_vN</code>, one past <code>current</code>'s version
+	 */
+	static String nextVersion(String alias, String current) {
+		Matcher m = VERSIONED.matcher(current);
+		int v = 0;
+		if (m.matches() && m.group(1).equals(alias))
+			v = Integer.parseInt(m.group(2));
+		return alias + "_v" + (v + 1);
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		String v = environment.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Integer.parseInt(v.trim());
+	}
+}
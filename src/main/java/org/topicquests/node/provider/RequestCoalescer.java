@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * @author park
+ * <p>Single-flight execution: concurrent requests for the same key share
+ * one outstanding load and its result</p>
+ * <p>A load's <code>publish</code> step, e.g. putting the result in a
+ * cache, runs only if nobody called {@link #forget(String)} on the key
+ * while the load was in flight. Writers call <code>forget</code> before
+ * updating the cache, so a read which started before a write can never
+ * overwrite that write's cache entry with the old value. A read which
+ * both starts and publishes before the write lands may still cache the
+ * old value, so writers which leave no entry of their own forget and
+ * evict again once the write is done.</p>
+ */
+public class RequestCoalescer<V> {
+	private final ConcurrentHashMap<String, CompletableFuture<V>> inFlight;
+	private final LongAdder leaders = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * Loads several keys at once, e.g. with one multi-get
+	 */
+	public interface BatchLoader<V> {
+
+		/**
+		 * @param keys
+		 * @return a value, or <code>null</code>, for each of <code>keys</code>, in order
+		 * @throws Exception
+		 */
+		List<V> load(List<String> keys) throws Exception;
+	}
+
+	public RequestCoalescer() {
+		inFlight = new ConcurrentHashMap<String, CompletableFuture<V>>();
+	}
+
+	/**
+	 * Run <code>loader</code> on this thread unless a load of <code>key</code>
+	 * is already in flight, in which case wait for that one
+	 * @param key
+	 * @param loader
+	 * @param publish can be <code>null</code>
+	 * @return
+	 * @throws Exception
+	 */
+	public V execute(String key, Callable<V> loader, Consumer<V> publish) throws Exception {
+		CompletableFuture<V> mine = new CompletableFuture<V>();
+		CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+		if (theirs != null) {
+			coalesced.increment();
+			try {
+				return theirs.get();
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof Exception)
+					throw (Exception)t;
+				throw e;
+			}
+		}
+		leaders.increment();
+		V result;
+		boolean loaded = false;
+		try {
+			result = loader.call();
+			loaded = true;
+		} catch (Throwable t) {
+			mine.completeExceptionally(t);
+			throw t;
+		} finally {
+			if (!loaded)
+				inFlight.remove(key, mine);
+		}
+		finish(key, mine, result, publish);
+		mine.complete(result);
+		return result;
+	}
+
+	/**
+	 * Load <code>keys</code> together, each as if by
+	 * {@link #execute(String, Callable, Consumer)}: a key whose load is
+	 * already in flight is left to that load, and a key forgotten while
+	 * the batch is in flight is not published
+	 * @param keys
+	 * @param loader given the keys this call leads
+	 * @param publish given each key and its value; can be <code>null</code>
+	 * @return the value of each key this call led
+	 * @throws Exception
+	 */
+	public Map<String, V> executeAll(List<String> keys, BatchLoader<V> loader, BiConsumer<String, V> publish) throws Exception {
+		List<String> led = new ArrayList<String>(keys.size());
+		List<CompletableFuture<V>> mine = new ArrayList<CompletableFuture<V>>(keys.size());
+		CompletableFuture<V> f;
+		for (String key : keys) {
+			f = new CompletableFuture<V>();
+			if (inFlight.putIfAbsent(key, f) == null) {
+				led.add(key);
+				mine.add(f);
+			} else
+				coalesced.increment();
+		}
+		Map<String, V> result = new LinkedHashMap<String, V>();
+		if (led.isEmpty())
+			return result;
+		leaders.add(led.size());
+		List<V> values;
+		boolean loaded = false;
+		try {
+			values = loader.load(led);
+			loaded = true;
+		} catch (Throwable t) {
+			for (CompletableFuture<V> m : mine)
+				m.completeExceptionally(t);
+			throw t;
+		} finally {
+			if (!loaded) {
+				for (int i=0; i<led.size(); i++)
+					inFlight.remove(led.get(i), mine.get(i));
+			}
+		}
+		String key;
+		V v;
+		for (int i=0; i<led.size(); i++) {
+			key = led.get(i);
+			v = (values != null && i < values.size()) ? values.get(i) : null;
+			final String k = key;
+			finish(key, mine.get(i), v, (publish == null) ? null : x -> publish.accept(k, x));
+			mine.get(i).complete(v);
+			result.put(key, v);
+		}
+		return result;
+	}
+
+	/**
+	 * Start <code>loader</code> unless a load of <code>key</code> is
+	 * already in flight, in which case share that one
+	 * @param key
+	 * @param loader
+	 * @param publish can be <code>null</code>
+	 * @return
+	 */
+	public CompletableFuture<V> executeAsync(String key, Supplier<CompletableFuture<V>> loader, Consumer<V> publish) {
+		CompletableFuture<V> mine = new CompletableFuture<V>();
+		CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+		if (theirs != null) {
+			coalesced.increment();
+			return theirs;
+		}
+		leaders.increment();
+		CompletableFuture<V> load;
+		try {
+			load = loader.get();
+		} catch (Throwable t) {
+			inFlight.remove(key, mine);
+			mine.completeExceptionally(t);
+			return mine;
+		}
+		load.whenComplete((v, e) -> {
+			if (e != null) {
+				inFlight.remove(key, mine);
+				mine.completeExceptionally(e);
+			} else {
+				finish(key, mine, v, publish);
+				mine.complete(v);
+			}
+		});
+		return mine;
+	}
+
+	/**
+	 * Detach any in-flight load of <code>key</code>: it completes for its
+	 * current waiters but will not publish, and new requests start afresh
+	 * @param key
+	 */
+	public void forget(String key) {
+		inFlight.remove(key);
+	}
+
+	/**
+	 * @return loads actually performed
+	 */
+	public long getLeaderCount() {
+		return leaders.sum();
+	}
+
+	/**
+	 * @return requests which shared another request's load
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Publish under the map's lock for <code>key</code>, which
+	 * {@link #forget(String)} also takes
+	 */
+	private void finish(String key, CompletableFuture<V> mine, V value, Consumer<V> publish) {
+		inFlight.computeIfPresent(key, (k, f) -> {
+			if (f != mine)
+				return f;
+			if (publish != null)
+				publish.accept(value);
+			return null;
+		});
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Walks every hit of a query one page at a time with a scroll, so
+ * memory use is bounded by the page size however many hits there are</p>
+ * <p>Unless the query has its own <code>sort</code>, hits come in
+ * <code>_doc</code> order, the cheapest for ElasticSearch to scroll.
+ * The scroll is cleared when the last page has been read or on
+ * {@link #close()}; callers which stop early must close. Another thread
+ * may stop a walk with {@link #cancel()}.</p>
+ * <p>With a <code>slice</code> (ElasticSearch 5.0 and later), this
+ * iterator walks only its share of the hits, so that several can scan
+ * one index in parallel.</p>
+ */
+public class ScrollIterator implements Iterator<JSONObject>, Closeable {
+	private ProviderEnvironment environment;
+	private JsonTransport transport;
+	private final String keepAlive;
+	private final boolean sourceOnly;
+	private byte [] firstRequest;
+	private String firstPath;
+	/** guarded by this, as {@link #cancel()} may clear it */
+	private String scrollId = null;
+	private JSONArray page = null;
+	private int cursor = 0;
+	private volatile boolean isDone = false;
+	private long total = -1;
+
+	/**
+	 * @param env
+	 * @param t
+	 * @param path e.g. <code>/topics/core</code>
+	 * @param query a search body; can be <code>null</code> for all
+	 * @param pageSize
+	 * @param keepAlive e.g. <code>1m</code>
+	 * @param slice this iterator's slice, or <code>-1</code> for none
+	 * @param maxSlices
+	 * @param sourceOnly if <code>true</code> return each hit's
+	 *  <code>_source</code>, else the whole hit, which carries <code>_id</code>
+	 */
+	public ScrollIterator(ProviderEnvironment env, JsonTransport t, String path, String query,
+			int pageSize, String keepAlive, int slice, int maxSlices, boolean sourceOnly) {
+		environment = env;
+		transport = t;
+		this.keepAlive = keepAlive;
+		this.sourceOnly = sourceOnly;
+		JSONObject q;
+		try {
+			q = (query == null) ? new JSONObject() : t.getCodec().decode(query.getBytes("UTF-8"));
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Bad query: "+e.getMessage(), e);
+		}
+		// from is not allowed in a scroll
+		q.remove("from");
+		q.put("size", pageSize);
+		if (!q.containsKey("sort")) {
+			JSONArray sort = new JSONArray();
+			sort.add("_doc");
+			q.put("sort", sort);
+		}
+		if (slice > -1 && maxSlices > 1) {
+			JSONObject s = new JSONObject();
+			s.put("id", slice);
+			s.put("max", maxSlices);
+			q.put("slice", s);
+		}
+		firstRequest = t.getCodec().encode(q);
+		firstPath = path + "/_search?scroll=" + keepAlive;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (isDone)
+			return false;
+		if (page != null && cursor < page.size())
+			return true;
+		try {
+			nextPage();
+		} catch (IOException e) {
+			close();
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		return page != null && cursor < page.size();
+	}
+
+	@Override
+	public JSONObject next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		JSONObject hit = (JSONObject)page.get(cursor);
+		// let the page go as we walk it
+		page.set(cursor++, null);
+		return sourceOnly ? (JSONObject)hit.get("_source") : hit;
+	}
+
+	/**
+	 * @return total hits, or <code>-1</code> before the first page
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Clear the scroll on the server; safe to call more than once
+	 */
+	@Override
+	public void close() {
+		isDone = true;
+		page = null;
+		clearScroll();
+	}
+
+	/**
+	 * Stop the walk from another thread: {@link #hasNext()} answers
+	 * <code>false</code> from now on and the scroll is cleared; the
+	 * owning thread still closes
+	 */
+	public void cancel() {
+		isDone = true;
+		clearScroll();
+	}
+
+	private void clearScroll() {
+		String sid;
+		synchronized (this) {
+			sid = scrollId;
+			scrollId = null;
+		}
+		if (sid != null) {
+			try {
+				transport.execute(JsonTransport.DELETE, "/_search/scroll/"+JsonTransport.encodeId(sid), null);
+			} catch (IOException e) {
+				// it will time out anyway
+				environment.logError("ScrollIterator.close "+e.getMessage(), e);
+			}
+		}
+	}
+
+	private void nextPage() throws IOException {
+		JsonTransport.Response rs;
+		String sid;
+		synchronized (this) {
+			sid = scrollId;
+		}
+		if (sid == null) {
+			rs = transport.execute(JsonTransport.POST, firstPath, firstRequest);
+			firstRequest = null;
+		} else {
+			JSONObject jo = new JSONObject();
+			jo.put("scroll", keepAlive);
+			jo.put("scroll_id", sid);
+			rs = transport.execute(JsonTransport.POST, "/_search/scroll", transport.getCodec().encode(jo));
+		}
+		if (!rs.isSucceeded())
+			throw new IOException(rs.getErrorMessage());
+		synchronized (this) {
+			scrollId = (String)rs.body.get("_scroll_id");
+		}
+		if (isDone) {
+			// cancelled while the page was on its way
+			clearScroll();
+			return;
+		}
+		JSONObject hits = (JSONObject)rs.body.get("hits");
+		if (total < 0) {
+			Object t = hits.get("total");
+			// 7.x reports {"value":n}
+			if (t instanceof JSONObject)
+				t = ((JSONObject)t).get("value");
+			total = (t instanceof Number) ? ((Number)t).longValue() : 0;
+		}
+		page = (JSONArray)hits.get("hits");
+		cursor = 0;
+		if (page == null || page.isEmpty()) {
+			isDone = true;
+			clearScroll();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * @author park
+ * <p>The sliced scrolls of one {@link Client#scanNodes}, {@link Exporter}
+ * or {@link Reindexer} run, each on its own thread; or the files of one
+ * {@link Importer} run, on a pool of workers</p>
+ * <p>When one slice fails the others are stopped: the pool is shut down,
+ * every open scroll is cancelled so that its loop ends at the next hit,
+ * and each slice's future fails with the first error, so that joining
+ * them never waits on a slice which will not run. {@link #await()} then
+ * waits for the slices still running, so that none touches its consumer
+ * once the run has returned.</p>
+ */
+class SliceGroup {
+	private final ExecutorService pool;
+	// guarded by this
+	private final List<CompletableFuture<?>> parts = new ArrayList<CompletableFuture<?>>();
+	private final Set<ScrollIterator> scrolls = ConcurrentHashMap.newKeySet();
+	private volatile Throwable failure = null;
+	/** longest to wait for slices to stop */
+	private static final long AWAIT_MINUTES = 60;
+
+	/**
+	 * @param threads one per slice, or fewer to queue the rest
+	 */
+	SliceGroup(int threads) {
+		pool = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Run a slice
+	 * @param task
+	 * @return
+	 */
+	<T> CompletableFuture<T> submit(Supplier<T> task) {
+		CompletableFuture<T> result;
+		synchronized (this) {
+			if (failure != null) {
+				result = new CompletableFuture<T>();
+				result.completeExceptionally(failure);
+				return result;
+			}
+			result = CompletableFuture.supplyAsync(task, pool);
+			parts.add(result);
+		}
+		result.whenComplete((v, e) -> {
+			if (e != null)
+				cancel(e);
+		});
+		return result;
+	}
+
+	/**
+	 * Register a slice's scroll, to be cancelled if another slice fails
+	 * @param itr
+	 * @return <code>itr</code>
+	 * @throws CancellationException if the group has failed already
+	 */
+	ScrollIterator open(ScrollIterator itr) {
+		scrolls.add(itr);
+		if (failure != null) {
+			itr.close();
+			throw new CancellationException("Another slice failed");
+		}
+		return itr;
+	}
+
+	/**
+	 * @return <code>true</code> if a slice failed; a slice should not
+	 *  report itself complete once this is set
+	 */
+	boolean isCancelled() {
+		return failure != null;
+	}
+
+	/**
+	 * Stop every slice
+	 * @param t the failure
+	 */
+	void cancel(Throwable t) {
+		List<CompletableFuture<?>> l;
+		synchronized (this) {
+			if (failure != null)
+				return;
+			if (t instanceof CompletionException && t.getCause() != null)
+				t = t.getCause();
+			failure = t;
+			l = new ArrayList<CompletableFuture<?>>(parts);
+		}
+		pool.shutdownNow();
+		for (ScrollIterator itr : scrolls)
+			itr.cancel();
+		for (CompletableFuture<?> f : l)
+			f.completeExceptionally(t);
+	}
+
+	/**
+	 * Wait for every slice to stop
+	 */
+	void await() {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(AWAIT_MINUTES, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
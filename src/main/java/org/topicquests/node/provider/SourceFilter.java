@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Which fields of a node's <code>_source</code> to fetch: ElasticSearch
+ * source filtering, e.g. <code>lox</code>, <code>label</code> and
+ * <code>_ver</code> for a list view, without <code>details</code></p>
+ * <p>Field names may be dotted paths, <code>lists.label</code>, and may
+ * use <code>*</code> wildcards. A field includes everything beneath it.</p>
+ * <p>A node fetched through a filter is partial, so it is never cached;
+ * but a node already cached in full is projected locally with
+ * {@link #project(JSONObject)} instead of going to ElasticSearch.</p>
+ */
+public class SourceFilter {
+	private final List<String> includes;
+	private final List<String> excludes;
+	private final Pattern [] includePatterns;
+	private final Pattern [] excludePatterns;
+	private final String key;
+
+	/**
+	 * @param includes can be <code>null</code> or empty for all fields
+	 * @param excludes can be <code>null</code>
+	 */
+	public SourceFilter(List<String> includes, List<String> excludes) {
+		this.includes = (includes == null) ? Collections.<String>emptyList() : new ArrayList<String>(includes);
+		this.excludes = (excludes == null) ? Collections.<String>emptyList() : new ArrayList<String>(excludes);
+		includePatterns = compile(this.includes);
+		excludePatterns = compile(this.excludes);
+		key = String.join(",", this.includes) + "-" + String.join(",", this.excludes);
+	}
+
+	/**
+	 * @param fields
+	 * @return a filter which fetches only <code>fields</code>
+	 */
+	public static SourceFilter include(String... fields) {
+		return new SourceFilter(Arrays.asList(fields), null);
+	}
+
+	/**
+	 * @param fields
+	 * @return a filter which fetches all but <code>fields</code>
+	 */
+	public static SourceFilter exclude(String... fields) {
+		return new SourceFilter(null, Arrays.asList(fields));
+	}
+
+	public List<String> getIncludes() {
+		return includes;
+	}
+
+	public List<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * @return a stable string naming this filter
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return parameters for a GET or MultiGet URL, without a leading <code>?</code> or <code>&</code>
+	 */
+	public String toQueryString() {
+		StringBuilder buf = new StringBuilder();
+		if (!includes.isEmpty())
+			buf.append("_source_include=").append(JsonTransport.encodeId(String.join(",", includes)));
+		if (!excludes.isEmpty()) {
+			if (buf.length() > 0)
+				buf.append('&');
+			buf.append("_source_exclude=").append(JsonTransport.encodeId(String.join(",", excludes)));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * @return the value of <code>_source</code> in a search body
+	 */
+	public JSONObject toSearchSource() {
+		JSONObject result = new JSONObject();
+		JSONArray ja;
+		if (!includes.isEmpty()) {
+			ja = new JSONArray();
+			ja.addAll(includes);
+			result.put("includes", ja);
+		}
+		if (!excludes.isEmpty()) {
+			ja = new JSONArray();
+			ja.addAll(excludes);
+			result.put("excludes", ja);
+		}
+		return result;
+	}
+
+	/**
+	 * Apply this filter to a full node
+	 * @param node can be <code>null</code>
+	 * @return a new, partial node
+	 */
+	public JSONObject project(JSONObject node) {
+		if (node == null)
+			return null;
+		return project(node, "");
+	}
+
+	private JSONObject project(Map<String, Object> node, String prefix) {
+		JSONObject result = new JSONObject();
+		Iterator<Map.Entry<String, Object>> itr = node.entrySet().iterator();
+		Map.Entry<String, Object> e;
+		String path;
+		Object v;
+		while (itr.hasNext()) {
+			e = itr.next();
+			path = prefix + e.getKey();
+			v = e.getValue();
+			if (matches(excludePatterns, path))
+				continue;
+			if (includes.isEmpty() || matches(includePatterns, path)) {
+				if (excludes.isEmpty() || !(v instanceof Map))
+					result.put(e.getKey(), v);
+				else
+					result.put(e.getKey(), project((Map<String, Object>)v, path + "."));
+			} else if (v instanceof Map && isParent(path)) {
+				// an include names something beneath this object
+				v = project((Map<String, Object>)v, path + ".");
+				if (!((Map<?,?>)v).isEmpty())
+					result.put(e.getKey(), v);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param patterns
+	 * @param path
+	 * @return <code>true</code> if a pattern matches <code>path</code>
+	 *  or one of its ancestors
+	 */
+	private static boolean matches(Pattern [] patterns, String path) {
+		String p;
+		int dot;
+		for (int i=0; i<patterns.length; i++) {
+			p = path;
+			while (true) {
+				if (patterns[i].matcher(p).matches())
+					return true;
+				dot = p.lastIndexOf('.');
+				if (dot < 0)
+					break;
+				p = p.substring(0, dot);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param path
+	 * @return <code>true</code> if an include may name something beneath <code>path</code>
+	 */
+	private boolean isParent(String path) {
+		String f;
+		for (int i=0; i<includes.size(); i++) {
+			f = includes.get(i);
+			if (f.startsWith(path + ".") || f.indexOf('*') > -1)
+				return true;
+		}
+		return false;
+	}
+
+	private static Pattern [] compile(List<String> fields) {
+		Pattern [] result = new Pattern[fields.size()];
+		String f;
+		for (int i=0; i<result.length; i++) {
+			f = fields.get(i);
+			String [] parts = f.split("\\*", -1);
+			StringBuilder buf = new StringBuilder();
+			for (int j=0; j<parts.length; j++) {
+				if (j > 0)
+					buf.append(".*");
+				if (!parts[j].isEmpty())
+					buf.append(Pattern.quote(parts[j]));
+			}
+			result[i] = Pattern.compile(buf.toString());
+		}
+		return result;
+	}
+}
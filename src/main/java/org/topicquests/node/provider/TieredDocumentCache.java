@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.node.provider.api.IDocumentCache;
+import org.topicquests.node.provider.api.IEvictionListener;
+import org.topicquests.node.provider.api.IJsonCodec;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>An {@link IDocumentCache} of two tiers: a {@link DocumentCache} of
+ * parsed nodes on the heap, bounded by <code>CacheMaxBytes</code>, in
+ * front of an {@link OffHeapCache} of compressed JSON, bounded by
+ * <code>OffHeapCacheMaxBytes</code></p>
+ * <p>Nodes the heap tier evicts, or declines to admit, move to the
+ * off-heap tier. A node found off the heap is parsed only then, and
+ * moves back to the heap tier; a node is in one tier or the other.
+ * Name this class as <code>CacheClass</code> to use it.</p>
+ */
+public class TieredDocumentCache implements IDocumentCache, IEvictionListener {
+	private final DocumentCache heap;
+	private final OffHeapCache offHeap;
+	private final IJsonCodec codec;
+	/** orders moves off the heap tier with puts and removes of one node */
+	private final Object [] locks;
+	private static final int LOCKS = 64;
+	private final LongAdder heapHits = new LongAdder();
+	private final LongAdder offHeapHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Sized from <code>CacheMaxBytes</code>, <code>CacheTTLSeconds</code>,
+	 * <code>OffHeapCacheMaxBytes</code> and <code>OffHeapSlabBytes</code>
+	 * @param env
+	 */
+	public TieredDocumentCache(ProviderEnvironment env) {
+		this(new DocumentCache(env),
+				new OffHeapCache(longProperty(env, "OffHeapCacheMaxBytes", 1024L * 1024 * 1024),
+						(int)longProperty(env, "OffHeapSlabBytes", 16 * 1024 * 1024)),
+				createCodec(env));
+	}
+
+	/**
+	 * @param heap
+	 * @param offHeap
+	 * @param codec parses nodes found off the heap
+	 */
+	public TieredDocumentCache(DocumentCache heap, OffHeapCache offHeap, IJsonCodec codec) {
+		this.heap = heap;
+		this.offHeap = offHeap;
+		this.codec = codec;
+		locks = new Object[LOCKS];
+		for (int i=0; i<LOCKS; i++)
+			locks[i] = new Object();
+		heap.setEvictionListener(this);
+	}
+
+	@Override
+	public JSONObject get(String index, String id) {
+		JSONObject result = heap.get(index, id);
+		if (result != null) {
+			heapHits.increment();
+			return result;
+		}
+		String key = key(index, id);
+		OffHeapCache.Taken t;
+		synchronized (lockFor(key)) {
+			t = offHeap.take(key);
+			if (t != null) {
+				try {
+					result = codec.decode(t.bytes);
+				} catch (Exception e) {
+					result = null;
+				}
+				if (result != null)
+					heap.put(index, id, result, t.bytes, t.expiresAt);
+			}
+		}
+		if (result == null)
+			misses.increment();
+		else
+			offHeapHits.increment();
+		return result;
+	}
+
+	@Override
+	public void put(String index, String id, JSONObject node) {
+		String key = key(index, id);
+		synchronized (lockFor(key)) {
+			offHeap.remove(key);
+			heap.put(index, id, node);
+		}
+	}
+
+	@Override
+	public void put(String index, String id, JSONObject node, byte [] serialized) {
+		String key = key(index, id);
+		synchronized (lockFor(key)) {
+			offHeap.remove(key);
+			heap.put(index, id, node, serialized);
+		}
+	}
+
+	@Override
+	public void putWritten(String index, String id, JSONObject node, byte [] serialized) {
+		String key = key(index, id);
+		synchronized (lockFor(key)) {
+			offHeap.remove(key);
+			heap.putWritten(index, id, node, serialized);
+		}
+	}
+
+	@Override
+	public void remove(String index, String id) {
+		String key = key(index, id);
+		synchronized (lockFor(key)) {
+			heap.remove(index, id);
+			offHeap.remove(key);
+		}
+	}
+
+	/**
+	 * A node leaving the heap tier; called under its segment's lock, so
+	 * a {@link #remove(String, String)} cannot come between. The bytes
+	 * the heap tier kept are stored as they are; only a node cached
+	 * without them is encoded here.
+	 */
+	@Override
+	public void onEviction(String index, String id, JSONObject node, byte [] serialized, long expiresAt) {
+		offHeap.put(key(index, id), (serialized != null) ? serialized : codec.encode(node), expiresAt);
+	}
+
+	@Override
+	public void clear() {
+		heap.clear();
+		offHeap.clear();
+	}
+
+	@Override
+	public long size() {
+		return heap.size() + offHeap.size();
+	}
+
+	/**
+	 * @return heap bytes estimated plus off-heap bytes allocated
+	 */
+	@Override
+	public long getWeightedSize() {
+		return heap.getWeightedSize() + offHeap.getAllocatedBytes();
+	}
+
+	@Override
+	public long getHitCount() {
+		return heapHits.sum() + offHeapHits.sum();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return nodes dropped from both tiers
+	 */
+	@Override
+	public long getEvictionCount() {
+		return offHeap.getEvictionCount();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long h = getHitCount();
+		long total = h + misses.sum();
+		return (total == 0) ? 0 : (double)h / (double)total;
+	}
+
+	public DocumentCache getHeapTier() {
+		return heap;
+	}
+
+	public OffHeapCache getOffHeapTier() {
+		return offHeap;
+	}
+
+	/**
+	 * @return hits served from the off-heap tier
+	 */
+	public long getOffHeapHitCount() {
+		return offHeapHits.sum();
+	}
+
+	private Object lockFor(String key) {
+		return locks[FrequencySketch.spread(key.hashCode()) & (LOCKS - 1)];
+	}
+
+	private static String key(String index, String id) {
+		return index + "/" + id;
+	}
+
+	/**
+	 * The <code>JsonCodecClass</code>, so that promoted nodes are built
+	 * as the client builds them
+	 */
+	private static IJsonCodec createCodec(ProviderEnvironment env) {
+		String className = env.getStringProperty("JsonCodecClass");
+		if (className != null) {
+			try {
+				return (IJsonCodec)Class.forName(className.trim()).newInstance();
+			} catch (Exception e) {
+				env.logError("TieredDocumentCache.createCodec "+className, e);
+			}
+		}
+		return new JsonSmartCodec();
+	}
+
+	private static long longProperty(ProviderEnvironment env, String key, long defaultValue) {
+		String v = env.getStringProperty(key);
+		if (v == null)
+			return defaultValue;
+		return Long.parseLong(v.trim());
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author park
+ * <p>While a {@link Reindexer} copies an index, {@link Client} records
+ * here the id of every node written through it, so the copy can catch
+ * up on them</p>
+ * <p>The journal is also a gate: {@link #pause()} waits for writes in
+ * flight and holds new ones back, so that the final catch-up and the
+ * alias swap see no write slip between them</p>
+ */
+public class WriteJournal {
+	private final Set<String> ids = ConcurrentHashMap.newKeySet();
+	private final boolean isRecording;
+	// guarded by this
+	private int writers = 0;
+	private boolean isPaused = false;
+
+	public WriteJournal() {
+		this(true);
+	}
+
+	/**
+	 * @param recording <code>false</code> for one which only counts writes
+	 *  in flight, dropping their ids
+	 */
+	WriteJournal(boolean recording) {
+		isRecording = recording;
+	}
+
+	/**
+	 * Begin a write; blocks while the journal is paused
+	 */
+	synchronized void enter() {
+		boolean interrupted = false;
+		while (isPaused) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		writers++;
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * End a write begun with {@link #enter()}
+	 * @param id the written node, can be <code>null</code>
+	 */
+	synchronized void exit(String id) {
+		if (id != null && isRecording)
+			ids.add(id);
+		if (--writers == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Record a node written under a single {@link #enter()} covering several
+	 * @param id
+	 */
+	void add(String id) {
+		if (isRecording)
+			ids.add(id);
+	}
+
+	/**
+	 * Hold back new writes and wait for those in flight
+	 * @throws InterruptedException having let held back writes go on,
+	 *  as {@link #resume()} does
+	 */
+	synchronized void pause() throws InterruptedException {
+		isPaused = true;
+		try {
+			while (writers > 0)
+				wait();
+		} catch (InterruptedException e) {
+			resume();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait for writes in flight, without holding new ones back
+	 * @throws InterruptedException
+	 */
+	synchronized void awaitWriters() throws InterruptedException {
+		while (writers > 0)
+			wait();
+	}
+
+	synchronized void resume() {
+		isPaused = false;
+		notifyAll();
+	}
+
+	/**
+	 * Take the ids written since the last drain
+	 * @return
+	 */
+	List<String> drain() {
+		List<String> result = new ArrayList<String>();
+		Iterator<String> itr = ids.iterator();
+		while (itr.hasNext()) {
+			result.add(itr.next());
+			itr.remove();
+		}
+		return result;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author park
+ * <p>The recent writes of one caller, so that its searches see its own
+ * writes without a forced refresh per write</p>
+ * <p>Obtain one from {@link Client#createSession()} and pass it to the
+ * session-aware write and query methods. A session remembers, per index,
+ * the generation of its last successful write; its searches first
+ * refresh the index, if need be, until that write is searchable. That
+ * takes <code>RefreshOnRead</code>, which is the default: without it a
+ * session's searches see its writes only once the next interval refresh
+ * has run.</p>
+ * <p>A session may be shared by a caller's asynchronous writes</p>
+ */
+public class WriteSession {
+	private Map<String, Long> generations;
+
+	WriteSession() {
+		generations = new ConcurrentHashMap<String, Long>();
+	}
+
+	/**
+	 * Record a successful write to <code>index</code>
+	 * @param index
+	 * @param generation from {@link Client#markWritten(String)}
+	 */
+	void recordWrite(String index, long generation) {
+		generations.merge(index, new Long(generation), (a, b) -> (a.longValue() >= b.longValue()) ? a : b);
+	}
+
+	/**
+	 * The generation of this session's last write to <code>index</code>
+	 * @param index
+	 * @return <code>0</code> if none
+	 */
+	long getGeneration(String index) {
+		Long g = generations.get(index);
+		return (g == null) ? 0 : g.longValue();
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+import org.topicquests.support.api.IResult;
+
+/**
+ * @author park
+ * <p>Receives the outcome of <code>_bulk</code> requests which were
+ * flushed by a size, count or time threshold rather than by an explicit
+ * call. A threshold reached by queueing an action is also reported in
+ * that call's result.</p>
+ */
+public interface IBulkListener {
+
+	/**
+	 * <code>result</code> carries one error string per failed item;
+	 * its result object is a <code>List<String></code> of failed ids
+	 * @param result
+	 */
+	void afterFlush(IResult result);
+}
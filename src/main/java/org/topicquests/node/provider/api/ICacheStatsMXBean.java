@@ -0,0 +1,23 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+/**
+ * @author park
+ * <p>JMX view of a {@link IDocumentCache}</p>
+ */
+public interface ICacheStatsMXBean {
+
+	long getSize();
+
+	long getWeightedSize();
+
+	long getHitCount();
+
+	long getMissCount();
+
+	long getEvictionCount();
+
+	double getHitRatio();
+}
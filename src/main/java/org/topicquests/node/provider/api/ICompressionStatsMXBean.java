@@ -0,0 +1,29 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+/**
+ * @author park
+ * <p>JMX view of gzip on the {@link org.topicquests.node.provider.JsonTransport}</p>
+ */
+public interface ICompressionStatsMXBean {
+
+	long getCompressedRequests();
+
+	/**
+	 * @return compressed size over original size of compressed requests
+	 */
+	double getRequestRatio();
+
+	long getCompressMicros();
+
+	long getCompressedResponses();
+
+	/**
+	 * @return compressed size over original size of compressed responses
+	 */
+	double getResponseRatio();
+
+	long getDecompressMicros();
+}
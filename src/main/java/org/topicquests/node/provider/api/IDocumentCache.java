@@ -0,0 +1,85 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>A cache of node sources, keyed by index and id</p>
+ * <p>Implementations must be thread safe. A custom implementation is
+ * named by the <code>CacheClass</code> config property and must have
+ * a public constructor taking a
+ * {@link org.topicquests.node.provider.ProviderEnvironment}</p>
+ */
+public interface IDocumentCache {
+
+	/**
+	 * @param index
+	 * @param id
+	 * @return can return <code>null</code>
+	 */
+	JSONObject get(String index, String id);
+
+	/**
+	 * An implementation may decline to keep <code>node</code>
+	 * @param index
+	 * @param id
+	 * @param node
+	 */
+	void put(String index, String id, JSONObject node);
+
+	/**
+	 * Same as {@link #put(String, String, JSONObject)}, for a node
+	 * whose serialized form is already at hand
+	 * @param index
+	 * @param id
+	 * @param node
+	 * @param serialized UTF-8 JSON of <code>node</code>
+	 */
+	default void put(String index, String id, JSONObject node, byte [] serialized) {
+		put(index, id, node);
+	}
+
+	/**
+	 * Same as {@link #put(String, String, JSONObject, byte[])}, for a node
+	 * this client has just written, which an implementation should not
+	 * decline in favour of older entries
+	 * @param index
+	 * @param id
+	 * @param node
+	 * @param serialized can be <code>null</code>
+	 */
+	default void putWritten(String index, String id, JSONObject node, byte [] serialized) {
+		if (serialized == null)
+			put(index, id, node);
+		else
+			put(index, id, node, serialized);
+	}
+
+	void remove(String index, String id);
+
+	void clear();
+
+	/**
+	 * @return number of cached nodes
+	 */
+	long size();
+
+	/**
+	 * @return estimated bytes held
+	 */
+	long getWeightedSize();
+
+	long getHitCount();
+
+	long getMissCount();
+
+	long getEvictionCount();
+
+	/**
+	 * @return hits / (hits + misses), or <code>0</code> before any lookups
+	 */
+	double getHitRatio();
+}
@@ -26,6 +26,7 @@ public interface IErrorMessages {
 		NODE_REMOVED				= "NodeRemoved",
 		NODE_MISSING				= "NodeMissing",
 		MISSING_VERSION_PROPERTY	= "MissingVersionProperty",
+		BAD_VERSION_PROPERTY		= "BadVersionProperty",
 		//ITQDataProvider.updateProxyFromJSON
 		BAD_JSON_UPDATE_NODE		= "BadJSONUpdateNode";
 
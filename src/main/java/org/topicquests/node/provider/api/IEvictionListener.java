@@ -0,0 +1,27 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Receives nodes which a {@link org.topicquests.node.provider.DocumentCache}
+ * evicts to make room, or declines to admit</p>
+ * <p>Called while the cache segment holding the node is locked, so that
+ * a removal of the same node cannot overtake it; implementations should
+ * be quick and must not call back into the cache</p>
+ */
+public interface IEvictionListener {
+
+	/**
+	 * @param index
+	 * @param id
+	 * @param node
+	 * @param serialized the node's JSON bytes as they were cached, or
+	 *  <code>null</code> if it was cached without them
+	 * @param expiresAt as the cache had it, <code>0</code> for never
+	 */
+	void onEviction(String index, String id, JSONObject node, byte [] serialized, long expiresAt);
+}
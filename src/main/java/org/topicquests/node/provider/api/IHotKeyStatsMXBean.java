@@ -0,0 +1,38 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+/**
+ * @author park
+ * <p>JMX view of the {@link org.topicquests.node.provider.HotKeyTracker}
+ * and the cache warm-up it drives</p>
+ */
+public interface IHotKeyStatsMXBean {
+
+	/**
+	 * @return ids whose reads are being counted
+	 */
+	int getTrackedKeys();
+
+	/**
+	 * @return ids loaded from the hot-key file at startup
+	 */
+	long getWarmupKeys();
+
+	/**
+	 * @return of those, ids fetched into the cache so far
+	 */
+	long getWarmedKeys();
+
+	/**
+	 * @return ids looked up so far over {@link #getWarmupKeys()}, from
+	 *  <code>0</code> to <code>1</code>
+	 */
+	double getWarmupProgress();
+
+	/**
+	 * @return how long warm-up took, <code>-1</code> until it is done
+	 */
+	long getWarmupMillis();
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Converts between HTTP body bytes and {@link JSONObject}s. A custom
+ * implementation is named by the <code>JsonCodecClass</code> config
+ * property and must have a public no-argument constructor</p>
+ */
+public interface IJsonCodec {
+
+	/**
+	 * @param bytes UTF-8 JSON
+	 * @return
+	 * @throws Exception
+	 */
+	JSONObject decode(byte[] bytes) throws Exception;
+
+	/**
+	 * @param object
+	 * @return UTF-8 JSON
+	 */
+	byte[] encode(JSONObject object);
+}
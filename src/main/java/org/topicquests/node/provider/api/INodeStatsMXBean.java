@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+/**
+ * @author park
+ * <p>JMX view of one ElasticSearch node as seen by
+ * {@link org.topicquests.node.provider.NodeSelector}</p>
+ */
+public interface INodeStatsMXBean {
+
+	String getAddress();
+
+	boolean isHealthy();
+
+	/**
+	 * @return moving average latency in microseconds
+	 */
+	double getEwmaMicros();
+
+	/**
+	 * @return moving average fraction of failed requests
+	 */
+	double getErrorRate();
+
+	int getInFlight();
+
+	long getRequestCount();
+
+	long getFailureCount();
+
+	long getEjectionCount();
+}
@@ -0,0 +1,30 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+/**
+ * @author park
+ * <p>JMX view of one kind of {@link org.topicquests.node.provider.Client}
+ * operation; latencies are in microseconds since the client started</p>
+ */
+public interface IOperationStatsMXBean {
+
+	long getCount();
+
+	long getErrorCount();
+
+	long getRequestBytes();
+
+	long getResponseBytes();
+
+	double getMeanMicros();
+
+	long getP50Micros();
+
+	long getP99Micros();
+
+	long getP999Micros();
+
+	long getMaxMicros();
+}
@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package org.topicquests.node.provider.api;
+
+/**
+ * @author park
+ * <p>Follows a long-running copy: a
+ * {@link org.topicquests.node.provider.Reindexer},
+ * {@link org.topicquests.node.provider.Exporter} or
+ * {@link org.topicquests.node.provider.Importer} run</p>
+ */
+public interface IProgressListener {
+
+	/**
+	 * Called as each batch is done, and as each phase begins;
+	 * may be called from several threads
+	 * @param phase e.g. {@link org.topicquests.node.provider.Reindexer#COPY}
+	 * @param done nodes so far
+	 * @param total nodes expected, <code>-1</code> if unknown
+	 * @param docsPerSecond since the run began
+	 */
+	void onProgress(String phase, long done, long total, double docsPerSecond);
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package org.topicquests.es.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author jackpark
+ */
+public class QueryTemplateTest {
+
+	@Test
+	public void testSlots() {
+		QueryTemplate t = QueryTemplate.compile(
+				"{\"query\":{\"term\":{\"label\":\"{{label}}\"}},\"size\":{{size}},\"from\":{{from}}}");
+		assertEquals(Arrays.asList("label", "size", "from"), t.getParameterNames());
+		assertEquals("{\"query\":{\"term\":{\"label\":\"cat\"}},\"size\":10,\"from\":0}",
+				t.render("cat", 10, 0L));
+	}
+
+	@Test
+	public void testRepeatedName() {
+		QueryTemplate t = QueryTemplate.compile(
+				"{\"size\":{{n}},\"q\":\"{{text}} {{text}}\",\"from\":{{n}}}");
+		// each name once, in order of first appearance
+		assertEquals(Arrays.asList("n", "text"), t.getParameterNames());
+		assertEquals("{\"size\":5,\"q\":\"a b a b\",\"from\":5}", t.render(5, "a b"));
+	}
+
+	@Test
+	public void testValueSlots() {
+		QueryTemplate t = QueryTemplate.compile("{\"v\":{{v}}}");
+		assertEquals("{\"v\":\"text\"}", t.render("text"));
+		assertEquals("{\"v\":null}", t.render((Object)null));
+		assertEquals("{\"v\":true}", t.render(Boolean.TRUE));
+		assertEquals("{\"v\":-3}", t.render((short)-3));
+		assertEquals("{\"v\":2.5}", t.render(2.5));
+		assertEquals("{\"v\":[\"a\",1]}", t.render(Arrays.asList("a", 1L)));
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("k", "v\"");
+		// a map alone would be taken for the parameters
+		assertEquals("{\"v\":{\"k\":\"v\\\"\"}}", t.render(new Object [] {m}));
+		assertEquals("{\"v\":{\"match_all\":{}}}", t.render(QueryTemplate.json("{\"match_all\":{}}")));
+		// other objects are written as strings
+		assertEquals("{\"v\":\"x:y\"}", t.render(new Object() {
+			@Override
+			public String toString() {
+				return "x:y";
+			}
+		}));
+	}
+
+	@Test
+	public void testStringSlots() {
+		QueryTemplate t = QueryTemplate.compile("{\"v\":\"pre {{v}} post\"}");
+		assertEquals("{\"v\":\"pre 12 post\"}", t.render(12));
+		assertEquals("{\"v\":\"pre false post\"}", t.render(false));
+		assertEquals("{\"v\":\"pre a\\\"b post\"}", t.render("a\"b"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testJsonInStringSlot() {
+		QueryTemplate.compile("{\"v\":\"{{v}}\"}").render(QueryTemplate.json("{}"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullInStringSlot() {
+		QueryTemplate.compile("{\"v\":\"{{v}}\"}").render((Object)null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotANumber() {
+		QueryTemplate.compile("{\"v\":{{v}}}").render(Double.NaN);
+	}
+
+	@Test
+	public void testEscaping() {
+		StringBuilder buf = new StringBuilder();
+		QueryTemplate.escape(buf, "q\"b\\s/\n\r\t\b\f\u0001\u001f\u2028\u2029\u00e9");
+		assertEquals("q\\\"b\\\\s/\\n\\r\\t\\b\\f\\u0001\\u001f\\u2028\\u2029\u00e9", buf.toString());
+	}
+
+	@Test
+	public void testEscapedRoundTrip() throws Exception {
+		String nasty = "\"}]},\"script\":\"x\\\u0000\n\u2028";
+		QueryTemplate t = QueryTemplate.compile("{\"q\":\"{{s}}\",\"v\":{{s}}}");
+		JSONObject jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(t.render(nasty));
+		assertEquals(2, jo.size());
+		assertEquals(nasty, jo.get("q"));
+		assertEquals(nasty, jo.get("v"));
+	}
+
+	@Test
+	public void testBracesInLiteralString() {
+		// an escaped quote must not end the string
+		QueryTemplate t = QueryTemplate.compile("{\"a\":\"say \\\"{{w}}\\\"\",\"b\":{{n}}}");
+		assertEquals("{\"a\":\"say \\\"hi\\\"\",\"b\":1}", t.render("hi", 1));
+	}
+
+	@Test
+	public void testMapRender() {
+		QueryTemplate t = QueryTemplate.compile("{\"q\":\"{{q}}\",\"size\":{{size}}}");
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("q", "x");
+		params.put("size", 3);
+		params.put("unused", "y");
+		assertEquals("{\"q\":\"x\",\"size\":3}", t.render(params));
+		params.put("size", null);
+		assertEquals("{\"q\":\"x\",\"size\":null}", t.render(params));
+		params.remove("size");
+		try {
+			t.render(params);
+			fail("missing parameter");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("size"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongValueCount() {
+		QueryTemplate.compile("{\"q\":\"{{q}}\",\"size\":{{size}}}").render("x");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotJson() {
+		QueryTemplate.compile("{\"size\":{{size}}");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotAnObject() {
+		QueryTemplate.compile("[{{a}}]");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnclosedTag() {
+		QueryTemplate.compile("{\"size\":{{size}");
+	}
+
+	@Test
+	public void testUnsupportedTags() {
+		String [] tags = {"#list", "^empty", "/list", "!comment", ">partial", "{raw", "&raw", "=<% %>="};
+		for (String tag : tags) {
+			try {
+				QueryTemplate.compile("{\"a\":\"{{" + tag + "}}\"}");
+				fail(tag);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testCompiledOnce() {
+		String source = "{\"query\":{\"match\":{\"details\":\"{{text}}\"}}}";
+		QueryTemplate t = QueryTemplate.compile(source);
+		assertSame(t, QueryTemplate.compile(source));
+		assertEquals(source, t.getSource());
+		assertEquals(source.length() - "{{text}}".length(), t.getLiteralLength());
+	}
+
+	@Test
+	public void testInlineSearchTemplate() throws Exception {
+		String source = "{\"query\":{\"match\":{\"label\":\"{{text}}\"}}}";
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("text", "cat");
+		String body = QueryTemplate.compile(source).toInlineSearchTemplate(params);
+		JSONObject jo = (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(body);
+		assertEquals(source, jo.get("inline"));
+		assertEquals(params, jo.get("params"));
+	}
+}
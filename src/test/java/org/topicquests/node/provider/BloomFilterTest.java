@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * @author park
+ */
+public class BloomFilterTest {
+
+	@Test
+	public void testNoFalseNegatives() {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i=0; i<10000; i++)
+			filter.put("node" + i);
+		for (int i=0; i<10000; i++)
+			assertTrue("node" + i, filter.mightContain("node" + i));
+	}
+
+	@Test
+	public void testEmpty() {
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		for (int i=0; i<1000; i++)
+			assertFalse(filter.mightContain("node" + i));
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i=0; i<10000; i++)
+			filter.put("node" + i);
+		int hits = 0;
+		for (int i=0; i<100000; i++) {
+			if (filter.mightContain("other" + i))
+				hits++;
+		}
+		// 1% asked for; allow for chance
+		assertTrue("false positives "+hits, hits < 2000);
+	}
+
+	@Test
+	public void testSize() {
+		// about 9.6 bits a key for 1%
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		long bytes = filter.getByteSize();
+		assertTrue("bytes "+bytes, bytes >= 10000 * 9 / 8 && bytes <= 10000 * 11 / 8);
+		assertTrue(new BloomFilter(0, 0.01).getByteSize() > 0);
+	}
+
+	@Test
+	public void testConcurrentPuts() throws Exception {
+		final BloomFilter filter = new BloomFilter(40000, 0.01);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t=0; t<4; t++) {
+			final int base = t * 10000;
+			Thread th = new Thread(() -> {
+				for (int i=0; i<10000; i++)
+					filter.put("node" + (base + i));
+			});
+			threads.add(th);
+			th.start();
+		}
+		for (Thread th : threads)
+			th.join();
+		// a lost compare-and-set would lose a bit
+		for (int i=0; i<40000; i++)
+			assertTrue("node" + i, filter.mightContain("node" + i));
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.topicquests.es.util.ElasticQueryUtility;
+import org.topicquests.node.provider.api.IErrorMessages;
+import org.topicquests.support.api.IResult;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>{@link Client} against a {@link FakeElasticServer} on loopback;
+ * run from the project root so that <code>config/mappings.json</code>
+ * is found</p>
+ */
+public class ClientTest {
+	private static final String INDEX = "topics";
+	private FakeElasticServer server;
+	private Client client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeElasticServer(0, 8);
+		server.populate(INDEX, 10, 64);
+		client = new ProviderEnvironment(properties(server.getPort())).getClient();
+	}
+
+	@After
+	public void tearDown() {
+		client.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testIndexAndGet() {
+		JSONObject node = FakeElasticServer.node("written", 64);
+		IResult r = client.indexNode("written", INDEX, node);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertEquals("written", server.get(INDEX, "written").get("lox"));
+		r = client.getNodeAsJSONObject("written", INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertEquals(node, r.getResultObject());
+	}
+
+	@Test
+	public void testGetCached() {
+		IResult r = client.getNodeAsJSONObject("node1", INDEX);
+		assertEquals("node1", ((JSONObject)r.getResultObject()).get("lox"));
+		long requests = server.getRequestCount();
+		r = client.getNodeAsJSONObject("node1", INDEX);
+		assertEquals("node1", ((JSONObject)r.getResultObject()).get("lox"));
+		// the second read is answered from memory
+		assertEquals(requests, server.getRequestCount());
+		assertEquals(1, client.getCache().getHitCount());
+	}
+
+	@Test
+	public void testGetMissing() {
+		IResult r = client.getNodeAsJSONObject("nothing", INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertNull(r.getResultObject());
+		r = client.existsNode("nothing", INDEX);
+		assertEquals(Boolean.FALSE, r.getResultObject());
+		r = client.existsNode("node2", INDEX);
+		assertEquals(Boolean.TRUE, r.getResultObject());
+	}
+
+	@Test
+	public void testUpdateFullNodeChecksVersion() {
+		JSONObject node = FakeElasticServer.node("versioned", 64);
+		node.put("_ver", "100");
+		IResult r = client.updateFullNode("versioned", INDEX, node, true);
+		assertFalse(r.getErrorString(), r.hasError());
+		JSONObject older = FakeElasticServer.node("versioned", 64);
+		older.put("_ver", "99");
+		older.put("label", "older");
+		r = client.updateFullNode("versioned", INDEX, older, true);
+		assertTrue(r.getErrorString().contains(IErrorMessages.OPTIMISTIC_LOCK_EXCEPTION));
+		assertEquals("100", ((JSONObject)r.getResultObjectA()).get("_ver"));
+		assertEquals("Class type", server.get(INDEX, "versioned").get("label"));
+		JSONObject newer = FakeElasticServer.node("versioned", 64);
+		newer.put("_ver", "101");
+		newer.put("label", "newer");
+		r = client.updateFullNode("versioned", INDEX, newer, true);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertEquals("newer", server.get(INDEX, "versioned").get("label"));
+		r = client.updateFullNode("versioned", INDEX, new JSONObject(), true);
+		assertTrue(r.getErrorString().contains(IErrorMessages.MISSING_VERSION_PROPERTY));
+	}
+
+	@Test
+	public void testPartialUpdate() {
+		// cache the node as it was
+		client.getNodeAsJSONObject("node3", INDEX);
+		JSONObject doc = new JSONObject();
+		doc.put("label", "changed");
+		JSONObject update = new JSONObject();
+		update.put("doc", doc);
+		IResult r = client.partialUpdateNode("node3", INDEX, update);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertEquals("changed", server.get(INDEX, "node3").get("label"));
+		r = client.getNodeAsJSONObject("node3", INDEX);
+		assertEquals("changed", ((JSONObject)r.getResultObject()).get("label"));
+		assertEquals("node3", ((JSONObject)r.getResultObject()).get("lox"));
+	}
+
+	@Test
+	public void testDelete() {
+		client.getNodeAsJSONObject("node4", INDEX);
+		IResult r = client.deleteNode("node4", INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertNull(server.get(INDEX, "node4"));
+		assertNull(client.getNodeAsJSONObject("node4", INDEX).getResultObject());
+		// a node already gone is not an error
+		r = client.deleteNode("node4", INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+	}
+
+	@Test
+	public void testMultiGet() {
+		IResult r = client.multiGetNodes(Arrays.asList("node0", "node5", "nothing", "node9"), INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+		List<JSONObject> nodes = (List<JSONObject>)r.getResultObject();
+		// in order, with null for a missing node
+		List<Object> ids = new ArrayList<Object>();
+		for (JSONObject jo : nodes)
+			ids.add((jo == null) ? null : jo.get("lox"));
+		assertEquals(Arrays.<Object>asList("node0", "node5", null, "node9"), ids);
+	}
+
+	@Test
+	public void testSearchAndCount() {
+		String query = new ElasticQueryUtility().getMatchQuery("label", "Class type", 0, 20);
+		IResult r = client.listObjectsByQuery(query, INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertEquals(10, ((List<?>)r.getResultObject()).size());
+		r = client.count("{\"query\":{\"match_all\":{}}}", INDEX);
+		assertFalse(r.getErrorString(), r.hasError());
+		assertEquals(10, ((Number)r.getResultObject()).intValue());
+		r = client.count("{\"query\":{\"ids\":{\"values\":[\"node1\",\"node2\"]}}}", INDEX);
+		assertEquals(2, ((Number)r.getResultObject()).intValue());
+	}
+
+	@Test
+	public void testScroll() {
+		server.populate(INDEX, 1200, 16);
+		Set<Object> ids = new HashSet<Object>();
+		try (Stream<JSONObject> s = client.streamNodes(null, INDEX)) {
+			s.forEach(jo -> ids.add(jo.get("lox")));
+		}
+		// more than a page of 500
+		assertEquals(1200, ids.size());
+	}
+
+	@Test
+	public void testSessionSeesWrite() {
+		WriteSession session = client.createSession();
+		JSONObject node = FakeElasticServer.node("mine", 16);
+		node.put("label", "Only mine");
+		IResult r = client.indexNode("mine", INDEX, node, session);
+		assertFalse(r.getErrorString(), r.hasError());
+		r = client.listObjectsByQuery(new ElasticQueryUtility().getMatchQuery("label", "Only mine", 0, 20), INDEX, session);
+		assertEquals(1, ((List<?>)r.getResultObject()).size());
+	}
+
+	@Test
+	public void testServerErrors() {
+		server.setErrorRate(1);
+		IResult r = client.indexNode("failed", INDEX, FakeElasticServer.node("failed", 16));
+		assertTrue(r.hasError());
+		assertNull(server.get(INDEX, "failed"));
+		// not cached on failure
+		assertNull(client.getCache().get(INDEX, "failed"));
+		r = client.getNodeAsJSONObject("node6", INDEX);
+		assertTrue(r.hasError());
+		assertNull(r.getResultObject());
+		r = client.multiGetNodes(Arrays.asList("node6", "node7"), INDEX);
+		assertTrue(r.hasError());
+		assertNull(r.getResultObject());
+		r = client.multiGetNodesAsync(Arrays.asList("node6", "node7"), INDEX).join();
+		assertTrue(r.hasError());
+		assertTrue(client.getMetrics().getOperationStats(OperationTracer.INDEX).getErrorCount() > 0);
+		assertTrue(server.getInjectedErrorCount() > 0);
+		server.setErrorRate(0);
+	}
+
+	/**
+	 * @param port
+	 * @return config properties in the shape the config parser makes them
+	 */
+	private static Map<String,Object> properties(int port) {
+		Map<String,Object> result = new HashMap<String,Object>();
+		result.put("Clusters", list(Arrays.asList("127.0.0.1", Integer.toString(port))));
+		result.put("IndexNames", list(Arrays.asList(INDEX, "mappings.json")));
+		result.put("NumShards", "1");
+		result.put("NumDuplicates", "0");
+		result.put("CacheMaxBytes", Long.toString(16L * 1024 * 1024));
+		result.put("ConsistencyMode", "INTERVAL");
+		result.put("RefreshOnRead", "true");
+		result.put("MetricsJmxEnabled", "false");
+		return result;
+	}
+
+	private static List<List<String>> list(List<String> entry) {
+		List<List<String>> result = new ArrayList<List<String>>(1);
+		result.add(entry);
+		return result;
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * @author park
+ * <p>{@link CompactNode} must behave as the {@link HashMap} it replaces</p>
+ */
+public class CompactNodeTest {
+
+	@Test
+	public void testMapContract() {
+		CompactNode n = new CompactNode();
+		Map<String, Object> m = new HashMap<String, Object>();
+		assertTrue(n.isEmpty());
+		for (int i=0; i<40; i++) {
+			assertEquals(m.put("k" + i, "v" + i), n.put("k" + i, "v" + i));
+			assertEquals(m.size(), n.size());
+		}
+		assertEquals(m.put("k3", "again"), n.put("k3", "again"));
+		assertEquals(m.put("nothing", null), n.put("nothing", null));
+		assertEquals(m, n);
+		assertEquals(n, m);
+		assertEquals(m.hashCode(), n.hashCode());
+		assertEquals(m.keySet(), n.keySet());
+		assertEquals(new HashSet<Object>(m.values()), new HashSet<Object>(n.values()));
+		assertEquals(m.entrySet(), n.entrySet());
+		assertTrue(n.containsKey("k39"));
+		assertTrue(n.containsKey("nothing"));
+		assertFalse(n.containsKey("k40"));
+		assertTrue(n.containsValue("again"));
+		assertTrue(n.containsValue(null));
+		assertFalse(n.containsValue("v3"));
+		assertNull(n.get("k40"));
+		assertEquals("dflt", n.getOrDefault("k40", "dflt"));
+		assertNull(n.getOrDefault("nothing", "dflt"));
+		for (int i=0; i<40; i+=3)
+			assertEquals(m.remove("k" + i), n.remove("k" + i));
+		assertNull(n.remove("k0"));
+		assertEquals(m, n);
+		n.clear();
+		assertTrue(n.isEmpty());
+		assertNull(n.get("k1"));
+	}
+
+	@Test
+	public void testEqualKeysNotIdentical() {
+		CompactNode n = new CompactNode();
+		n.put(new String("label"), "A");
+		assertEquals("A", n.get(new String("label")));
+		assertEquals("A", n.get("label"));
+	}
+
+	@Test
+	public void testCopyConstructor() {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("locator", "a");
+		m.put("count", new Long(3));
+		m.put("list", new ArrayList<Object>(Arrays.asList("x", "y")));
+		CompactNode n = new CompactNode(m);
+		assertEquals(m, n);
+		assertEquals(new CompactNode(), new CompactNode(new HashMap<String, Object>()));
+	}
+
+	@Test
+	public void testOrderPreserved() {
+		CompactNode n = new CompactNode();
+		n.put("c", 1);
+		n.put("a", 2);
+		n.put("b", 3);
+		n.put("d", 4);
+		n.remove("a");
+		n.put("c", 5);
+		n.put("a", 6);
+		assertEquals(Arrays.asList("c", "b", "d", "a"), new ArrayList<String>(n.keySet()));
+		assertEquals(Arrays.<Object>asList(5, 3, 4, 6), new ArrayList<Object>(n.values()));
+	}
+
+	@Test
+	public void testEntryIteratorRemove() {
+		CompactNode n = node(10);
+		Iterator<Map.Entry<String, Object>> itr = n.entrySet().iterator();
+		Map.Entry<String, Object> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			if (((Integer)e.getValue()).intValue() % 2 == 0)
+				itr.remove();
+		}
+		assertEquals(5, n.size());
+		for (int i=0; i<10; i++)
+			assertEquals("k" + i, i % 2 == 1, n.containsKey("k" + i));
+		assertEquals(Arrays.asList("k1", "k3", "k5", "k7", "k9"), new ArrayList<String>(n.keySet()));
+	}
+
+	@Test
+	public void testKeyIteratorRemove() {
+		CompactNode n = node(6);
+		// the first and the last
+		assertTrue(n.keySet().removeIf(k -> k.equals("k0") || k.equals("k5")));
+		assertEquals(Arrays.asList("k1", "k2", "k3", "k4"), new ArrayList<String>(n.keySet()));
+		n.keySet().retainAll(Arrays.asList("k2"));
+		assertEquals(1, n.size());
+		assertEquals(2, n.get("k2"));
+		n.values().clear();
+		assertTrue(n.isEmpty());
+	}
+
+	@Test
+	public void testIteratorRemoveTwice() {
+		CompactNode n = node(2);
+		Iterator<String> itr = n.keySet().iterator();
+		try {
+			itr.remove();
+			fail("remove before next");
+		} catch (IllegalStateException e) {
+		}
+		itr.next();
+		itr.remove();
+		try {
+			itr.remove();
+			fail("remove twice");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals("k1", itr.next());
+		assertFalse(itr.hasNext());
+		try {
+			itr.next();
+			fail("next past the end");
+		} catch (NoSuchElementException e) {
+		}
+	}
+
+	@Test
+	public void testSlotSetValue() {
+		CompactNode n = node(3);
+		for (Map.Entry<String, Object> e : n.entrySet()) {
+			if (e.getKey().equals("k1"))
+				assertEquals(1, e.setValue("one"));
+		}
+		assertEquals("one", n.get("k1"));
+		Map.Entry<String, Object> first = n.entrySet().iterator().next();
+		assertEquals(new AbstractMap.SimpleEntry<String, Object>("k0", 0), first);
+		assertEquals(new AbstractMap.SimpleEntry<String, Object>("k0", 0).hashCode(), first.hashCode());
+	}
+
+	@Test
+	public void testClone() {
+		CompactNode n = node(4);
+		CompactNode c = (CompactNode)n.clone();
+		assertEquals(n, c);
+		c.put("k0", "changed");
+		c.put("k9", 9);
+		c.remove("k1");
+		assertEquals(0, n.get("k0"));
+		assertFalse(n.containsKey("k9"));
+		assertTrue(n.containsKey("k1"));
+		assertEquals(4, n.size());
+		n.clear();
+		assertEquals(4, c.size());
+	}
+
+	@Test
+	public void testConditionalRemoveReplace() {
+		CompactNode n = node(3);
+		assertFalse(n.remove("k1", 7));
+		assertTrue(n.remove("k1", 1));
+		assertFalse(n.containsKey("k1"));
+		assertFalse(n.remove("k1", 1));
+		assertFalse(n.replace("k2", 7, 8));
+		assertTrue(n.replace("k2", 2, 8));
+		assertEquals(8, n.get("k2"));
+		assertNull(n.replace("k9", 1));
+		assertFalse(n.containsKey("k9"));
+		assertEquals(0, n.replace("k0", 10));
+		assertEquals(10, n.get("k0"));
+		n.put("nothing", null);
+		assertNull(n.putIfAbsent("nothing", "x"));
+		assertEquals("x", n.get("nothing"));
+		assertEquals("x", n.putIfAbsent("nothing", "y"));
+	}
+
+	@Test
+	public void testComputeMerge() {
+		CompactNode n = node(3);
+		Map<String, Object> m = new HashMap<String, Object>(n);
+		assertEquals(m.compute("k0", (k, v) -> (Integer)v + 10), n.compute("k0", (k, v) -> (Integer)v + 10));
+		assertEquals(m.compute("k1", (k, v) -> null), n.compute("k1", (k, v) -> null));
+		assertEquals(m.compute("new", (k, v) -> "made"), n.compute("new", (k, v) -> "made"));
+		assertEquals(m.computeIfAbsent("k2", k -> "no"), n.computeIfAbsent("k2", k -> "no"));
+		assertEquals(m.computeIfAbsent("abs", k -> "yes"), n.computeIfAbsent("abs", k -> "yes"));
+		assertEquals(m.computeIfPresent("k2", (k, v) -> null), n.computeIfPresent("k2", (k, v) -> null));
+		assertEquals(m.computeIfPresent("gone", (k, v) -> 1), n.computeIfPresent("gone", (k, v) -> 1));
+		assertEquals(m.merge("k0", 5, (a, b) -> (Integer)a + (Integer)b), n.merge("k0", 5, (a, b) -> (Integer)a + (Integer)b));
+		assertEquals(m.merge("fresh", 5, (a, b) -> 0), n.merge("fresh", 5, (a, b) -> 0));
+		assertEquals(m.merge("abs", "x", (a, b) -> null), n.merge("abs", "x", (a, b) -> null));
+		assertEquals(m, n);
+		n.replaceAll((k, v) -> k);
+		for (Map.Entry<String, Object> e : n.entrySet())
+			assertEquals(e.getKey(), e.getValue());
+		List<String> seen = new ArrayList<String>();
+		n.forEach((k, v) -> seen.add(k));
+		assertEquals(new ArrayList<String>(n.keySet()), seen);
+	}
+
+	@Test
+	public void testSharedValues() {
+		CompactNode n = new CompactNode();
+		n.put("flag", new Boolean(true));
+		n.put("small", new Long(7));
+		assertSame(Boolean.TRUE, n.get("flag"));
+		assertSame(Long.valueOf(7), n.get("small"));
+	}
+
+	@Test
+	public void testSharedFieldNames() {
+		String name = CompactNode.internFieldName(new String("testSharedFieldName"));
+		assertSame(name, CompactNode.internFieldName(new String("testSharedFieldName")));
+		CompactNode n = new CompactNode();
+		n.put(new String("testSharedFieldName"), 1);
+		assertSame(name, n.keySet().iterator().next());
+		// growing past the initial array keeps everything
+		for (int i=0; i<100; i++)
+			n.put("f" + i, i);
+		assertEquals(101, n.size());
+		assertEquals(99, n.get("f99"));
+		assertTrue(n.estimateWeight() > 0);
+	}
+
+	private static CompactNode node(int n) {
+		CompactNode result = new CompactNode();
+		for (int i=0; i<n; i++)
+			result.put("k" + i, i);
+		return result;
+	}
+}
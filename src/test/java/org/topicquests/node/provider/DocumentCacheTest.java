@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+import org.topicquests.node.provider.api.IEvictionListener;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * @author park
+ * <p>Nodes are given <code>SIZE</code> serialized bytes so that their
+ * weight is known; with a listener set a node then weighs
+ * <code>5 * SIZE</code>, and a segment holds two but not three</p>
+ */
+public class DocumentCacheTest {
+	private static final String INDEX = "topics";
+	private static final int SEGMENTS = 16;
+	private static final int SIZE = 100;
+	private static final long PER_SEGMENT = 12 * SIZE;
+
+	private static class Recorder implements IEvictionListener {
+		final List<String> ids = new ArrayList<String>();
+		final List<byte []> bytes = new ArrayList<byte []>();
+
+		@Override
+		public void onEviction(String index, String id, JSONObject node, byte [] serialized, long expiresAt) {
+			assertEquals(INDEX, index);
+			assertEquals(id, node.get("locator"));
+			ids.add(id);
+			bytes.add(serialized);
+		}
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		DocumentCache cache = new DocumentCache(1024 * 1024, 0);
+		JSONObject n = node("a");
+		cache.put(INDEX, "a", n);
+		assertSame(n, cache.get(INDEX, "a"));
+		assertNull(cache.get("other", "a"));
+		assertEquals(1, cache.size());
+		assertTrue(cache.getWeightedSize() > 0);
+		cache.remove(INDEX, "a");
+		assertNull(cache.get(INDEX, "a"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testReplaceKeepsWeight() {
+		DocumentCache cache = new DocumentCache(1024 * 1024, 0);
+		cache.put(INDEX, "a", node("a"), bytes(SIZE));
+		long w = cache.getWeightedSize();
+		cache.put(INDEX, "a", node("a"), bytes(SIZE));
+		assertEquals(1, cache.size());
+		assertEquals(w, cache.getWeightedSize());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		Recorder r = new Recorder();
+		DocumentCache cache = newCache(r);
+		List<String> ids = sameSegment(3);
+		cache.put(INDEX, ids.get(0), node(ids.get(0)), bytes(SIZE));
+		cache.put(INDEX, ids.get(1), node(ids.get(1)), bytes(SIZE));
+		assertEquals(2 * 5 * SIZE, cache.getWeightedSize());
+		// make the newcomer as popular as the first node
+		cache.get(INDEX, ids.get(2));
+		cache.put(INDEX, ids.get(2), node(ids.get(2)), bytes(SIZE));
+		assertNull(cache.get(INDEX, ids.get(0)));
+		assertNotNull(cache.get(INDEX, ids.get(1)));
+		assertNotNull(cache.get(INDEX, ids.get(2)));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(Arrays.asList(ids.get(0)), r.ids);
+		assertEquals(SIZE, r.bytes.get(0).length);
+	}
+
+	/**
+	 * A cold newcomer must be refused before anything is evicted for it
+	 */
+	@Test
+	public void testColdNodeNotAdmitted() {
+		Recorder r = new Recorder();
+		DocumentCache cache = newCache(r);
+		List<String> ids = sameSegment(3);
+		String a = ids.get(0), b = ids.get(1), cold = ids.get(2);
+		cache.put(INDEX, a, node(a), bytes(SIZE));
+		cache.put(INDEX, b, node(b), bytes(SIZE));
+		for (int i=0; i<5; i++) {
+			cache.get(INDEX, a);
+			cache.get(INDEX, b);
+		}
+		cache.put(INDEX, cold, node(cold), bytes(SIZE));
+		assertNull(cache.get(INDEX, cold));
+		assertNotNull(cache.get(INDEX, a));
+		assertNotNull(cache.get(INDEX, b));
+		assertEquals(2, cache.size());
+		assertEquals(2 * 5 * SIZE, cache.getWeightedSize());
+		assertEquals(0, cache.getEvictionCount());
+		// the refused node goes to the next tier
+		assertEquals(Arrays.asList(cold), r.ids);
+		assertEquals(SIZE, r.bytes.get(0).length);
+	}
+
+	@Test
+	public void testWrittenNodeAlwaysAdmitted() {
+		Recorder r = new Recorder();
+		DocumentCache cache = newCache(r);
+		List<String> ids = sameSegment(3);
+		String a = ids.get(0), b = ids.get(1), written = ids.get(2);
+		cache.put(INDEX, a, node(a), bytes(SIZE));
+		cache.put(INDEX, b, node(b), bytes(SIZE));
+		for (int i=0; i<5; i++) {
+			cache.get(INDEX, a);
+			cache.get(INDEX, b);
+		}
+		cache.putWritten(INDEX, written, node(written), bytes(SIZE));
+		assertNotNull(cache.get(INDEX, written));
+		assertNull(cache.get(INDEX, a));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(Arrays.asList(a), r.ids);
+	}
+
+	@Test
+	public void testTooLargeSpilled() {
+		Recorder r = new Recorder();
+		DocumentCache cache = newCache(r);
+		cache.put(INDEX, "big", node("big"), bytes((int)PER_SEGMENT));
+		assertNull(cache.get(INDEX, "big"));
+		assertEquals(0, cache.size());
+		assertEquals(Arrays.asList("big"), r.ids);
+	}
+
+	@Test
+	public void testNoBytesWithoutListener() {
+		DocumentCache cache = new DocumentCache(SEGMENTS * PER_SEGMENT, 0);
+		cache.put(INDEX, "a", node("a"), bytes(SIZE));
+		// weighed by the bytes, but does not hold them
+		assertEquals(4 * SIZE, cache.getWeightedSize());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		Recorder r = new Recorder();
+		DocumentCache cache = new DocumentCache(1024 * 1024, 20);
+		cache.setEvictionListener(r);
+		cache.put(INDEX, "a", node("a"));
+		assertNotNull(cache.get(INDEX, "a"));
+		Thread.sleep(50);
+		assertNull(cache.get(INDEX, "a"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+		// an expired node is not passed on
+		assertTrue(r.ids.isEmpty());
+	}
+
+	@Test
+	public void testExpiryFromAnotherTier() {
+		DocumentCache cache = new DocumentCache(1024 * 1024, 0);
+		cache.put(INDEX, "a", node("a"), bytes(SIZE), System.currentTimeMillis() - 1);
+		assertNull(cache.get(INDEX, "a"));
+		cache.put(INDEX, "b", node("b"), bytes(SIZE), 0);
+		assertNotNull(cache.get(INDEX, "b"));
+	}
+
+	@Test
+	public void testClear() {
+		DocumentCache cache = new DocumentCache(1024 * 1024, 0);
+		for (int i=0; i<100; i++)
+			cache.put(INDEX, Integer.toString(i), node(Integer.toString(i)));
+		assertEquals(100, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+	}
+
+	@Test
+	public void testEstimateWeight() {
+		JSONObject n = node("a");
+		int w = DocumentCache.estimateWeight(n);
+		n.put("label", "a longer label");
+		assertTrue(DocumentCache.estimateWeight(n) > w);
+		assertEquals(0, DocumentCache.estimateWeight(null));
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	private static DocumentCache newCache(IEvictionListener l) {
+		DocumentCache result = new DocumentCache(SEGMENTS * PER_SEGMENT, 0);
+		result.setEvictionListener(l);
+		return result;
+	}
+
+	private static JSONObject node(String id) {
+		JSONObject result = new JSONObject();
+		result.put("locator", id);
+		return result;
+	}
+
+	private static byte [] bytes(int n) {
+		byte [] result = new byte[n];
+		Arrays.fill(result, (byte)'x');
+		return result;
+	}
+
+	/**
+	 * @param n
+	 * @return <code>n</code> ids whose nodes share a segment
+	 */
+	private static List<String> sameSegment(int n) {
+		List<String> result = new ArrayList<String>();
+		int target = segment("0");
+		for (int i=0; result.size() < n; i++) {
+			if (segment(Integer.toString(i)) == target)
+				result.add(Integer.toString(i));
+		}
+		return result;
+	}
+
+	private static int segment(String id) {
+		return FrequencySketch.spread((INDEX + "/" + id).hashCode()) & (SEGMENTS - 1);
+	}
+}
@@ -0,0 +1,1340 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/**
+ * @author park
+ * <p>An in-memory stand-in for the parts of the ElasticSearch REST API
+ * which {@link Client} uses, for tests, load and latency benchmarks
+ * with no cluster</p>
+ * <ul>
+ * <li>Index exists/create, mappings, <code>_refresh</code></li>
+ * <li>Index, get, delete, <code>_update</code> with a partial
+ * <code>doc</code>, <code>_bulk</code>, external versioning</li>
+ * <li><code>_mget</code>, <code>_search</code>, <code>_msearch</code>,
+ * <code>_count</code>, scroll, <code>search_after</code> and source
+ * filtering. Queries may use <code>match_all</code>, <code>match</code>,
+ * <code>term</code>, <code>terms</code>, <code>ids</code> and
+ * <code>bool</code>; <code>match</code> is a case-insensitive word
+ * match rather than real analysis.</li>
+ * </ul>
+ * <p>Writes are visible at once, as if every request refreshed.
+ * Latency, 500 errors and 429 rejections can be injected at any time.</p>
+ */
+public class FakeElasticServer {
+	private HttpServer server;
+	private ExecutorService pool;
+	private final Map<String, FakeIndex> indices = new ConcurrentHashMap<String, FakeIndex>();
+	private final Map<String, String> aliases = new ConcurrentHashMap<String, String>();
+	private final Map<String, ScrollContext> scrolls = new ConcurrentHashMap<String, ScrollContext>();
+	private final AtomicLong ids = new AtomicLong(0);
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder injectedErrors = new LongAdder();
+	private final LongAdder injectedRejections = new LongAdder();
+	private volatile long latencyMillis = 0;
+	private volatile long jitterMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile double rejectionRate = 0;
+	private volatile boolean autoCreateIndex = true;
+	private volatile boolean compression = false;
+
+	private static class Doc {
+		final JSONObject source;
+		final long version;
+
+		Doc(JSONObject source, long version) {
+			this.source = source;
+			this.version = version;
+		}
+	}
+
+	private static class FakeIndex {
+		final String name;
+		final ConcurrentHashMap<String, Doc> docs = new ConcurrentHashMap<String, Doc>();
+		final JSONObject mappings = new JSONObject();
+		JSONObject settings = new JSONObject();
+
+		FakeIndex(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class ScrollContext {
+		final List<JSONObject> hits;
+		final int size;
+		int cursor = 0;
+
+		ScrollContext(List<JSONObject> hits, int size) {
+			this.hits = hits;
+			this.size = size;
+		}
+	}
+
+	private static class Reply {
+		final int status;
+		final Object body;
+
+		Reply(int status, Object body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Listen on an ephemeral loopback port
+	 * @throws IOException
+	 */
+	public FakeElasticServer() throws IOException {
+		this(0, 32);
+	}
+
+	/**
+	 * @param port <code>0</code> for any free port
+	 * @param threads server threads
+	 * @throws IOException
+	 */
+	public FakeElasticServer(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+		server.createContext("/", x -> handle(x));
+		pool = Executors.newFixedThreadPool(threads);
+		server.setExecutor(pool);
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Delay every response by <code>millis</code> plus up to <code>jitter</code>
+	 * @param millis
+	 * @param jitter
+	 */
+	public void setLatency(long millis, long jitter) {
+		latencyMillis = millis;
+		jitterMillis = jitter;
+	}
+
+	/**
+	 * @param rate fraction of requests answered with a 500
+	 */
+	public void setErrorRate(double rate) {
+		errorRate = rate;
+	}
+
+	/**
+	 * @param rate fraction of requests answered with a 429, as a full
+	 * search or bulk thread pool would
+	 */
+	public void setRejectionRate(double rate) {
+		rejectionRate = rate;
+	}
+
+	/**
+	 * @param create if <code>false</code>, writes to a missing index fail
+	 */
+	public void setAutoCreateIndex(boolean create) {
+		autoCreateIndex = create;
+	}
+
+	/**
+	 * @param compress if <code>true</code>, gzip responses to clients
+	 * which accept it, as <code>http.compression: true</code> does
+	 */
+	public void setCompression(boolean compress) {
+		compression = compress;
+	}
+
+	/**
+	 * Put a node without going through HTTP
+	 * @param index
+	 * @param id
+	 * @param source
+	 */
+	public void put(String index, String id, JSONObject source) {
+		FakeIndex fi = index(index, true);
+		fi.docs.compute(id, (k, old) -> new Doc(source, (old == null) ? 1 : old.version + 1));
+	}
+
+	/**
+	 * @param index
+	 * @param id
+	 * @return can return <code>null</code>
+	 */
+	public JSONObject get(String index, String id) {
+		FakeIndex fi = lookup(index);
+		Doc d = (fi == null) ? null : fi.docs.get(id);
+		return (d == null) ? null : d.source;
+	}
+
+	/**
+	 * Fill <code>index</code> with <code>count</code> nodes with ids
+	 * <code>node0</code> and up
+	 * @param index
+	 * @param count
+	 * @param detailsChars size of each node's <code>details</code>
+	 */
+	public void populate(String index, int count, int detailsChars) {
+		for (int i=0; i<count; i++)
+			put(index, "node"+i, node("node"+i, detailsChars));
+	}
+
+	/**
+	 * @param id
+	 * @param detailsChars size of <code>details</code>
+	 * @return a typical node
+	 */
+	public static JSONObject node(String id, int detailsChars) {
+		StringBuilder buf = new StringBuilder(detailsChars + 40);
+		while (buf.length() < detailsChars)
+			buf.append("In which we will see how this works. ");
+		JSONObject jo = new JSONObject();
+		jo.put("lox", id);
+		jo.put("crtr", "SystemUser");
+		jo.put("_ver", "1449553195215");
+		jo.put("crDt", "2015-12-07T21:39:55-08:00");
+		jo.put("lEdDt", "2015-12-07T21:39:55-08:00");
+		jo.put("label", "Class type");
+		jo.put("details", buf.substring(0, detailsChars));
+		jo.put("sIco", "/images/cogwheel_sm.png");
+		jo.put("lIco", "/images/cogwheel.png");
+		jo.put("isPrv", false);
+		jo.put("isFdrtd", false);
+		JSONArray ja = new JSONArray();
+		ja.add("TypeType");
+		ja.add("ClassType");
+		jo.put("trCl", ja);
+		jo.put("sbOf", "ClassType");
+		return jo;
+	}
+
+	/**
+	 * Answer a request without HTTP or injected faults, e.g. to capture
+	 * a realistic response body
+	 * @param method
+	 * @param uri path and query string
+	 * @param body can be <code>null</code>
+	 * @return the response body
+	 * @throws Exception
+	 */
+	public JSONObject call(String method, String uri, String body) throws Exception {
+		int q = uri.indexOf('?');
+		String path = (q < 0) ? uri : uri.substring(0, q);
+		String query = (q < 0) ? null : uri.substring(q + 1);
+		return (JSONObject)route(method, split(path), params(query), (body == null) ? "" : body).body;
+	}
+
+	/**
+	 * @param index
+	 * @return number of nodes in <code>index</code>
+	 */
+	public int size(String index) {
+		FakeIndex fi = lookup(index);
+		return (fi == null) ? 0 : fi.docs.size();
+	}
+
+	/**
+	 * Drop every index and scroll
+	 */
+	public void clear() {
+		indices.clear();
+		aliases.clear();
+		scrolls.clear();
+	}
+
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	public long getInjectedErrorCount() {
+		return injectedErrors.sum();
+	}
+
+	public long getInjectedRejectionCount() {
+		return injectedRejections.sum();
+	}
+
+	////////////////////////////
+	// HTTP
+	////////////////////////////
+
+	private void handle(HttpExchange x) throws IOException {
+		requests.increment();
+		Reply r;
+		try {
+			delay();
+			r = inject();
+			if (r == null) {
+				String method = x.getRequestMethod();
+				List<String> path = split(x.getRequestURI().getRawPath());
+				Map<String, String> params = params(x.getRequestURI().getRawQuery());
+				InputStream in = x.getRequestBody();
+				if ("gzip".equalsIgnoreCase(x.getRequestHeaders().getFirst("Content-Encoding")))
+					in = new GZIPInputStream(in);
+				String body = new String(read(in), StandardCharsets.UTF_8);
+				r = route(method, path, params, body);
+			}
+		} catch (Exception e) {
+			r = error(500, "exception", String.valueOf(e.getMessage()));
+		}
+		byte [] bytes = null;
+		if (r.body != null && !"HEAD".equals(x.getRequestMethod()))
+			bytes = ((r.body instanceof JSONObject) ? ((JSONObject)r.body).toJSONString()
+					: r.body.toString()).getBytes(StandardCharsets.UTF_8);
+		x.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		String accept = x.getRequestHeaders().getFirst("Accept-Encoding");
+		if (bytes != null && compression && accept != null && accept.contains("gzip")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+				gz.write(bytes);
+			}
+			bytes = out.toByteArray();
+			x.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		if (bytes == null)
+			x.sendResponseHeaders(r.status, -1);
+		else {
+			x.sendResponseHeaders(r.status, bytes.length);
+			try (OutputStream os = x.getResponseBody()) {
+				os.write(bytes);
+			}
+		}
+		x.close();
+	}
+
+	private void delay() throws InterruptedException {
+		long d = latencyMillis;
+		long j = jitterMillis;
+		if (j > 0)
+			d += ThreadLocalRandom.current().nextLong(j + 1);
+		if (d > 0)
+			Thread.sleep(d);
+	}
+
+	private Reply inject() {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		if (rejectionRate > 0 && r.nextDouble() < rejectionRate) {
+			injectedRejections.increment();
+			return error(429, "es_rejected_execution_exception", "rejected execution (queue capacity 1000)");
+		}
+		if (errorRate > 0 && r.nextDouble() < errorRate) {
+			injectedErrors.increment();
+			return error(500, "injected_exception", "injected failure");
+		}
+		return null;
+	}
+
+	private Reply route(String method, List<String> path, Map<String, String> params, String body) throws Exception {
+		int n = path.size();
+		if (n == 0)
+			return new Reply(200, info());
+		String first = path.get(0);
+		String last = path.get(n - 1);
+		// cluster level endpoints
+		if (first.equals("_search") && n == 2 && path.get(1).equals("scroll")) {
+			if ("DELETE".equals(method))
+				return clearScroll(body);
+			return scroll(parse(body), params);
+		}
+		if (first.equals("_search") && n == 3 && path.get(1).equals("scroll")) {
+			if ("DELETE".equals(method)) {
+				scrolls.remove(path.get(2));
+				return new Reply(200, ack("succeeded"));
+			}
+			return scroll(scrollBody(path.get(2), params), params);
+		}
+		if (first.equals("_bulk"))
+			return bulk(null, body, params);
+		if (first.equals("_msearch"))
+			return msearch(null, body);
+		if (first.equals("_mget"))
+			return mget(null, parse(body), params);
+		if (first.equals("_refresh"))
+			return new Reply(200, shards());
+		if (first.equals("_search"))
+			return search(new ArrayList<FakeIndex>(indices.values()), parse(body), params);
+		if (first.equals("_count"))
+			return count(new ArrayList<FakeIndex>(indices.values()), parse(body));
+		if (first.equals("_alias") && n == 2)
+			return getAlias(path.get(1));
+		if (first.equals("_aliases"))
+			return updateAliases(parse(body));
+		if (first.startsWith("_"))
+			return error(400, "illegal_argument_exception", "unsupported endpoint /"+first);
+		// index level
+		String index = first;
+		if (n == 1) {
+			if ("HEAD".equals(method) || "GET".equals(method)) {
+				FakeIndex fi = lookup(index);
+				if (fi == null)
+					return missingIndex(index);
+				JSONObject jo = new JSONObject();
+				JSONObject ij = new JSONObject();
+				ij.put("mappings", fi.mappings);
+				ij.put("settings", fi.settings);
+				jo.put(index, ij);
+				return new Reply(200, jo);
+			}
+			if ("DELETE".equals(method)) {
+				if (indices.remove(index) == null)
+					return missingIndex(index);
+				aliases.values().removeIf(v -> v.equals(index));
+				return new Reply(200, ack(null));
+			}
+			return createIndex(index, parse(body));
+		}
+		String second = path.get(1);
+		if (second.equals("_refresh"))
+			return new Reply(200, shards());
+		if (second.equals("_bulk"))
+			return bulk(index, body, params);
+		if (second.equals("_msearch"))
+			return msearch(index, body);
+		if (second.equals("_mget"))
+			return mget(index, parse(body), params);
+		if (second.equals("_search"))
+			return searchIndex(index, parse(body), params);
+		if (second.equals("_count"))
+			return countIndex(index, parse(body));
+		if (second.equals("_mapping") || second.equals("_mappings")) {
+			if ("GET".equals(method))
+				return getMapping(index);
+			return putMapping(index, (n > 2) ? path.get(2) : null, parse(body));
+		}
+		if (second.equals("_settings"))
+			return new Reply(200, ack(null));
+		// type level
+		if (n == 2)
+			return ("POST".equals(method)) ? indexDoc(index, Long.toString(ids.incrementAndGet()), parse(body), params)
+					: error(400, "illegal_argument_exception", "no id");
+		String third = path.get(2);
+		if (third.equals("_mapping"))
+			return putMapping(index, second, parse(body));
+		if (third.equals("_mget"))
+			return mget(index, parse(body), params);
+		if (third.equals("_search"))
+			return searchIndex(index, parse(body), params);
+		if (third.equals("_count"))
+			return countIndex(index, parse(body));
+		if (third.equals("_bulk"))
+			return bulk(index, body, params);
+		// document level
+		String id = third;
+		if (n == 4 && last.equals("_update"))
+			return update(index, id, parse(body), params);
+		if ("GET".equals(method) || "HEAD".equals(method))
+			return getDoc(index, id, params);
+		if ("DELETE".equals(method))
+			return deleteDoc(index, id);
+		return indexDoc(index, id, parse(body), params);
+	}
+
+	////////////////////////////
+	// Indices
+	////////////////////////////
+
+	private FakeIndex lookup(String name) {
+		String target = aliases.get(name);
+		return indices.get((target == null) ? name : target);
+	}
+
+	private FakeIndex index(String name, boolean create) {
+		FakeIndex result = lookup(name);
+		if (result == null && create)
+			result = indices.computeIfAbsent(name, k -> new FakeIndex(k));
+		return result;
+	}
+
+	private Reply getAlias(String alias) {
+		String target = aliases.get(alias);
+		if (target == null)
+			return error(404, "aliases_not_found_exception", "alias ["+alias+"] missing");
+		JSONObject a = new JSONObject();
+		a.put(alias, new JSONObject());
+		JSONObject ix = new JSONObject();
+		ix.put("aliases", a);
+		JSONObject jo = new JSONObject();
+		jo.put(target, ix);
+		return new Reply(200, jo);
+	}
+
+	/**
+	 * <code>add</code> and <code>remove</code> actions, applied together
+	 * @param body
+	 * @return
+	 */
+	private synchronized Reply updateAliases(JSONObject body) {
+		List<?> actions = (body == null) ? null : (List<?>)body.get("actions");
+		if (actions == null)
+			return error(400, "action_request_validation_exception", "no actions");
+		Map<String, String> next = new HashMap<String, String>(aliases);
+		Iterator<?> itr = actions.iterator();
+		Map<?,?> action, spec;
+		String op;
+		while (itr.hasNext()) {
+			action = (Map<?,?>)itr.next();
+			op = (String)action.keySet().iterator().next();
+			spec = (Map<?,?>)action.get(op);
+			String index = (String)spec.get("index");
+			String alias = (String)spec.get("alias");
+			if (op.equals("add")) {
+				if (!indices.containsKey(index))
+					return missingIndex(index);
+				if (indices.containsKey(alias))
+					return error(400, "invalid_alias_name_exception", "an index exists with the same name as the alias ["+alias+"]");
+				next.put(alias, index);
+			} else if (op.equals("remove"))
+				next.remove(alias, index);
+		}
+		aliases.clear();
+		aliases.putAll(next);
+		return new Reply(200, ack(null));
+	}
+
+	private Reply createIndex(String index, JSONObject body) {
+		FakeIndex fi = new FakeIndex(index);
+		if (indices.putIfAbsent(index, fi) != null)
+			return error(400, "index_already_exists_exception", "already exists ["+index+"]");
+		if (body != null) {
+			Object o = body.get("settings");
+			if (o instanceof JSONObject)
+				fi.settings = (JSONObject)o;
+			o = body.get("mappings");
+			if (o instanceof JSONObject)
+				fi.mappings.putAll((JSONObject)o);
+			o = body.get("aliases");
+			if (o instanceof JSONObject) {
+				Iterator<String> itr = ((JSONObject)o).keySet().iterator();
+				while (itr.hasNext())
+					aliases.put(itr.next(), index);
+			}
+		}
+		return new Reply(200, ack(null));
+	}
+
+	private Reply putMapping(String index, String type, JSONObject body) {
+		FakeIndex fi = lookup(index);
+		if (fi == null)
+			return missingIndex(index);
+		if (body != null) {
+			if (type != null && !body.containsKey(type)) {
+				JSONObject jo = new JSONObject();
+				jo.put(type, body);
+				body = jo;
+			}
+			fi.mappings.putAll(body);
+		}
+		return new Reply(200, ack(null));
+	}
+
+	private Reply getMapping(String index) {
+		FakeIndex fi = lookup(index);
+		if (fi == null)
+			return missingIndex(index);
+		JSONObject jo = new JSONObject();
+		JSONObject m = new JSONObject();
+		m.put("mappings", fi.mappings);
+		jo.put(index, m);
+		return new Reply(200, jo);
+	}
+
+	////////////////////////////
+	// Documents
+	////////////////////////////
+
+	private Reply indexDoc(String index, String id, JSONObject source, Map<String, String> params) {
+		FakeIndex fi = index(index, autoCreateIndex);
+		if (fi == null)
+			return missingIndex(index);
+		if (source == null)
+			return error(400, "parse_exception", "request body is required");
+		String vt = params.get("version_type");
+		String v = params.get("version");
+		boolean create = "create".equals(params.get("op_type"));
+		long [] version = new long[1];
+		boolean [] created = new boolean[1];
+		Reply [] conflict = new Reply[1];
+		fi.docs.compute(id, (k, old) -> {
+			if (old != null && create) {
+				conflict[0] = error(409, "document_already_exists_exception", "["+id+"]: document already exists");
+				return old;
+			}
+			long next = (old == null) ? 1 : old.version + 1;
+			if (v != null && vt != null && vt.startsWith("external")) {
+				long ext = Long.parseLong(v);
+				boolean ok = (old == null) || (vt.equals("external_gte") ? ext >= old.version : ext > old.version);
+				if (!ok) {
+					conflict[0] = error(409, "version_conflict_engine_exception",
+							"["+id+"]: version conflict, current ["+old.version+"], provided ["+ext+"]");
+					return old;
+				}
+				next = ext;
+			} else if (v != null && old != null && Long.parseLong(v) != old.version) {
+				conflict[0] = error(409, "version_conflict_engine_exception",
+						"["+id+"]: version conflict, current ["+old.version+"], provided ["+v+"]");
+				return old;
+			}
+			version[0] = next;
+			created[0] = (old == null);
+			return new Doc(source, next);
+		});
+		if (conflict[0] != null)
+			return conflict[0];
+		JSONObject jo = docHeader(index, id);
+		jo.put("_version", version[0]);
+		jo.put("created", created[0]);
+		jo.put("result", created[0] ? "created" : "updated");
+		jo.put("_shards", shardCounts());
+		return new Reply(created[0] ? 201 : 200, jo);
+	}
+
+	private Reply getDoc(String index, String id, Map<String, String> params) {
+		FakeIndex fi = lookup(index);
+		if (fi == null)
+			return missingIndex(index);
+		Doc d = fi.docs.get(id);
+		JSONObject jo = docHeader(index, id);
+		if (d == null) {
+			jo.put("found", false);
+			return new Reply(404, jo);
+		}
+		jo.put("_version", d.version);
+		jo.put("found", true);
+		putSource(jo, d.source, sourceFilter(params, null));
+		return new Reply(200, jo);
+	}
+
+	private Reply deleteDoc(String index, String id) {
+		FakeIndex fi = lookup(index);
+		if (fi == null)
+			return missingIndex(index);
+		Doc d = fi.docs.remove(id);
+		JSONObject jo = docHeader(index, id);
+		jo.put("found", d != null);
+		jo.put("result", (d == null) ? "not_found" : "deleted");
+		jo.put("_version", (d == null) ? 1 : d.version + 1);
+		jo.put("_shards", shardCounts());
+		return new Reply((d == null) ? 404 : 200, jo);
+	}
+
+	private Reply update(String index, String id, JSONObject body, Map<String, String> params) {
+		FakeIndex fi = lookup(index);
+		if (fi == null)
+			return missingIndex(index);
+		if (body == null || !(body.get("doc") instanceof JSONObject))
+			return error(400, "illegal_argument_exception", "only partial doc updates are supported");
+		JSONObject partial = (JSONObject)body.get("doc");
+		boolean upsert = Boolean.TRUE.equals(body.get("doc_as_upsert"));
+		Reply [] missing = new Reply[1];
+		Doc d = fi.docs.compute(id, (k, old) -> {
+			if (old == null && !upsert) {
+				missing[0] = error(404, "document_missing_exception", "["+id+"]: document missing");
+				return null;
+			}
+			JSONObject merged = new JSONObject();
+			if (old != null)
+				merged.putAll(old.source);
+			merge(merged, partial);
+			return new Doc(merged, (old == null) ? 1 : old.version + 1);
+		});
+		if (missing[0] != null)
+			return missing[0];
+		JSONObject jo = docHeader(index, id);
+		jo.put("_version", d.version);
+		jo.put("result", "updated");
+		jo.put("_shards", shardCounts());
+		String fields = params.get("fields");
+		if ("true".equals(params.get("_source")) || (fields != null && fields.contains("_source"))) {
+			JSONObject get = new JSONObject();
+			get.put("found", true);
+			get.put("_source", d.source);
+			jo.put("get", get);
+		}
+		return new Reply(200, jo);
+	}
+
+	private Reply mget(String index, JSONObject body, Map<String, String> params) {
+		if (body == null)
+			return error(400, "action_request_validation_exception", "no documents to get");
+		JSONArray docs = new JSONArray();
+		SourceFilter filter = sourceFilter(params, null);
+		boolean noSource = "false".equals(params.get("_source"));
+		List<?> list = (List<?>)body.get("ids");
+		if (list == null)
+			list = (List<?>)body.get("docs");
+		if (list == null)
+			return error(400, "action_request_validation_exception", "no documents to get");
+		Iterator<?> itr = list.iterator();
+		Object o;
+		String ix, id;
+		JSONObject jo;
+		while (itr.hasNext()) {
+			o = itr.next();
+			ix = index;
+			if (o instanceof Map) {
+				Map<?,?> m = (Map<?,?>)o;
+				id = String.valueOf(m.get("_id"));
+				if (m.get("_index") != null)
+					ix = (String)m.get("_index");
+			} else
+				id = String.valueOf(o);
+			FakeIndex fi = (ix == null) ? null : lookup(ix);
+			Doc d = (fi == null) ? null : fi.docs.get(id);
+			jo = docHeader(ix, id);
+			if (d == null)
+				jo.put("found", false);
+			else {
+				jo.put("_version", d.version);
+				jo.put("found", true);
+				if (!noSource)
+					putSource(jo, d.source, filter);
+			}
+			docs.add(jo);
+		}
+		JSONObject result = new JSONObject();
+		result.put("docs", docs);
+		return new Reply(200, result);
+	}
+
+	private Reply bulk(String defaultIndex, String body, Map<String, String> params) throws Exception {
+		JSONArray items = new JSONArray();
+		boolean errors = false;
+		long start = System.nanoTime();
+		String [] lines = body.split("\n");
+		int i = 0;
+		JSONObject action, meta, src, item, res;
+		String op, index, id;
+		Reply r;
+		while (i < lines.length) {
+			if (lines[i].trim().isEmpty()) {
+				i++;
+				continue;
+			}
+			action = parse(lines[i++]);
+			op = action.keySet().iterator().next();
+			meta = (JSONObject)action.get(op);
+			index = (meta.get("_index") != null) ? (String)meta.get("_index") : defaultIndex;
+			id = (meta.get("_id") != null) ? String.valueOf(meta.get("_id")) : Long.toString(ids.incrementAndGet());
+			src = null;
+			if (!op.equals("delete") && i < lines.length)
+				src = parse(lines[i++]);
+			Map<String, String> p = new HashMap<String, String>();
+			if (meta.get("_version") != null)
+				p.put("version", String.valueOf(meta.get("_version")));
+			if (meta.get("_version_type") != null)
+				p.put("version_type", String.valueOf(meta.get("_version_type")));
+			if (op.equals("create"))
+				p.put("op_type", "create");
+			if (op.equals("delete"))
+				r = deleteDoc(index, id);
+			else if (op.equals("update"))
+				r = update(index, id, src, p);
+			else
+				r = indexDoc(index, id, src, p);
+			res = (JSONObject)r.body;
+			if (r.status == 404 && op.equals("delete"))
+				res.put("status", 404);
+			else
+				res.put("status", r.status);
+			if (r.status >= 300 && !(r.status == 404 && op.equals("delete")))
+				errors = true;
+			if (!res.containsKey("_index"))
+				res.put("_index", index);
+			if (!res.containsKey("_id"))
+				res.put("_id", id);
+			res.put("_type", "core");
+			item = new JSONObject();
+			item.put(op, res);
+			items.add(item);
+		}
+		JSONObject result = new JSONObject();
+		result.put("took", (System.nanoTime() - start) / 1000000);
+		result.put("errors", errors);
+		result.put("items", items);
+		return new Reply(200, result);
+	}
+
+	////////////////////////////
+	// Search
+	////////////////////////////
+
+	private Reply searchIndex(String index, JSONObject body, Map<String, String> params) {
+		List<FakeIndex> l = resolve(index);
+		if (l == null)
+			return missingIndex(index);
+		return search(l, body, params);
+	}
+
+	private Reply countIndex(String index, JSONObject body) {
+		List<FakeIndex> l = resolve(index);
+		if (l == null)
+			return missingIndex(index);
+		return count(l, body);
+	}
+
+	private Reply count(List<FakeIndex> in, JSONObject body) {
+		Object q = (body == null) ? null : body.get("query");
+		long count = 0;
+		for (int i=0; i<in.size(); i++) {
+			Iterator<Doc> itr = in.get(i).docs.values().iterator();
+			while (itr.hasNext())
+				if (matches(q, itr.next().source))
+					count++;
+		}
+		JSONObject jo = new JSONObject();
+		jo.put("count", count);
+		jo.put("_shards", shardCounts());
+		return new Reply(200, jo);
+	}
+
+	private Reply search(List<FakeIndex> in, JSONObject body, Map<String, String> params) {
+		if (body == null)
+			body = new JSONObject();
+		long start = System.nanoTime();
+		Object q = body.get("query");
+		List<JSONObject> hits = new ArrayList<JSONObject>();
+		Object srcSpec = body.containsKey("_source") ? body.get("_source") : null;
+		boolean noSource = Boolean.FALSE.equals(srcSpec) || "false".equals(params.get("_source"));
+		SourceFilter filter = sourceFilter(params, srcSpec);
+		FakeIndex fi;
+		Map.Entry<String, Doc> e;
+		JSONObject hit;
+		for (int i=0; i<in.size(); i++) {
+			fi = in.get(i);
+			Iterator<Map.Entry<String, Doc>> itr = fi.docs.entrySet().iterator();
+			while (itr.hasNext()) {
+				e = itr.next();
+				if (!matches(q, e.getValue().source))
+					continue;
+				hit = docHeader(fi.name, e.getKey());
+				hit.put("_score", 1.0);
+				hit.put("_sourceRef", e.getValue().source);
+				hits.add(hit);
+			}
+		}
+		sort(hits, body.get("sort"));
+		Object after = body.get("search_after");
+		if (after instanceof List && !((List<?>)after).isEmpty())
+			hits = after(hits, (List<?>)after);
+		long total = hits.size();
+		int size = intValue(params.containsKey("size") ? params.get("size") : body.get("size"), 10);
+		int from = intValue(params.containsKey("from") ? params.get("from") : body.get("from"), 0);
+		// finish the hits we return
+		for (int i=0; i<hits.size(); i++) {
+			hit = hits.get(i);
+			JSONObject src = (JSONObject)hit.remove("_sourceRef");
+			if (!noSource)
+				putSource(hit, src, filter);
+		}
+		JSONObject result = new JSONObject();
+		String keepAlive = params.get("scroll");
+		if (keepAlive != null) {
+			String sid = UUID.randomUUID().toString();
+			ScrollContext sc = new ScrollContext(hits, size);
+			scrolls.put(sid, sc);
+			result.put("_scroll_id", sid);
+			return new Reply(200, page(result, sc, total, start));
+		}
+		List<JSONObject> page = hits.subList(Math.min(from, hits.size()), Math.min(from + size, hits.size()));
+		return new Reply(200, searchResult(result, page, total, start));
+	}
+
+	private Reply scroll(JSONObject body, Map<String, String> params) {
+		String sid = (body == null) ? null : (String)body.get("scroll_id");
+		ScrollContext sc = (sid == null) ? null : scrolls.get(sid);
+		if (sc == null)
+			return error(404, "search_context_missing_exception", "No search context found for id ["+sid+"]");
+		JSONObject result = new JSONObject();
+		result.put("_scroll_id", sid);
+		return new Reply(200, page(result, sc, sc.hits.size(), System.nanoTime()));
+	}
+
+	private JSONObject scrollBody(String sid, Map<String, String> params) {
+		JSONObject jo = new JSONObject();
+		jo.put("scroll_id", sid);
+		return jo;
+	}
+
+	private Reply clearScroll(String body) throws Exception {
+		JSONObject jo = parse(body);
+		Object ids = (jo == null) ? null : jo.get("scroll_id");
+		if (ids instanceof List) {
+			Iterator<?> itr = ((List<?>)ids).iterator();
+			while (itr.hasNext())
+				scrolls.remove(String.valueOf(itr.next()));
+		} else if (ids != null)
+			scrolls.remove(ids.toString());
+		return new Reply(200, ack("succeeded"));
+	}
+
+	private JSONObject page(JSONObject result, ScrollContext sc, long total, long start) {
+		List<JSONObject> page;
+		synchronized (sc) {
+			int from = sc.cursor;
+			int to = Math.min(from + sc.size, sc.hits.size());
+			page = new ArrayList<JSONObject>(sc.hits.subList(from, to));
+			sc.cursor = to;
+		}
+		return searchResult(result, page, total, start);
+	}
+
+	private Reply msearch(String defaultIndex, String body) throws Exception {
+		JSONArray responses = new JSONArray();
+		String [] lines = body.split("\n");
+		int i = 0;
+		JSONObject header, query;
+		String index;
+		Reply r;
+		while (i < lines.length) {
+			if (lines[i].trim().isEmpty()) {
+				i++;
+				continue;
+			}
+			header = parse(lines[i++]);
+			query = (i < lines.length) ? parse(lines[i++]) : new JSONObject();
+			index = (header != null && header.get("index") != null) ? String.valueOf(header.get("index")) : defaultIndex;
+			if (index == null)
+				r = search(new ArrayList<FakeIndex>(indices.values()), query, Collections.<String,String>emptyMap());
+			else
+				r = searchIndex(index, query, Collections.<String,String>emptyMap());
+			JSONObject jo = (JSONObject)r.body;
+			jo.put("status", r.status);
+			responses.add(jo);
+		}
+		JSONObject result = new JSONObject();
+		result.put("responses", responses);
+		return new Reply(200, result);
+	}
+
+	private JSONObject searchResult(JSONObject result, List<JSONObject> page, long total, long start) {
+		JSONArray ja = new JSONArray();
+		ja.addAll(page);
+		JSONObject hits = new JSONObject();
+		hits.put("total", total);
+		hits.put("max_score", page.isEmpty() ? null : 1.0);
+		hits.put("hits", ja);
+		result.put("took", (System.nanoTime() - start) / 1000000);
+		result.put("timed_out", false);
+		result.put("_shards", shardCounts());
+		result.put("hits", hits);
+		return result;
+	}
+
+	private List<FakeIndex> resolve(String names) {
+		List<FakeIndex> result = new ArrayList<FakeIndex>();
+		if (names.equals("_all") || names.equals("*")) {
+			result.addAll(indices.values());
+			return result;
+		}
+		String [] parts = names.split(",");
+		FakeIndex fi;
+		for (int i=0; i<parts.length; i++) {
+			fi = lookup(parts[i]);
+			if (fi == null)
+				return null;
+			result.add(fi);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluate the query DSL subset against one node
+	 * @param query can be <code>null</code> for all
+	 * @param source
+	 * @return
+	 */
+	private boolean matches(Object query, JSONObject source) {
+		if (!(query instanceof Map))
+			return true;
+		Map<?,?> q = (Map<?,?>)query;
+		Iterator<? extends Map.Entry<?,?>> itr = q.entrySet().iterator();
+		Map.Entry<?,?> e;
+		String kind;
+		while (itr.hasNext()) {
+			e = itr.next();
+			kind = (String)e.getKey();
+			if (!matchClause(kind, e.getValue(), source))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean matchClause(String kind, Object clause, JSONObject source) {
+		if (kind.equals("match_all"))
+			return true;
+		if (kind.equals("bool"))
+			return matchBool((Map<?,?>)clause, source);
+		if (kind.equals("ids")) {
+			Object values = ((Map<?,?>)clause).get("values");
+			return values instanceof List && ((List<?>)values).contains(source.get("lox"));
+		}
+		if (kind.equals("constant_score") || kind.equals("filtered"))
+			return matches(((Map<?,?>)clause).get("filter"), source) && matches(((Map<?,?>)clause).get("query"), source);
+		Map.Entry<?,?> fe = ((Map<?,?>)clause).entrySet().iterator().next();
+		String field = (String)fe.getKey();
+		Object want = fe.getValue();
+		if (want instanceof Map) {
+			Map<?,?> m = (Map<?,?>)want;
+			want = m.containsKey("query") ? m.get("query") : m.get("value");
+		}
+		Object have = field(source, field);
+		if (kind.equals("term"))
+			return contains(have, want, false);
+		if (kind.equals("terms")) {
+			Iterator<?> itr = ((List<?>)fe.getValue()).iterator();
+			while (itr.hasNext())
+				if (contains(have, itr.next(), false))
+					return true;
+			return false;
+		}
+		if (kind.equals("match") || kind.equals("match_phrase"))
+			return contains(have, want, true);
+		if (kind.equals("prefix"))
+			return have != null && have.toString().startsWith(String.valueOf(want));
+		throw new IllegalArgumentException("unsupported query ["+kind+"]");
+	}
+
+	private boolean matchBool(Map<?,?> bool, JSONObject source) {
+		if (!all(bool.get("must"), source) || !all(bool.get("filter"), source))
+			return false;
+		Object not = bool.get("must_not");
+		if (not != null && any(not, source))
+			return false;
+		Object should = bool.get("should");
+		if (should != null && !bool.containsKey("must") && !bool.containsKey("filter"))
+			return any(should, source);
+		return true;
+	}
+
+	private boolean all(Object clauses, JSONObject source) {
+		if (clauses == null)
+			return true;
+		if (clauses instanceof Map)
+			return matches(clauses, source);
+		Iterator<?> itr = ((List<?>)clauses).iterator();
+		while (itr.hasNext())
+			if (!matches(itr.next(), source))
+				return false;
+		return true;
+	}
+
+	private boolean any(Object clauses, JSONObject source) {
+		if (clauses instanceof Map)
+			return matches(clauses, source);
+		Iterator<?> itr = ((List<?>)clauses).iterator();
+		while (itr.hasNext())
+			if (matches(itr.next(), source))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param have a field value, perhaps a list
+	 * @param want
+	 * @param words if <code>true</code>, any word of <code>want</code>
+	 *  found among the words of <code>have</code>, ignoring case
+	 * @return
+	 */
+	private static boolean contains(Object have, Object want, boolean words) {
+		if (have == null || want == null)
+			return false;
+		if (have instanceof List) {
+			Iterator<?> itr = ((List<?>)have).iterator();
+			while (itr.hasNext())
+				if (contains(itr.next(), want, words))
+					return true;
+			return false;
+		}
+		if (!words)
+			return have.toString().equals(want.toString());
+		Set<String> tokens = new HashSet<String>(Arrays.asList(have.toString().toLowerCase().split("\\W+")));
+		String [] w = want.toString().toLowerCase().split("\\W+");
+		for (int i=0; i<w.length; i++)
+			if (!w[i].isEmpty() && tokens.contains(w[i]))
+				return true;
+		return false;
+	}
+
+	private static Object field(Map<?,?> source, String path) {
+		Object result = source;
+		String [] parts = path.split("\\.");
+		for (int i=0; i<parts.length; i++) {
+			if (!(result instanceof Map))
+				return null;
+			result = ((Map<?,?>)result).get(parts[i]);
+		}
+		return result;
+	}
+
+	private void sort(List<JSONObject> hits, Object spec) {
+		if (spec == null)
+			return;
+		List<?> specs = (spec instanceof List) ? (List<?>)spec : Collections.singletonList(spec);
+		List<String> fields = new ArrayList<String>();
+		List<Boolean> desc = new ArrayList<Boolean>();
+		Iterator<?> itr = specs.iterator();
+		Object s;
+		while (itr.hasNext()) {
+			s = itr.next();
+			if (s instanceof String) {
+				fields.add((String)s);
+				desc.add(Boolean.FALSE);
+			} else if (s instanceof Map) {
+				Map.Entry<?,?> e = ((Map<?,?>)s).entrySet().iterator().next();
+				fields.add((String)e.getKey());
+				Object o = e.getValue();
+				if (o instanceof Map)
+					o = ((Map<?,?>)o).get("order");
+				desc.add("desc".equals(o));
+			}
+		}
+		// _doc is insertion order, which we do not keep; any stable order will do
+		Collections.sort(hits, (a, b) -> {
+			int c;
+			for (int i=0; i<fields.size(); i++) {
+				c = compare(sortValue(a, fields.get(i)), sortValue(b, fields.get(i)));
+				if (c != 0)
+					return desc.get(i) ? -c : c;
+			}
+			return ((String)a.get("_id")).compareTo((String)b.get("_id"));
+		});
+		JSONArray values;
+		for (int j=0; j<hits.size(); j++) {
+			values = new JSONArray();
+			for (int i=0; i<fields.size(); i++)
+				values.add(sortValue(hits.get(j), fields.get(i)));
+			hits.get(j).put("sort", values);
+		}
+	}
+
+	private static Object sortValue(JSONObject hit, String field) {
+		if (field.equals("_doc") || field.equals("_uid") || field.equals("_id"))
+			return hit.get("_id");
+		if (field.equals("_score"))
+			return hit.get("_score");
+		return field((JSONObject)hit.get("_sourceRef"), field);
+	}
+
+	private List<JSONObject> after(List<JSONObject> hits, List<?> after) {
+		List<JSONObject> result = new ArrayList<JSONObject>();
+		JSONObject hit;
+		for (int i=0; i<hits.size(); i++) {
+			hit = hits.get(i);
+			List<?> sv = (List<?>)hit.get("sort");
+			if (sv == null || compareValues(sv, after) > 0)
+				result.add(hit);
+		}
+		return result;
+	}
+
+	private static int compareValues(List<?> a, List<?> b) {
+		int c;
+		for (int i=0; i<Math.min(a.size(), b.size()); i++) {
+			c = compare(a.get(i), b.get(i));
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	private static int compare(Object a, Object b) {
+		if (a == null)
+			return (b == null) ? 0 : 1;
+		if (b == null)
+			return -1;
+		if (a instanceof Number && b instanceof Number)
+			return Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+		return a.toString().compareTo(b.toString());
+	}
+
+	////////////////////////////
+	// Utilities
+	////////////////////////////
+
+	private static SourceFilter sourceFilter(Map<String, String> params, Object spec) {
+		List<String> inc = list(params.containsKey("_source_include") ? params.get("_source_include") : params.get("_source_includes"));
+		List<String> exc = list(params.containsKey("_source_exclude") ? params.get("_source_exclude") : params.get("_source_excludes"));
+		if (spec instanceof Map) {
+			Map<?,?> m = (Map<?,?>)spec;
+			inc = strings(m.containsKey("includes") ? m.get("includes") : m.get("include"));
+			exc = strings(m.containsKey("excludes") ? m.get("excludes") : m.get("exclude"));
+		} else if (spec instanceof List || spec instanceof String)
+			inc = strings(spec);
+		if (inc == null && exc == null)
+			return null;
+		return new SourceFilter(inc, exc);
+	}
+
+	private static void putSource(JSONObject target, JSONObject source, SourceFilter filter) {
+		target.put("_source", (filter == null) ? source : filter.project(source));
+	}
+
+	private static void merge(JSONObject target, JSONObject partial) {
+		Iterator<Map.Entry<String, Object>> itr = partial.entrySet().iterator();
+		Map.Entry<String, Object> e;
+		Object old;
+		while (itr.hasNext()) {
+			e = itr.next();
+			old = target.get(e.getKey());
+			if (old instanceof JSONObject && e.getValue() instanceof JSONObject) {
+				JSONObject copy = new JSONObject();
+				copy.putAll((JSONObject)old);
+				merge(copy, (JSONObject)e.getValue());
+				target.put(e.getKey(), copy);
+			} else
+				target.put(e.getKey(), e.getValue());
+		}
+	}
+
+	private static List<String> list(String csv) {
+		if (csv == null || csv.isEmpty())
+			return null;
+		return Arrays.asList(csv.split(","));
+	}
+
+	private static List<String> strings(Object o) {
+		if (o == null)
+			return null;
+		if (o instanceof String)
+			return list((String)o);
+		List<String> result = new ArrayList<String>();
+		Iterator<?> itr = ((List<?>)o).iterator();
+		while (itr.hasNext())
+			result.add(String.valueOf(itr.next()));
+		return result;
+	}
+
+	private static int intValue(Object o, int defaultValue) {
+		if (o == null)
+			return defaultValue;
+		if (o instanceof Number)
+			return ((Number)o).intValue();
+		return Integer.parseInt(o.toString());
+	}
+
+	private static JSONObject docHeader(String index, String id) {
+		JSONObject jo = new JSONObject();
+		jo.put("_index", index);
+		jo.put("_type", "core");
+		jo.put("_id", id);
+		return jo;
+	}
+
+	private static JSONObject ack(String key) {
+		JSONObject jo = new JSONObject();
+		jo.put((key == null) ? "acknowledged" : key, true);
+		return jo;
+	}
+
+	private static JSONObject shardCounts() {
+		JSONObject jo = new JSONObject();
+		jo.put("total", 1);
+		jo.put("successful", 1);
+		jo.put("failed", 0);
+		return jo;
+	}
+
+	private static JSONObject shards() {
+		JSONObject jo = new JSONObject();
+		jo.put("_shards", shardCounts());
+		return jo;
+	}
+
+	private static JSONObject info() {
+		JSONObject v = new JSONObject();
+		v.put("number", "2.3.1");
+		JSONObject jo = new JSONObject();
+		jo.put("name", "fake");
+		jo.put("cluster_name", "fake");
+		jo.put("version", v);
+		jo.put("tagline", "You Know, for Search");
+		return jo;
+	}
+
+	private static Reply missingIndex(String index) {
+		Reply r = error(404, "index_not_found_exception", "no such index");
+		((JSONObject)((JSONObject)r.body).get("error")).put("index", index);
+		return r;
+	}
+
+	private static Reply error(int status, String type, String reason) {
+		JSONObject err = new JSONObject();
+		err.put("type", type);
+		err.put("reason", reason);
+		JSONObject jo = new JSONObject();
+		jo.put("error", err);
+		jo.put("status", status);
+		return new Reply(status, jo);
+	}
+
+	private static JSONObject parse(String body) throws Exception {
+		if (body == null || body.trim().isEmpty())
+			return null;
+		return (JSONObject)new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(body);
+	}
+
+	private static List<String> split(String rawPath) throws Exception {
+		List<String> result = new ArrayList<String>();
+		String [] parts = rawPath.split("/");
+		for (int i=0; i<parts.length; i++)
+			if (!parts[i].isEmpty())
+				result.add(URLDecoder.decode(parts[i], "UTF-8"));
+		return result;
+	}
+
+	private static Map<String, String> params(String rawQuery) throws Exception {
+		Map<String, String> result = new HashMap<String, String>();
+		if (rawQuery == null)
+			return result;
+		String [] parts = rawQuery.split("&");
+		int eq;
+		for (int i=0; i<parts.length; i++) {
+			eq = parts[i].indexOf('=');
+			if (eq < 0)
+				result.put(URLDecoder.decode(parts[i], "UTF-8"), "true");
+			else
+				result.put(URLDecoder.decode(parts[i].substring(0, eq), "UTF-8"),
+						URLDecoder.decode(parts[i].substring(eq + 1), "UTF-8"));
+		}
+		return result;
+	}
+
+	private static byte [] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte [] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author park
+ */
+public class FrequencySketchTest {
+
+	@Test
+	public void testCounts() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		assertEquals(0, sketch.frequency("a"));
+		for (int i=0; i<5; i++)
+			sketch.increment("a");
+		sketch.increment("b");
+		assertEquals(5, sketch.frequency("a"));
+		assertEquals(1, sketch.frequency("b"));
+	}
+
+	@Test
+	public void testSaturates() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i=0; i<100; i++)
+			sketch.increment("a");
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	@Test
+	public void testNeverUnderestimates() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i=0; i<1000; i++) {
+			for (int j=0; j<=i % 10; j++)
+				sketch.increment("k" + i);
+		}
+		for (int i=0; i<1000; i++)
+			assertTrue(sketch.frequency("k" + i) >= i % 10 + 1);
+	}
+
+	@Test
+	public void testAges() {
+		// 64 wide, so halved after 640 additions
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i=0; i<15; i++)
+			sketch.increment("hot");
+		assertEquals(15, sketch.frequency("hot"));
+		for (int i=0; i<640; i++)
+			sketch.increment("cold" + i);
+		int f = sketch.frequency("hot");
+		assertTrue("frequency "+f, f > 0 && f < 15);
+	}
+
+	@Test
+	public void testSpreadMixes() {
+		// neighbouring hash codes must not land in neighbouring segments
+		int same = 0;
+		for (int i=0; i<1000; i++) {
+			if ((FrequencySketch.spread(i) & 15) == (FrequencySketch.spread(i + 1) & 15))
+				same++;
+		}
+		assertTrue("same "+same, same < 200);
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * @author park
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testIndexAndBound() {
+		// exact below 32
+		for (long v=0; v<32; v++) {
+			assertEquals(v, LatencyHistogram.index(v));
+			assertEquals(v, LatencyHistogram.upperBound((int)v));
+		}
+		long v = 1;
+		int last = -1, i;
+		while (v < (1L << 40)) {
+			i = LatencyHistogram.index(v);
+			assertTrue(i >= last);
+			assertTrue("value "+v, LatencyHistogram.upperBound(i) >= v);
+			if (i > 0)
+				assertTrue("value "+v, LatencyHistogram.upperBound(i - 1) < v);
+			last = i;
+			v = v + 1 + v / 7;
+		}
+	}
+
+	@Test
+	public void testBucketWidth() {
+		long v, ub;
+		for (v=32; v < (1L << 40); v = v * 3 + 1) {
+			ub = LatencyHistogram.upperBound(LatencyHistogram.index(v));
+			assertTrue("value "+v+" bound "+ub, (double)(ub - v) / v <= 1.0 / 32);
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getMean(), 0);
+		assertEquals(0, h.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long v=1; v<=10000; v++)
+			h.record(v);
+		assertEquals(10000, h.getCount());
+		assertEquals(10000, h.getMax());
+		assertEquals(5000.5, h.getMean(), 0.001);
+		assertNear(5000, h.getValueAtPercentile(50));
+		assertNear(9000, h.getValueAtPercentile(90));
+		assertNear(9900, h.getValueAtPercentile(99));
+		// never above the largest recorded
+		assertEquals(10000, h.getValueAtPercentile(100));
+		assertEquals(10000, h.getValueAtPercentile(150));
+		assertEquals(1, h.getValueAtPercentile(0));
+	}
+
+	@Test
+	public void testShuffledRecords() {
+		List<Long> values = new ArrayList<Long>();
+		for (long v=0; v<100000; v++)
+			values.add(v * 37);
+		Collections.shuffle(values, new Random(7));
+		LatencyHistogram h = new LatencyHistogram();
+		for (Long v : values)
+			h.record(v.longValue());
+		assertNear(50000 * 37, h.getValueAtPercentile(50));
+		assertNear(99900 * 37, h.getValueAtPercentile(99.9));
+	}
+
+	@Test
+	public void testClamped() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5);
+		assertEquals(0, h.getMax());
+		h.record(Long.MAX_VALUE);
+		assertEquals((1L << 40) - 1, h.getMax());
+		assertEquals(2, h.getCount());
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long v=1; v<=100; v++)
+			h.record(v * 1000);
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getMean(), 0);
+		assertEquals(0, h.getValueAtPercentile(50));
+		h.record(7);
+		assertEquals(7, h.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testConcurrentRecords() throws Exception {
+		final LatencyHistogram h = new LatencyHistogram();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t=0; t<4; t++) {
+			final long top = (t + 1) * 1000;
+			Thread th = new Thread(() -> {
+				for (int i=0; i<10000; i++)
+					h.record(top);
+			});
+			threads.add(th);
+			th.start();
+		}
+		for (Thread th : threads)
+			th.join();
+		assertEquals(40000, h.getCount());
+		assertEquals(4000, h.getMax());
+		assertEquals(2500, h.getMean(), 0.001);
+	}
+
+	/**
+	 * Within the histogram's 3%
+	 */
+	private static void assertNear(long expected, long actual) {
+		assertTrue("expected about "+expected+" but was "+actual,
+				Math.abs(actual - expected) <= expected * 0.03 + 1);
+	}
+}
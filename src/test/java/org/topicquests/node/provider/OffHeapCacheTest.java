@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * @author park
+ * <p>Random bytes do not compress, so an entry of <code>ENTRY</code>
+ * bytes fills most of a slab of <code>SLAB</code> bytes: one entry
+ * per slab</p>
+ */
+public class OffHeapCacheTest {
+	private static final int SLAB = 1024;
+	private static final int ENTRY = 600;
+	private final Random random = new Random(11);
+
+	@Test
+	public void testPutTake() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		byte [] raw = "{\"locator\":\"a\",\"label\":\"A node\"}".getBytes(StandardCharsets.UTF_8);
+		assertTrue(cache.put("topics/a", raw, 0));
+		assertEquals(1, cache.size());
+		OffHeapCache.Taken t = cache.take("topics/a");
+		assertNotNull(t);
+		assertArrayEquals(raw, t.bytes);
+		assertEquals(0, t.expiresAt);
+		// taking removes
+		assertEquals(0, cache.size());
+		assertNull(cache.take("topics/a"));
+		assertNull(cache.take("topics/b"));
+	}
+
+	@Test
+	public void testReplace() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		cache.put("a", bytes(100), 0);
+		byte [] second = bytes(100);
+		cache.put("a", second, 0);
+		assertEquals(1, cache.size());
+		assertArrayEquals(second, cache.take("a").bytes);
+	}
+
+	@Test
+	public void testRemove() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		cache.put("a", bytes(100), 0);
+		cache.remove("a");
+		assertEquals(0, cache.size());
+		assertNull(cache.take("a"));
+	}
+
+	@Test
+	public void testExpiry() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		long later = System.currentTimeMillis() + 60000;
+		cache.put("old", bytes(100), System.currentTimeMillis() - 1);
+		cache.put("new", bytes(100), later);
+		assertNull(cache.take("old"));
+		OffHeapCache.Taken t = cache.take("new");
+		assertNotNull(t);
+		assertEquals(later, t.expiresAt);
+	}
+
+	@Test
+	public void testTooLarge() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		cache.put("a", bytes(100), 0);
+		assertFalse(cache.put("a", bytes(2 * SLAB), 0));
+		// the older bytes must not be served in its place
+		assertNull(cache.take("a"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testSlabReuseEvicts() {
+		OffHeapCache cache = new OffHeapCache(2 * SLAB, SLAB);
+		assertEquals(SLAB, cache.getAllocatedBytes());
+		byte [] a = bytes(ENTRY), b = bytes(ENTRY), c = bytes(ENTRY);
+		cache.put("a", a, 0);
+		cache.put("b", b, 0);
+		assertEquals(2 * SLAB, cache.getAllocatedBytes());
+		assertEquals(0, cache.getEvictionCount());
+		// back to the first slab
+		cache.put("c", c, 0);
+		assertEquals(2 * SLAB, cache.getAllocatedBytes());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.size());
+		assertNull(cache.take("a"));
+		assertArrayEquals(b, cache.take("b").bytes);
+		assertArrayEquals(c, cache.take("c").bytes);
+	}
+
+	@Test
+	public void testMovedKeySurvivesReuse() {
+		OffHeapCache cache = new OffHeapCache(3 * SLAB, SLAB);
+		cache.put("a", bytes(ENTRY), 0);
+		cache.put("b", bytes(ENTRY), 0);
+		// "a" now lives in the third slab; the first still lists it
+		byte [] a = bytes(ENTRY);
+		cache.put("a", a, 0);
+		cache.put("c", bytes(ENTRY), 0);
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(3, cache.size());
+		assertArrayEquals(a, cache.take("a").bytes);
+	}
+
+	@Test
+	public void testManyPuts() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		Map<String, byte []> last = new HashMap<String, byte []>();
+		byte [] b;
+		for (int i=0; i<200; i++) {
+			b = bytes(50 + random.nextInt(300));
+			cache.put("k" + (i % 20), b, 0);
+			last.put("k" + (i % 20), b);
+		}
+		assertTrue(cache.size() <= 20);
+		OffHeapCache.Taken t;
+		for (Map.Entry<String, byte []> e : last.entrySet()) {
+			t = cache.take(e.getKey());
+			// whatever survived is the latest put
+			if (t != null)
+				assertArrayEquals(e.getKey(), e.getValue(), t.bytes);
+		}
+	}
+
+	@Test
+	public void testClear() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		cache.put("a", bytes(100), 0);
+		cache.put("b", bytes(100), 0);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.take("a"));
+		byte [] c = bytes(100);
+		cache.put("c", c, 0);
+		assertArrayEquals(c, cache.take("c").bytes);
+	}
+
+	@Test
+	public void testCompression() {
+		OffHeapCache cache = new OffHeapCache(4 * SLAB, SLAB);
+		assertEquals(1, cache.getCompressionRatio(), 0);
+		StringBuilder buf = new StringBuilder();
+		for (int i=0; i<100; i++)
+			buf.append("{\"locator\":\"node").append(i).append("\"},");
+		byte [] raw = buf.toString().getBytes(StandardCharsets.UTF_8);
+		// larger than a slab, but not once compressed
+		assertTrue(raw.length > SLAB);
+		assertTrue(cache.put("a", raw, 0));
+		assertTrue(cache.getCompressionRatio() < 0.5);
+		assertArrayEquals(raw, cache.take("a").bytes);
+	}
+
+	private byte [] bytes(int n) {
+		byte [] result = new byte[n];
+		random.nextBytes(result);
+		return result;
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package org.topicquests.node.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * @author park
+ */
+public class WriteJournalTest {
+	private static final long WAIT_MILLIS = 5000;
+
+	@Test
+	public void testDrain() {
+		WriteJournal journal = new WriteJournal();
+		journal.enter();
+		journal.exit("a");
+		journal.enter();
+		journal.exit(null);
+		journal.enter();
+		journal.add("b");
+		journal.add("c");
+		journal.exit("a");
+		assertEquals(3, journal.size());
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), new HashSet<String>(journal.drain()));
+		assertEquals(0, journal.size());
+		assertTrue(journal.drain().isEmpty());
+		journal.add("d");
+		assertEquals(Arrays.asList("d"), journal.drain());
+	}
+
+	@Test
+	public void testPauseWaitsForWriters() throws Exception {
+		final WriteJournal journal = new WriteJournal();
+		journal.enter();
+		final AtomicBoolean paused = new AtomicBoolean(false);
+		Thread pauser = start(() -> {
+			journal.pause();
+			paused.set(true);
+		}, null);
+		awaitWaiting(pauser);
+		assertFalse(paused.get());
+		journal.exit("a");
+		pauser.join(WAIT_MILLIS);
+		assertTrue(paused.get());
+		journal.resume();
+	}
+
+	@Test
+	public void testPauseHoldsNewWriters() throws Exception {
+		final WriteJournal journal = new WriteJournal();
+		journal.pause();
+		final CountDownLatch entered = new CountDownLatch(1);
+		Thread writer = start(() -> {
+			journal.enter();
+			entered.countDown();
+			journal.exit("a");
+		}, null);
+		awaitWaiting(writer);
+		assertEquals(1, entered.getCount());
+		assertEquals(0, journal.size());
+		journal.resume();
+		assertTrue(entered.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		writer.join(WAIT_MILLIS);
+		assertEquals(Arrays.asList("a"), journal.drain());
+	}
+
+	@Test
+	public void testPauseIdle() throws Exception {
+		WriteJournal journal = new WriteJournal();
+		// nothing in flight, so does not wait
+		journal.pause();
+		journal.resume();
+		journal.enter();
+		journal.exit("a");
+		assertEquals(1, journal.size());
+	}
+
+	@Test
+	public void testInterruptedPauseReleasesWriters() throws Exception {
+		final WriteJournal journal = new WriteJournal();
+		journal.enter();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread pauser = start(() -> {
+			journal.pause();
+		}, failure);
+		awaitWaiting(pauser);
+		final CountDownLatch entered = new CountDownLatch(1);
+		Thread writer = start(() -> {
+			journal.enter();
+			entered.countDown();
+			journal.exit("b");
+		}, null);
+		awaitWaiting(writer);
+		assertEquals(1, entered.getCount());
+		pauser.interrupt();
+		pauser.join(WAIT_MILLIS);
+		assertTrue(failure.get() instanceof InterruptedException);
+		// the pause is given up, so the held writer goes on
+		assertTrue(entered.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		journal.exit("a");
+		writer.join(WAIT_MILLIS);
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(journal.drain()));
+	}
+
+	@Test
+	public void testInterruptedWriterStillEnters() throws Exception {
+		final WriteJournal journal = new WriteJournal();
+		journal.pause();
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		Thread writer = start(() -> {
+			journal.enter();
+			interrupted.set(Thread.currentThread().isInterrupted());
+			journal.exit("a");
+		}, null);
+		awaitWaiting(writer);
+		writer.interrupt();
+		// an interrupt does not let a write past the gate
+		Thread.sleep(50);
+		assertEquals(0, journal.size());
+		journal.resume();
+		writer.join(WAIT_MILLIS);
+		assertTrue(interrupted.get());
+		assertEquals(1, journal.size());
+	}
+
+	///////////////////////
+	// UTILITIES
+	///////////////////////
+
+	private interface Body {
+		void run() throws Exception;
+	}
+
+	private static Thread start(final Body body, final AtomicReference<Throwable> failure) {
+		Thread result = new Thread(() -> {
+			try {
+				body.run();
+			} catch (Throwable t) {
+				if (failure != null)
+					failure.set(t);
+			}
+		});
+		result.setDaemon(true);
+		result.start();
+		return result;
+	}
+
+	/**
+	 * Wait until <code>t</code> blocks in the journal
+	 */
+	private static void awaitWaiting(Thread t) throws InterruptedException {
+		long end = System.currentTimeMillis() + WAIT_MILLIS;
+		while (t.getState() != Thread.State.WAITING) {
+			if (System.currentTimeMillis() > end)
+				fail("thread did not block: "+t.getState());
+			Thread.sleep(1);
+		}
+	}
+}